@@ -9,11 +9,38 @@ repositories {
     mavenCentral()
 }
 
+// Benchmarks JMH de las etapas del procesamiento, en src/jmh/java. Se ejecutan con
+// ./gradlew jmh y admiten argumentos adicionales de JMH con -PjmhArgs="...", por ejemplo
+// ./gradlew jmh -PjmhArgs="EtapasBenchmark.adelgazamientoZhangSuen -p lado=1024".
+// Las imágenes de prueba se generan de forma sintética, así que una vez descargadas las
+// dependencias se pueden ejecutar con --offline.
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val jmhVersion = "1.37"
+
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.9.1"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Ejecuta los benchmarks JMH, informando también de la tasa de asignación de memoria."
+    group = "benchmark"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args("-prof", "gc")
+    (project.findProperty("jmhArgs") as String?)?.let { args(it.split(" ").filter { a -> a.isNotBlank() }) }
+}
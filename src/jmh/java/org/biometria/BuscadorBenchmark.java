@@ -0,0 +1,81 @@
+package org.biometria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencia de una búsqueda 1:N completa con {@link BuscadorGaleria} sobre una galería en disco, según
+ * el número de fragmentos en que se reparte la consulta. Con un solo fragmento equivale al recorrido
+ * secuencial; la galería se genera en un archivo temporal al preparar la prueba.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class BuscadorBenchmark {
+    private static final int SONDAS = 64;
+
+    @Param({"100000"})
+    public int galeria;
+
+    @Param({"1", "0"})
+    public int fragmentos;
+
+    private Path archivo;
+    private GaleriaPlantillas plantillas;
+    private BuscadorGaleria buscador;
+    private MinutiaeTemplate[] sondas;
+    private int siguiente;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        Random random = new Random(42);
+        archivo = Files.createTempFile("galeria", ".bin");
+        Files.delete(archivo);
+        plantillas = GaleriaPlantillas.abrir(archivo);
+        sondas = new MinutiaeTemplate[SONDAS];
+        for (int id = 0; id < galeria; id++) {
+            MinutiaeTemplate plantilla = PlantillasSinteticas.aleatoria(random);
+            plantillas.anadir(id, plantilla);
+            if (id < SONDAS) {
+                sondas[id] = PlantillasSinteticas.perturbar(plantilla, 20 * random.nextDouble() - 10, random);
+            }
+        }
+        // 0 fragmentos: tantos como hilos tiene el pool común
+        buscador = fragmentos == 0
+                ? new BuscadorGaleria(plantillas)
+                : new BuscadorGaleria(plantillas, ForkJoinPool.commonPool(), fragmentos);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        plantillas.close();
+        Files.deleteIfExists(archivo);
+    }
+
+    @Benchmark
+    public BuscadorGaleria.ResultadoBusqueda buscar() {
+        siguiente = (siguiente + 1) % SONDAS;
+        return buscador.buscar(sondas[siguiente], 20, BuscadorGaleria.SIN_PLAZO, BuscadorGaleria.SIN_UMBRAL);
+    }
+}
@@ -0,0 +1,83 @@
+package org.biometria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparaciones 1:1 por segundo de {@link ComparadorMinucias}, con plantillas del tamaño habitual de
+ * una huella real. La comparación genuina usa una copia girada, desplazada y con ruido de la misma
+ * plantilla, a la que le faltan algunas minucias; la impostora, minucias de otra huella.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g", "-Djava.awt.headless=true"})
+public class ComparadorBenchmark {
+    @Param({"40", "80"})
+    public int minucias;
+
+    private final ComparadorMinucias comparador = new ComparadorMinucias();
+    private MinutiaeTemplate sonda;
+    private MinutiaeTemplate genuina;
+    private MinutiaeTemplate impostora;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        Random random = new Random(42);
+        sonda = MinutiaeTemplate.desde(muestra(extraer(7), minucias, random));
+        genuina = PlantillasSinteticas.perturbar(sonda, 10, random);
+        impostora = MinutiaeTemplate.desde(muestra(extraer(8), minucias, random));
+    }
+
+    @Benchmark
+    public int genuina() {
+        return comparador.comparar(sonda, genuina);
+    }
+
+    @Benchmark
+    public int impostora() {
+        return comparador.comparar(sonda, impostora);
+    }
+
+    // Sólo la plantilla candidata se prepara en cada comparación, como al recorrer una galería
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public int impostoraConSondaFijada() {
+        comparador.fijarSonda(sonda);
+        int puntuacion = 0;
+        for (int i = 0; i < 16; i++) {
+            puntuacion += comparador.compararConSonda(impostora);
+        }
+        return puntuacion;
+    }
+
+    private static List<Minutiae> extraer(long semilla) {
+        return Main.extraerMinucias(ImagenesSinteticas.huella(512, semilla), false, null, EscritorDepuracion.ninguno())
+                .getMinutiaeList();
+    }
+
+    private static List<Minutiae> muestra(List<Minutiae> minutiaeList, int cantidad, Random random) {
+        List<Minutiae> copia = new ArrayList<>(minutiaeList);
+        Collections.shuffle(copia, random);
+        return copia.subList(0, Math.min(cantidad, copia.size()));
+    }
+}
@@ -0,0 +1,91 @@
+package org.biometria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un benchmark por cada etapa pública del procesamiento, más el procesamiento completo, sobre huellas
+ * sintéticas de distintos tamaños. La entrada de cada etapa se calcula una sola vez, en la preparación,
+ * con las etapas anteriores. Con {@code ./gradlew jmh} se incluye el perfilador {@code gc}, que informa
+ * de la memoria asignada por operación; el procesamiento completo reutiliza el mismo pipeline, como
+ * {@code Main}, así que tras el calentamiento casi no asigna memoria del tamaño de la imagen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-Djava.awt.headless=true"})
+public class EtapasBenchmark {
+    @Param({"256", "512", "1024", "2048", "4096"})
+    public int lado;
+
+    private BufferedImage original;
+    private FingerPrintImage gris;
+    private FingerPrintImage ecualizada;
+    private FingerPrintImage binarizada;
+    private FingerPrintImage filtrada;
+    private FingerPrintImage adelgazada;
+    private Pipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        original = ImagenesSinteticas.huella(lado, 42);
+        gris = ProcesamientoImagenUtils.convertirRGBaGris(original, false);
+        ecualizada = ProcesamientoImagenUtils.convertirGrisAHistograma(gris);
+        binarizada = ProcesamientoImagenUtils.convertirABlancoYNegro(ecualizada);
+        filtrada = TransformacionesImagenUtils.aplicarFiltroRuidoBinario(binarizada);
+        adelgazada = TransformacionesImagenUtils.adelgazamientoZhangSuen(filtrada);
+        pipeline = Main.pipelineExtraccion(false, null);
+    }
+
+    @Benchmark
+    public FingerPrintImage convertirRGBaGris() {
+        return ProcesamientoImagenUtils.convertirRGBaGris(original, false);
+    }
+
+    @Benchmark
+    public FingerPrintImage convertirGrisAHistograma() {
+        return ProcesamientoImagenUtils.convertirGrisAHistograma(gris);
+    }
+
+    @Benchmark
+    public FingerPrintImage convertirABlancoYNegro() {
+        return ProcesamientoImagenUtils.convertirABlancoYNegro(ecualizada);
+    }
+
+    @Benchmark
+    public FingerPrintImage aplicarFiltroRuidoBinario() {
+        return TransformacionesImagenUtils.aplicarFiltroRuidoBinario(binarizada);
+    }
+
+    @Benchmark
+    public FingerPrintImage adelgazamientoZhangSuen() {
+        return TransformacionesImagenUtils.adelgazamientoZhangSuen(filtrada);
+    }
+
+    // detectarMinucias imprime cada minucia; se mide buscarMinucias, que hace la misma detección sin imprimir
+    @Benchmark
+    public List<Minutiae> detectarMinucias() {
+        return MinutiaeDetectionUtils.buscarMinucias(adelgazada);
+    }
+
+    @Benchmark
+    public FingerPrintImage extremoAExtremo() {
+        return Main.extraerMinucias(original, pipeline, EscritorDepuracion.ninguno());
+    }
+}
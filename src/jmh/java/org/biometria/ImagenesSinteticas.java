@@ -0,0 +1,88 @@
+package org.biometria;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Genera imágenes sintéticas y deterministas de huellas para los benchmarks: crestas sinusoidales
+ * en anillos alrededor de un núcleo, deformadas suavemente y con algo de ruido, de forma que todas las
+ * etapas (binarización, adelgazamiento, minucias) trabajan con una carga parecida a la de una huella real.
+ * Cada par de dislocaciones de fase opuestas crea una terminación y una bifurcación cercanas; su efecto
+ * decae con la distancia, así que sólo se aplica en un entorno del par y la densidad de minucias se
+ * mantiene al crecer la imagen sin que el coste de generarla deje de ser lineal.
+ */
+final class ImagenesSinteticas {
+    // Periodo de las crestas en píxeles, similar al de una huella escaneada a 500 dpi
+    private static final double PERIODO = 9.0;
+    // Lado del área que contiene, en media, un par de dislocaciones
+    private static final int AREA_POR_PAR = 48;
+    // Separación de las dos dislocaciones de un par y radio en el que se aplica su efecto
+    private static final double SEPARACION_PAR = 12.0;
+    private static final int RADIO_PAR = 40;
+
+    private ImagenesSinteticas() {
+    }
+
+    /**
+     * Crea una huella sintética cuadrada. La misma semilla produce siempre la misma imagen.
+     *
+     * @param lado   el ancho y alto en píxeles.
+     * @param semilla la semilla del ruido y la deformación.
+     * @return una imagen {@code TYPE_3BYTE_BGR}, como las que devuelve ImageIO para JPEG.
+     */
+    static BufferedImage huella(int lado, long semilla) {
+        Random random = new Random(semilla);
+        double centroX = lado * (0.4 + 0.2 * random.nextDouble());
+        double centroY = lado * (0.4 + 0.2 * random.nextDouble());
+        double fase = random.nextDouble() * 2 * Math.PI;
+        double deformacion = 1.5 + random.nextDouble();
+
+        float[] fases = new float[lado * lado];
+        for (int y = 0; y < lado; y++) {
+            for (int x = 0; x < lado; x++) {
+                double dx = x - centroX;
+                double dy = y - centroY;
+                double radio = Math.sqrt(dx * dx + dy * dy);
+                double angulo = Math.atan2(dy, dx);
+                fases[y * lado + x] = (float) (2 * Math.PI * radio / PERIODO + deformacion * Math.sin(2 * angulo + fase));
+            }
+        }
+
+        int numPares = Math.max(1, (lado / AREA_POR_PAR) * (lado / AREA_POR_PAR));
+        for (int i = 0; i < numPares; i++) {
+            double px = lado * random.nextDouble();
+            double py = lado * random.nextDouble();
+            double orientacion = random.nextDouble() * 2 * Math.PI;
+            double ox = Math.cos(orientacion) * SEPARACION_PAR / 2;
+            double oy = Math.sin(orientacion) * SEPARACION_PAR / 2;
+            int x0 = Math.max(0, (int) px - RADIO_PAR);
+            int x1 = Math.min(lado - 1, (int) px + RADIO_PAR);
+            int y0 = Math.max(0, (int) py - RADIO_PAR);
+            int y1 = Math.min(lado - 1, (int) py + RADIO_PAR);
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    double giro = Math.atan2(y - py - oy, x - px - ox) - Math.atan2(y - py + oy, x - px + ox);
+                    // Se normaliza a (-pi, pi] para que el salto de atan2 quede entre las dos dislocaciones
+                    if (giro > Math.PI) {
+                        giro -= 2 * Math.PI;
+                    } else if (giro <= -Math.PI) {
+                        giro += 2 * Math.PI;
+                    }
+                    fases[y * lado + x] += (float) giro;
+                }
+            }
+        }
+
+        BufferedImage imagen = new BufferedImage(lado, lado, BufferedImage.TYPE_3BYTE_BGR);
+        int[] fila = new int[lado];
+        for (int y = 0; y < lado; y++) {
+            for (int x = 0; x < lado; x++) {
+                int gris = (int) (128 + 90 * Math.sin(fases[y * lado + x]) + 20 * random.nextGaussian());
+                gris = Math.max(0, Math.min(255, gris));
+                fila[x] = gris << 16 | gris << 8 | gris;
+            }
+            imagen.setRGB(0, y, lado, 1, fila, 0, lado);
+        }
+        return imagen;
+    }
+}
@@ -0,0 +1,74 @@
+package org.biometria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tiempo de consulta de {@link IndiceGeometrico} según crece la galería, para comprobar que no es
+ * lineal en su tamaño. Las sondas son capturas simuladas de plantillas de la galería; la
+ * actualización mide una eliminación y una inserción.
+ * <p>
+ * Preparar la galería de un millón de plantillas lleva unos minutos y necesita unos 2 GB de memoria.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms3g", "-Xmx3g"})
+public class IndiceBenchmark {
+    private static final int SONDAS = 256;
+
+    @Param({"10000", "100000", "1000000"})
+    public int galeria;
+
+    private IndiceGeometrico indice;
+    private MinutiaeTemplate[] sondas;
+    private MinutiaeTemplate[] originales;
+    private int siguiente;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        Random random = new Random(42);
+        indice = new IndiceGeometrico();
+        originales = new MinutiaeTemplate[SONDAS];
+        sondas = new MinutiaeTemplate[SONDAS];
+        for (int id = 0; id < galeria; id++) {
+            MinutiaeTemplate plantilla = PlantillasSinteticas.aleatoria(random);
+            indice.insertar(id, plantilla);
+            if (id < SONDAS) {
+                originales[id] = plantilla;
+            }
+        }
+        for (int i = 0; i < SONDAS; i++) {
+            sondas[i] = PlantillasSinteticas.perturbar(originales[i], 20 * random.nextDouble() - 10, random);
+        }
+    }
+
+    @Benchmark
+    public int[] buscarCandidatos() {
+        siguiente = (siguiente + 1) % SONDAS;
+        return indice.buscarCandidatos(sondas[siguiente], 20);
+    }
+
+    @Benchmark
+    public boolean eliminarEInsertar() {
+        siguiente = (siguiente + 1) % SONDAS;
+        boolean eliminada = indice.eliminar(siguiente);
+        indice.insertar(siguiente, originales[siguiente]);
+        return eliminada;
+    }
+}
@@ -0,0 +1,61 @@
+package org.biometria;
+
+import java.util.Random;
+
+/**
+ * Genera plantillas de minucias sintéticas para los benchmarks de comparación e identificación, sin
+ * pasar por la extracción, de forma que se pueden crear galerías de millones de plantillas.
+ */
+final class PlantillasSinteticas {
+    private PlantillasSinteticas() {
+    }
+
+    /**
+     * Crea una plantilla con entre 30 y 50 minucias repartidas al azar en un área de 420x520 píxeles,
+     * una de cada tres bifurcación, con direcciones aleatorias.
+     *
+     * @param random el generador de números aleatorios.
+     * @return la plantilla.
+     */
+    static MinutiaeTemplate aleatoria(Random random) {
+        int n = 30 + random.nextInt(21);
+        MinutiaeTemplate plantilla = new MinutiaeTemplate(n);
+        for (int i = 0; i < n; i++) {
+            plantilla.anadir(20 + random.nextInt(400), 20 + random.nextInt(500), random.nextInt(3) == 0 ? 3 : 1,
+                    (byte) random.nextInt(256), (byte) random.nextInt(256), (byte) random.nextInt(256));
+        }
+        return plantilla;
+    }
+
+    /**
+     * Simula otra captura del mismo dedo: gira la plantilla, la desplaza, añade ruido de posición y
+     * dirección y descarta una de cada seis minucias.
+     *
+     * @param plantilla la plantilla original.
+     * @param grados    el giro en grados.
+     * @param random    el generador de números aleatorios.
+     * @return la plantilla perturbada.
+     */
+    static MinutiaeTemplate perturbar(MinutiaeTemplate plantilla, double grados, Random random) {
+        double radianes = Math.toRadians(grados);
+        double coseno = Math.cos(radianes);
+        double seno = Math.sin(radianes);
+        MinutiaeTemplate perturbada = new MinutiaeTemplate(plantilla.size());
+        for (int i = 0; i < plantilla.size(); i++) {
+            if (random.nextInt(6) == 0) {
+                continue;
+            }
+            int x = plantilla.getX(i);
+            int y = plantilla.getY(i);
+            // El desplazamiento mantiene las coordenadas positivas para giros de hasta 30 grados
+            int nx = (int) Math.round(x * coseno - y * seno + 300 + 2 * random.nextGaussian());
+            int ny = (int) Math.round(x * seno + y * coseno + 300 + 2 * random.nextGaussian());
+            byte[] angulos = new byte[MinutiaeTemplate.ANGULOS_POR_MINUCIA];
+            for (int a = 0; a < angulos.length; a++) {
+                angulos[a] = MinutiaeTemplate.cuantizarAngulo(plantilla.getAngulo(i, a) + grados + 3 * random.nextGaussian());
+            }
+            perturbada.anadir(nx, ny, plantilla.getType(i), angulos[0], angulos[1], angulos[2]);
+        }
+        return perturbada;
+    }
+}
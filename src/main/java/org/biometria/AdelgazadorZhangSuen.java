@@ -0,0 +1,300 @@
+package org.biometria;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Motor del adelgazamiento de Zhang-Suen sobre una rejilla de bytes ordenada por filas, donde 1 es
+ * un píxel de primer plano (cresta) y 0 es fondo.
+ * <p>
+ * Los 8 vecinos de cada píxel se empaquetan en un byte (el bit {@code i} corresponde al vecino
+ * {@code TransformacionesImagenUtils.nbrs[i]}) y la decisión de borrado de cada paso se consulta en
+ * una tabla de 256 entradas calculada a partir de las mismas reglas que el algoritmo original.
+ * Las dos primeras subiteraciones recorren toda la rejilla; a partir de ahí sólo se vuelven a
+ * evaluar los vecinos de los píxeles borrados en las dos subiteraciones anteriores, que son los
+ * únicos cuya vecindad ha cambiado desde la última vez que se evaluaron con la misma tabla.
+ * <p>
+ * Las filas interiores se reparten en bandas. Dentro de una subiteración cada decisión sólo lee el
+ * estado anterior, así que las bandas se evalúan de forma independiente (leyendo una fila de halo
+ * por arriba y por abajo) y los borrados se aplican cuando todas han terminado. Sin pool se usa una
+ * única banda en el hilo actual; con pool, el resultado es idéntico al secuencial.
+ * <p>
+ * Cada instancia reutiliza sus colas y marcas entre llamadas, por lo que no es segura para varios
+ * hilos; {@link #porHilo()} devuelve una instancia propia del hilo actual.
+ */
+final class AdelgazadorZhangSuen {
+    private static final boolean[] BORRAR_PASO1 = construirTabla(0);
+    private static final boolean[] BORRAR_PASO2 = construirTabla(1);
+
+    // Por debajo de este alto las bandas no compensan el coste de repartirlas
+    private static final int FILAS_MINIMAS_POR_BANDA = 32;
+
+    private static final ThreadLocal<AdelgazadorZhangSuen> POR_HILO = ThreadLocal.withInitial(AdelgazadorZhangSuen::new);
+
+    private Banda[] bandas = new Banda[0];
+    private int numBandas;
+
+    // Marca con la generación actual los píxeles ya evaluados en esta subiteración; un byte por píxel
+    // basta porque las marcas se borran cada 255 generaciones
+    private byte[] marcas = new byte[0];
+    private byte generacion;
+
+    // Estado de la llamada en curso, compartido con las tareas de las bandas
+    private byte[] grid;
+    private int width;
+    private int height;
+    private boolean[] tabla;
+    private int subiteracion;
+
+    /**
+     * Filas [inicio, fin) de la rejilla y píxeles borrados en ellas durante las tres últimas
+     * subiteraciones; la subiteración t usa la ranura t % 3.
+     */
+    private static final class Banda {
+        int inicio;
+        int fin;
+        final int[][] borrados = {new int[64], new int[64], new int[64]};
+        final int[] numBorrados = new int[3];
+    }
+
+    static AdelgazadorZhangSuen porHilo() {
+        return POR_HILO.get();
+    }
+
+    /**
+     * Adelgaza la rejilla en el sitio, en el hilo actual, hasta que el segundo paso deja de borrar
+     * píxeles. Los píxeles del borde de la rejilla nunca se modifican.
+     *
+     * @param grid   rejilla ordenada por filas, con 1 para primer plano y 0 para fondo.
+     * @param width  ancho de la rejilla.
+     * @param height alto de la rejilla.
+     */
+    void adelgazar(byte[] grid, int width, int height) {
+        adelgazar(grid, width, height, null);
+    }
+
+    /**
+     * Adelgaza la rejilla en el sitio repartiendo cada subiteración en bandas de filas sobre el pool.
+     *
+     * @param grid   rejilla ordenada por filas, con 1 para primer plano y 0 para fondo.
+     * @param width  ancho de la rejilla.
+     * @param height alto de la rejilla.
+     * @param pool   pool en el que evaluar las bandas, o null para trabajar en el hilo actual.
+     */
+    void adelgazar(byte[] grid, int width, int height, ForkJoinPool pool) {
+        if (width < 3 || height < 3)
+            return;
+        this.grid = grid;
+        this.width = width;
+        this.height = height;
+        prepararMarcas(width * height);
+        int interiores = height - 2;
+        prepararBandas(pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism() * 4, interiores / FILAS_MINIMAS_POR_BANDA)));
+
+        boolean firstStep = false;
+        boolean hasChanged;
+        subiteracion = 0;
+        long borradosTotales = 0;
+
+        try {
+            do {
+                firstStep = !firstStep;
+                tabla = firstStep ? BORRAR_PASO1 : BORRAR_PASO2;
+                if (subiteracion >= 2)
+                    siguienteGeneracion();
+
+                if (numBandas == 1)
+                    evaluarBanda(0);
+                else
+                    pool.invoke(new EvaluacionBandas(0, numBandas));
+
+                int actual = subiteracion % 3;
+                int totalBorrados = 0;
+                for (int b = 0; b < numBandas; b++) {
+                    Banda banda = bandas[b];
+                    int[] borrados = banda.borrados[actual];
+                    int n = banda.numBorrados[actual];
+                    for (int i = 0; i < n; i++)
+                        grid[borrados[i]] = 0;
+                    totalBorrados += n;
+                }
+                hasChanged = totalBorrados > 0;
+                borradosTotales += totalBorrados;
+                subiteracion++;
+            } while (firstStep || hasChanged);
+        } finally {
+            this.grid = null;
+        }
+        Metricas.incrementar(ContadorProceso.SUBITERACIONES_ZHANG_SUEN, subiteracion);
+        Metricas.incrementar(ContadorProceso.PIXELES_BORRADOS_ZHANG_SUEN, borradosTotales);
+    }
+
+    private final class EvaluacionBandas extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int desde;
+        private final int hasta;
+
+        EvaluacionBandas(int desde, int hasta) {
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected void compute() {
+            if (hasta - desde == 1) {
+                evaluarBanda(desde);
+                return;
+            }
+            int mitad = (desde + hasta) >>> 1;
+            invokeAll(new EvaluacionBandas(desde, mitad), new EvaluacionBandas(mitad, hasta));
+        }
+    }
+
+    private void evaluarBanda(int b) {
+        Banda banda = bandas[b];
+        int actual = subiteracion % 3;
+        banda.numBorrados[actual] = 0;
+
+        if (subiteracion < 2) {
+            recorrerTodo(banda, actual);
+            return;
+        }
+        int anterior = (subiteracion + 2) % 3;
+        int penultima = (subiteracion + 1) % 3;
+        // Los borrados de las bandas contiguas sólo afectan a las filas del borde de esta banda
+        for (int v = Math.max(0, b - 1); v <= Math.min(numBandas - 1, b + 1); v++) {
+            recorrerVecinos(banda, actual, bandas[v], anterior);
+            recorrerVecinos(banda, actual, bandas[v], penultima);
+        }
+    }
+
+    private void recorrerTodo(Banda banda, int actual) {
+        for (int r = banda.inicio; r < banda.fin; r++) {
+            int fila = r * width;
+            for (int c = 1; c < width - 1; c++) {
+                int k = fila + c;
+                if (grid[k] != 0 && tabla[vecindad(grid, k, width)])
+                    anadirBorrado(banda, actual, k);
+            }
+        }
+    }
+
+    private void recorrerVecinos(Banda banda, int actual, Banda origen, int ranura) {
+        int[] borrados = origen.borrados[ranura];
+        int n = origen.numBorrados[ranura];
+        for (int i = 0; i < n; i++) {
+            int centro = borrados[i];
+            int r = centro / width;
+            int rMin = Math.max(r - 1, banda.inicio);
+            int rMax = Math.min(r + 1, banda.fin - 1);
+            if (rMin > rMax)
+                continue;
+            int c = centro - r * width;
+            int cMin = Math.max(c - 1, 1);
+            int cMax = Math.min(c + 1, width - 2);
+            for (int rr = rMin; rr <= rMax; rr++) {
+                for (int cc = cMin; cc <= cMax; cc++) {
+                    int k = rr * width + cc;
+                    if (marcas[k] == generacion)
+                        continue;
+                    marcas[k] = generacion;
+                    if (grid[k] != 0 && tabla[vecindad(grid, k, width)])
+                        anadirBorrado(banda, actual, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Empaqueta los 8 vecinos del píxel k en un byte, en el orden de {@code TransformacionesImagenUtils.nbrs}:
+     * norte, noreste, este, sureste, sur, suroeste, oeste y noroeste.
+     */
+    static int vecindad(byte[] grid, int k, int width) {
+        return grid[k - width]
+                | grid[k - width + 1] << 1
+                | grid[k + 1] << 2
+                | grid[k + width + 1] << 3
+                | grid[k + width] << 4
+                | grid[k + width - 1] << 5
+                | grid[k - 1] << 6
+                | grid[k - width - 1] << 7;
+    }
+
+    private static void anadirBorrado(Banda banda, int ranura, int k) {
+        int n = banda.numBorrados[ranura];
+        if (n == banda.borrados[ranura].length)
+            banda.borrados[ranura] = Arrays.copyOf(banda.borrados[ranura], n * 2);
+        banda.borrados[ranura][n] = k;
+        banda.numBorrados[ranura] = n + 1;
+    }
+
+    // Reparte las filas interiores [1, height - 1) en bandas de alto similar
+    private void prepararBandas(int cantidad) {
+        if (bandas.length < cantidad) {
+            Banda[] nuevas = Arrays.copyOf(bandas, cantidad);
+            for (int b = bandas.length; b < cantidad; b++)
+                nuevas[b] = new Banda();
+            bandas = nuevas;
+        }
+        numBandas = cantidad;
+        int interiores = height - 2;
+        for (int b = 0; b < cantidad; b++) {
+            Banda banda = bandas[b];
+            banda.inicio = 1 + (int) ((long) interiores * b / cantidad);
+            banda.fin = 1 + (int) ((long) interiores * (b + 1) / cantidad);
+            Arrays.fill(banda.numBorrados, 0);
+        }
+    }
+
+    private void prepararMarcas(int tamano) {
+        if (marcas.length < tamano) {
+            marcas = new byte[tamano];
+            generacion = 0;
+        }
+    }
+
+    private void siguienteGeneracion() {
+        if (++generacion == 0) {
+            Arrays.fill(marcas, (byte) 0);
+            generacion = 1;
+        }
+    }
+
+    /**
+     * Calcula, para cada vecindad posible, si el píxel central se borra en el paso indicado: entre 2 y 6
+     * vecinos de primer plano, exactamente una transición fondo-primer plano al recorrerlos en círculo y
+     * al menos un vecino de fondo en cada uno de los dos grupos del paso.
+     */
+    private static boolean[] construirTabla(int step) {
+        int[][] nbrs = TransformacionesImagenUtils.nbrs;
+        int[][] group = TransformacionesImagenUtils.nbrGroups[step];
+        boolean[] tabla = new boolean[256];
+        for (int codigo = 0; codigo < 256; codigo++) {
+            int nn = Integer.bitCount(codigo);
+            if (nn < 2 || nn > 6)
+                continue;
+
+            int transiciones = 0;
+            for (int i = 0; i < nbrs.length - 1; i++) {
+                boolean actual = (codigo >> i & 1) != 0;
+                boolean siguiente = (codigo >> ((i + 1) % (nbrs.length - 1)) & 1) != 0;
+                if (!actual && siguiente)
+                    transiciones++;
+            }
+            if (transiciones != 1)
+                continue;
+
+            boolean blancoEnAmbos = true;
+            for (int[] subgrupo : group) {
+                boolean hayBlanco = false;
+                for (int vecino : subgrupo)
+                    hayBlanco |= (codigo >> vecino & 1) == 0;
+                blancoEnAmbos &= hayBlanco;
+            }
+            tabla[codigo] = blancoEnAmbos;
+        }
+        return tabla;
+    }
+}
@@ -0,0 +1,229 @@
+package org.biometria;
+
+/**
+ * Representa una imagen binaria de huella dactilar empaquetada a nivel de bit. Cada fila ocupa
+ * {@link #getWordsPerRow()} palabras {@code long} consecutivas y el píxel {@code (x, y)} es el bit
+ * {@code x % 64} de la palabra {@code x / 64} de la fila {@code y}. Un bit a 1 corresponde a
+ * {@link FingerPrintImage#BLANCO} y un bit a 0 a {@link FingerPrintImage#NEGRO}.
+ * <p>
+ * Los bits de la última palabra de cada fila que quedan fuera del ancho de la imagen se mantienen
+ * siempre a 0, de forma que los filtros pueden operar con palabras completas.
+ */
+public class BinaryFingerPrintImage {
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * Construye una nueva imagen binaria, con todos los píxeles a negro.
+     *
+     * @param width  el ancho de la imagen en píxeles. Debe ser mayor que 0.
+     * @param height la altura de la imagen en píxeles. Debe ser mayor que 0.
+     * @throws IllegalArgumentException si el ancho o la altura son menores o iguales a 0.
+     */
+    public BinaryFingerPrintImage(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Construye una imagen binaria sobre un búfer de palabras ya existente, sin copiarlo ni borrarlo.
+     *
+     * @param width  el ancho de la imagen en píxeles. Debe ser mayor que 0.
+     * @param height la altura de la imagen en píxeles. Debe ser mayor que 0.
+     * @param words  búfer de al menos {@code palabrasPorFila(width) * height} palabras, o null para reservar uno nuevo.
+     * @throws IllegalArgumentException si las dimensiones no son válidas o el búfer es demasiado pequeño.
+     */
+    BinaryFingerPrintImage(int width, int height, long[] words) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        int wordsPerRow = palabrasPorFila(width);
+        if ((long) wordsPerRow * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("La imagen es demasiado grande.");
+        }
+        if (words == null) {
+            words = new long[wordsPerRow * height];
+        } else if (words.length < wordsPerRow * height) {
+            throw new IllegalArgumentException("El búfer de palabras es menor que la imagen.");
+        }
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = wordsPerRow;
+        this.words = words;
+    }
+
+    /**
+     * Empaqueta una imagen binarizada. Cualquier valor distinto de {@link FingerPrintImage#NEGRO}
+     * se considera blanco.
+     *
+     * @param imagenByN la imagen en blanco y negro.
+     * @return la imagen empaquetada.
+     */
+    public static BinaryFingerPrintImage desde(FingerPrintImage imagenByN) {
+        return desde(imagenByN, new BinaryFingerPrintImage(imagenByN.getWidth(), imagenByN.getHeight()));
+    }
+
+    /**
+     * Empaqueta una imagen binarizada sobre una imagen empaquetada ya existente, que se sobrescribe entera.
+     *
+     * @param imagenByN la imagen en blanco y negro.
+     * @param imagen    la imagen empaquetada de destino, del mismo tamaño.
+     * @return la imagen de destino.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
+     */
+    static BinaryFingerPrintImage desde(FingerPrintImage imagenByN, BinaryFingerPrintImage imagen) {
+        int width = imagenByN.getWidth();
+        int height = imagenByN.getHeight();
+        if (imagen.width != width || imagen.height != height) {
+            throw new IllegalArgumentException("Las imágenes deben tener el mismo tamaño.");
+        }
+        byte[] pixeles = imagenByN.getPixels();
+        for (int y = 0; y < height; y++) {
+            int fila = imagenByN.getRowOffset(y);
+            int filaBits = imagen.getRowOffset(y);
+            long palabra = 0;
+            for (int x = 0; x < width; x++) {
+                if (pixeles[fila + x] != FingerPrintImage.NEGRO) {
+                    palabra |= 1L << x;
+                }
+                if ((x & 63) == 63 || x == width - 1) {
+                    imagen.words[filaBits + (x >>> 6)] = palabra;
+                    palabra = 0;
+                }
+            }
+        }
+        return imagen;
+    }
+
+    /**
+     * Desempaqueta la imagen a un píxel por byte.
+     *
+     * @return una nueva imagen con valores {@link FingerPrintImage#BLANCO} y {@link FingerPrintImage#NEGRO}.
+     */
+    public FingerPrintImage toFingerPrintImage() {
+        return toFingerPrintImage(new FingerPrintImage(width, height));
+    }
+
+    /**
+     * Desempaqueta la imagen sobre una imagen ya existente, que se sobrescribe entera.
+     *
+     * @param imagen la imagen de destino, del mismo tamaño.
+     * @return la imagen de destino, con valores {@link FingerPrintImage#BLANCO} y {@link FingerPrintImage#NEGRO}.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
+     */
+    FingerPrintImage toFingerPrintImage(FingerPrintImage imagen) {
+        if (imagen.getWidth() != width || imagen.getHeight() != height) {
+            throw new IllegalArgumentException("Las imágenes deben tener el mismo tamaño.");
+        }
+        byte[] pixeles = imagen.getPixels();
+        for (int y = 0; y < height; y++) {
+            int fila = imagen.getRowOffset(y);
+            int filaBits = getRowOffset(y);
+            long palabra = 0;
+            for (int x = 0; x < width; x++) {
+                if ((x & 63) == 0) {
+                    palabra = words[filaBits + (x >>> 6)];
+                }
+                pixeles[fila + x] = (byte) (palabra & 1L);
+                palabra >>>= 1;
+            }
+        }
+        return imagen;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Devuelve el número de palabras de 64 bits que ocupa cada fila.
+     *
+     * @return las palabras por fila.
+     */
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * Devuelve el búfer de palabras subyacente, sin copiarlo. Si la imagen se construyó sobre un búfer
+     * reutilizado puede ser mayor que {@code getWordsPerRow() * getHeight()}.
+     *
+     * @return las palabras de la imagen, fila a fila.
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /**
+     * Devuelve la posición en {@link #getWords()} de la primera palabra de la fila indicada.
+     *
+     * @param y la fila.
+     * @return el desplazamiento de la fila.
+     * @throws IllegalArgumentException si la fila está fuera de los límites de la imagen.
+     */
+    public int getRowOffset(int y) {
+        if (y < 0 || y >= height) {
+            throw new IllegalArgumentException("La fila está fuera de los límites.");
+        }
+        return y * wordsPerRow;
+    }
+
+    /**
+     * Obtiene el valor del píxel en las coordenadas especificadas.
+     *
+     * @param x la coordenada x del píxel (horizontal).
+     * @param y la coordenada y del píxel (vertical).
+     * @return {@link FingerPrintImage#BLANCO} o {@link FingerPrintImage#NEGRO}.
+     * @throws IllegalArgumentException si las coordenadas están fuera de los límites de la imagen.
+     */
+    public int getPixel(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Las coordenadas del píxel están fuera de los límites.");
+        }
+        return (int) ((words[y * wordsPerRow + (x >>> 6)] >>> x) & 1L);
+    }
+
+    /**
+     * Establece el valor del píxel en las coordenadas especificadas.
+     *
+     * @param x     la coordenada x del píxel (horizontal).
+     * @param y     la coordenada y del píxel (vertical).
+     * @param valor {@link FingerPrintImage#NEGRO} para negro, cualquier otro valor para blanco.
+     * @throws IllegalArgumentException si las coordenadas están fuera de los límites de la imagen.
+     */
+    public void setPixel(int x, int y, int valor) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Las coordenadas del píxel están fuera de los límites.");
+        }
+        int k = y * wordsPerRow + (x >>> 6);
+        if (valor != FingerPrintImage.NEGRO) {
+            words[k] |= 1L << x;
+        } else {
+            words[k] &= ~(1L << x);
+        }
+    }
+
+    /**
+     * Calcula la máscara de columnas interiores (todas salvo la primera y la última) para filas de
+     * {@code width} píxeles.
+     *
+     * @param width el ancho de la fila en píxeles.
+     * @return una palabra por cada palabra de la fila, con los bits interiores a 1.
+     */
+    static long[] mascaraInterior(int width) {
+        long[] mascara = new long[palabrasPorFila(width)];
+        for (int x = 1; x < width - 1; x++) {
+            mascara[x >>> 6] |= 1L << x;
+        }
+        return mascara;
+    }
+
+    static int palabrasPorFila(int width) {
+        return (width + 63) >>> 6;
+    }
+}
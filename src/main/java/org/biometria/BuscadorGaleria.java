@@ -0,0 +1,313 @@
+package org.biometria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Búsqueda 1:N de una sonda en una {@link GaleriaPlantillas} usando varios núcleos para una sola consulta.
+ * <p>
+ * La galería se reparte en fragmentos contiguos y cada uno se compara con la sonda en su propia tarea,
+ * con el {@link ComparadorMinucias} del hilo que la ejecuta, guardando sus mejores resultados en un montículo de mínimos
+ * de tamaño fijo sobre un array de {@code long}. Al terminar se mezclan los montículos de todos los
+ * fragmentos.
+ * <p>
+ * Cada consulta puede tener un plazo: al agotarse, los fragmentos dejan de comparar y se devuelven los
+ * mejores resultados encontrados hasta entonces. También puede tener un umbral de aceptación: en cuanto
+ * un fragmento encuentra una plantilla con esa puntuación o más, todos se detienen.
+ * <p>
+ * Se pueden lanzar varias búsquedas a la vez mientras no se añadan plantillas a la galería.
+ */
+public class BuscadorGaleria {
+    /**
+     * Plazo que indica que la búsqueda no tiene límite de tiempo.
+     */
+    public static final long SIN_PLAZO = Long.MAX_VALUE;
+
+    /**
+     * Umbral que indica que la búsqueda no termina al encontrar una puntuación alta.
+     */
+    public static final int SIN_UMBRAL = Integer.MAX_VALUE;
+
+    // Comparaciones entre cada comprobación del plazo y de la aceptación
+    private static final int COMPARACIONES_POR_COMPROBACION = 64;
+
+    /**
+     * Resultado de una búsqueda: las plantillas con mejor puntuación, de mayor a menor, y si la búsqueda
+     * recorrió toda la galería.
+     */
+    public static class ResultadoBusqueda {
+        private final int[] indices;
+        private final int[] ids;
+        private final int[] puntuaciones;
+        private final boolean plazoAgotado;
+        private final boolean aceptada;
+        private final long duracionNanos;
+
+        ResultadoBusqueda(int[] indices, int[] ids, int[] puntuaciones, boolean plazoAgotado, boolean aceptada,
+                          long duracionNanos) {
+            this.indices = indices;
+            this.ids = ids;
+            this.puntuaciones = puntuaciones;
+            this.plazoAgotado = plazoAgotado;
+            this.aceptada = aceptada;
+            this.duracionNanos = duracionNanos;
+        }
+
+        public int getNumResultados() {
+            return indices.length;
+        }
+
+        /**
+         * Devuelve el índice en la galería de un resultado.
+         *
+         * @param i la posición del resultado, de 0 (el mejor) a {@link #getNumResultados()} - 1.
+         * @return el índice de la plantilla.
+         */
+        public int getIndice(int i) {
+            return indices[i];
+        }
+
+        public int getId(int i) {
+            return ids[i];
+        }
+
+        public int getPuntuacion(int i) {
+            return puntuaciones[i];
+        }
+
+        /**
+         * Indica si la búsqueda se detuvo por agotarse el plazo antes de recorrer toda la galería.
+         */
+        public boolean isPlazoAgotado() {
+            return plazoAgotado;
+        }
+
+        /**
+         * Indica si la búsqueda se detuvo al encontrar una plantilla que alcanza el umbral de aceptación.
+         */
+        public boolean isAceptada() {
+            return aceptada;
+        }
+
+        public long getDuracionNanos() {
+            return duracionNanos;
+        }
+    }
+
+    private final GaleriaPlantillas galeria;
+    private final ForkJoinPool pool;
+    private final int numFragmentos;
+
+    /**
+     * Crea un buscador que reparte cada consulta en tantos fragmentos como hilos tiene el pool común.
+     *
+     * @param galeria la galería donde buscar.
+     */
+    public BuscadorGaleria(GaleriaPlantillas galeria) {
+        this(galeria, ForkJoinPool.commonPool(), ForkJoinPool.commonPool().getParallelism());
+    }
+
+    /**
+     * Crea un buscador.
+     *
+     * @param galeria       la galería donde buscar.
+     * @param pool          el pool donde se comparan los fragmentos.
+     * @param numFragmentos el número de fragmentos en que se reparte cada consulta.
+     */
+    public BuscadorGaleria(GaleriaPlantillas galeria, ForkJoinPool pool, int numFragmentos) {
+        if (numFragmentos <= 0) {
+            throw new IllegalArgumentException("El número de fragmentos debe ser positivo.");
+        }
+        this.galeria = galeria;
+        this.pool = pool;
+        this.numFragmentos = numFragmentos;
+    }
+
+    /**
+     * Busca en toda la galería las plantillas más parecidas a la sonda.
+     *
+     * @param sonda         las minucias de la sonda.
+     * @param maxResultados el número máximo de resultados.
+     * @return los mejores resultados.
+     */
+    public ResultadoBusqueda buscar(List<Minutiae> sonda, int maxResultados) {
+        return buscar(MinutiaeTemplate.desde(sonda), maxResultados, SIN_PLAZO, SIN_UMBRAL);
+    }
+
+    /**
+     * Busca las plantillas más parecidas a la sonda.
+     *
+     * @param sonda             las minucias de la sonda.
+     * @param maxResultados     el número máximo de resultados.
+     * @param plazoNanos        el tiempo máximo de la búsqueda, o {@link #SIN_PLAZO}.
+     * @param umbralAceptacion  la puntuación a partir de la cual se da la búsqueda por terminada, o
+     *                          {@link #SIN_UMBRAL}.
+     * @return los mejores resultados encontrados.
+     */
+    public ResultadoBusqueda buscar(List<Minutiae> sonda, int maxResultados, long plazoNanos, int umbralAceptacion) {
+        return buscar(MinutiaeTemplate.desde(sonda), maxResultados, plazoNanos, umbralAceptacion);
+    }
+
+    /**
+     * Busca las plantillas más parecidas a la sonda.
+     *
+     * @param sonda             la plantilla de la sonda.
+     * @param maxResultados     el número máximo de resultados.
+     * @param plazoNanos        el tiempo máximo de la búsqueda, o {@link #SIN_PLAZO}.
+     * @param umbralAceptacion  la puntuación a partir de la cual se da la búsqueda por terminada, o
+     *                          {@link #SIN_UMBRAL}.
+     * @return los mejores resultados encontrados.
+     * @throws IllegalArgumentException si el número de resultados o el plazo no son positivos.
+     */
+    public ResultadoBusqueda buscar(MinutiaeTemplate sonda, int maxResultados, long plazoNanos, int umbralAceptacion) {
+        if (maxResultados <= 0) {
+            throw new IllegalArgumentException("El número de resultados debe ser positivo.");
+        }
+        if (plazoNanos <= 0) {
+            throw new IllegalArgumentException("El plazo debe ser positivo.");
+        }
+        long inicio = System.nanoTime();
+        long limite = plazoNanos == SIN_PLAZO ? Long.MAX_VALUE : inicio + plazoNanos;
+        int total = galeria.size();
+        int fragmentos = Math.max(1, Math.min(numFragmentos, total));
+        AtomicBoolean aceptada = new AtomicBoolean();
+        AtomicBoolean plazoAgotado = new AtomicBoolean();
+
+        List<Callable<MonticuloMinimo>> tareas = new ArrayList<>(fragmentos);
+        for (int f = 0; f < fragmentos; f++) {
+            int desde = (int) ((long) total * f / fragmentos);
+            int hasta = (int) ((long) total * (f + 1) / fragmentos);
+            tareas.add(() -> buscarFragmento(sonda, desde, hasta, maxResultados, limite, umbralAceptacion,
+                    aceptada, plazoAgotado));
+        }
+
+        MonticuloMinimo mejores = new MonticuloMinimo(maxResultados);
+        for (Future<MonticuloMinimo> resultado : pool.invokeAll(tareas)) {
+            MonticuloMinimo fragmento = obtener(resultado);
+            for (int k = 0; k < fragmento.tamano; k++) {
+                mejores.ofrecer(fragmento.claves[k]);
+            }
+        }
+
+        long[] claves = Arrays.copyOf(mejores.claves, mejores.tamano);
+        Arrays.sort(claves);
+        int n = claves.length;
+        int[] indices = new int[n];
+        int[] ids = new int[n];
+        int[] puntuaciones = new int[n];
+        for (int k = 0; k < n; k++) {
+            long clave = claves[n - 1 - k];
+            indices[k] = indice(clave);
+            ids[k] = galeria.getId(indices[k]);
+            puntuaciones[k] = (int) (clave >>> 32);
+        }
+        return new ResultadoBusqueda(indices, ids, puntuaciones, plazoAgotado.get(), aceptada.get(),
+                System.nanoTime() - inicio);
+    }
+
+    private MonticuloMinimo buscarFragmento(MinutiaeTemplate sonda, int desde, int hasta, int maxResultados,
+                                            long limite, int umbralAceptacion, AtomicBoolean aceptada,
+                                            AtomicBoolean plazoAgotado) {
+        // Los fragmentos no esperan a otras tareas, así que un hilo nunca compara dos a la vez
+        ComparadorMinucias comparador = ComparadorMinucias.porHilo();
+        comparador.fijarSonda(sonda);
+        MonticuloMinimo mejores = new MonticuloMinimo(maxResultados);
+        for (int i = desde; i < hasta; i++) {
+            if ((i - desde) % COMPARACIONES_POR_COMPROBACION == 0) {
+                if (aceptada.get()) {
+                    break;
+                }
+                if (limite != Long.MAX_VALUE && System.nanoTime() - limite >= 0) {
+                    plazoAgotado.set(true);
+                    break;
+                }
+            }
+            int puntuacion = galeria.compararConSonda(i, comparador);
+            mejores.ofrecer(clave(puntuacion, i));
+            if (puntuacion >= umbralAceptacion) {
+                aceptada.set(true);
+                break;
+            }
+        }
+        return mejores;
+    }
+
+    private static MonticuloMinimo obtener(Future<MonticuloMinimo> resultado) {
+        try {
+            return resultado.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Búsqueda interrumpida.", e);
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof RuntimeException) {
+                throw (RuntimeException) causa;
+            }
+            if (causa instanceof Error) {
+                throw (Error) causa;
+            }
+            throw new IllegalStateException(causa);
+        }
+    }
+
+    // Puntuación en los 32 bits altos; a igual puntuación, gana el índice más bajo
+    private static long clave(int puntuacion, int indice) {
+        return (long) puntuacion << 32 | (Integer.MAX_VALUE - indice);
+    }
+
+    private static int indice(long clave) {
+        return Integer.MAX_VALUE - (int) clave;
+    }
+
+    /**
+     * Montículo de mínimos de tamaño fijo que conserva las claves más altas que se le ofrecen.
+     */
+    private static final class MonticuloMinimo {
+        final long[] claves;
+        int tamano;
+
+        MonticuloMinimo(int capacidad) {
+            this.claves = new long[capacidad];
+        }
+
+        void ofrecer(long clave) {
+            if (tamano < claves.length) {
+                // Se añade al final y sube hasta su sitio
+                int k = tamano++;
+                while (k > 0) {
+                    int padre = (k - 1) >>> 1;
+                    if (claves[padre] <= clave) {
+                        break;
+                    }
+                    claves[k] = claves[padre];
+                    k = padre;
+                }
+                claves[k] = clave;
+            } else if (clave > claves[0]) {
+                // Sustituye a la raíz, la menor, y baja hasta su sitio
+                int k = 0;
+                while (true) {
+                    int hijo = 2 * k + 1;
+                    if (hijo >= tamano) {
+                        break;
+                    }
+                    if (hijo + 1 < tamano && claves[hijo + 1] < claves[hijo]) {
+                        hijo++;
+                    }
+                    if (claves[hijo] >= clave) {
+                        break;
+                    }
+                    claves[k] = claves[hijo];
+                    k = hijo;
+                }
+                claves[k] = clave;
+            }
+        }
+    }
+}
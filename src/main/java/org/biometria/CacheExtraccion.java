@@ -0,0 +1,507 @@
+package org.biometria;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Caché de minucias extraídas, indexada por el contenido de la imagen. Cuando se vuelve a enviar la misma
+ * imagen con los mismos parámetros, se devuelven las minucias de la extracción anterior sin repetir el
+ * procesamiento.
+ * <p>
+ * La clave es un hash de 128 bits del contenido, junto con los parámetros que influyen en el resultado
+ * ({@code saltarEcualizacion}, la calidad mínima y la profundidad de trazado de los ángulos). Las imágenes
+ * que lee ImageIO se indexan por los bytes del archivo, sin decodificarlas, así que un acierto se ahorra
+ * también la decodificación; las que se leen como filas en escala de grises, por sus niveles de gris. El
+ * paralelismo del adelgazamiento no forma parte de la clave porque no cambia el resultado.
+ * <p>
+ * Si varios hilos piden a la vez una imagen que no está en la caché, sólo el primero la extrae; el resto
+ * espera a su resultado, o a su excepción.
+ * <p>
+ * En memoria se conservan las entradas usadas más recientemente hasta el tamaño máximo indicado. Si se
+ * indica un directorio, cada extracción se guarda además en un archivo {@code <clave>.minucias}, que se
+ * consulta cuando la entrada no está en memoria. Los errores de ese directorio sólo se registran: la
+ * imagen se procesa como si no estuviera en la caché.
+ * <p>
+ * Cada entrada se guarda en memoria en arrays paralelos de tipos primitivos ({@link Entrada}): las
+ * coordenadas, el tipo y los tres ángulos con su precisión completa, de modo que las minucias devueltas
+ * son idénticas a las de la extracción. Las minucias devueltas son una vista de sólo lectura de la entrada,
+ * que crea los objetos a medida que se piden, y pueden compartirse entre llamadas. Es segura para varios hilos.
+ */
+public class CacheExtraccion {
+    private final static Logger LOGGER = Logger.getLogger(CacheExtraccion.class.getName());
+
+    // Se cambia cuando cambia el procesamiento, para no reutilizar resultados de otra versión
+    private static final int VERSION = 2;
+    private static final int MAGIA_ARCHIVO = 0x4D434558;
+    // Origen de los datos con los que se calcula la clave
+    private static final int TIPO_FILAS_GRIS = -1;
+    private static final int TIPO_ARCHIVO = -2;
+
+    // Tamaño en memoria de cada entrada con punteros comprimidos: el nodo del LinkedHashMap (40 bytes), la
+    // clave (32), la entrada (24) y las cabeceras de sus cuatro arrays (64); y de cada minucia en los arrays
+    private static final long BYTES_POR_ENTRADA = 160;
+    private static final long BYTES_POR_MINUCIA = 2 * Integer.BYTES + 1 + Entrada.ANGULOS * Double.BYTES;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long PRIMO1 = 0x9E3779B97F4A7C15L;
+    private static final long PRIMO2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIMO3 = 0x165667B19E3779F9L;
+    private static final long PRIMO4 = 0x85EBCA77C2B2AE63L;
+
+    /**
+     * Clave de una extracción: hash de los píxeles y de los parámetros.
+     */
+    static final class Clave {
+        final long alto;
+        final long bajo;
+
+        Clave(long alto, long bajo) {
+            this.alto = alto;
+            this.bajo = bajo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Clave)) {
+                return false;
+            }
+            Clave otra = (Clave) o;
+            return alto == otra.alto && bajo == otra.bajo;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(alto ^ bajo);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", alto, bajo);
+        }
+    }
+
+    /**
+     * Minucias de una extracción en arrays paralelos de tipos primitivos, con los ángulos en {@code double}
+     * para conservarlos exactos; los ángulos nulos se guardan como NaN. Se recorre como una lista de
+     * sólo lectura que crea cada {@link Minutiae} al pedirla.
+     */
+    static final class Entrada extends AbstractList<Minutiae> implements RandomAccess {
+        static final int ANGULOS = 3;
+
+        private final int[] xs;
+        private final int[] ys;
+        private final byte[] tipos;
+        private final double[] angulos;
+
+        Entrada(int size) {
+            this.xs = new int[size];
+            this.ys = new int[size];
+            this.tipos = new byte[size];
+            this.angulos = new double[size * ANGULOS];
+        }
+
+        static Entrada desde(List<Minutiae> minutiaeList) {
+            Entrada entrada = new Entrada(minutiaeList.size());
+            int i = 0;
+            for (Minutiae minutia : minutiaeList) {
+                entrada.anadir(i, minutia.getX(), minutia.getY(), minutia.getType());
+                Double[] angles = minutia.getAngles();
+                for (int a = 0; a < Math.min(angles.length, ANGULOS); a++) {
+                    entrada.angulos[i * ANGULOS + a] = angles[a] == null ? Double.NaN : angles[a];
+                }
+                i++;
+            }
+            return entrada;
+        }
+
+        private void anadir(int i, int x, int y, int type) {
+            if (type != 1 && type != 3) {
+                throw new IllegalArgumentException("Tipo de minucia desconocido: " + type);
+            }
+            xs[i] = x;
+            ys[i] = y;
+            tipos[i] = (byte) type;
+        }
+
+        @Override
+        public Minutiae get(int i) {
+            int base = i * ANGULOS;
+            if (tipos[i] == 1) {
+                return new CorteMinutiae(xs[i], ys[i], angulo(base));
+            }
+            return new BifurcacionMinutiae(xs[i], ys[i], new Double[]{angulo(base), angulo(base + 1), angulo(base + 2)});
+        }
+
+        private Double angulo(int posicion) {
+            double angulo = angulos[posicion];
+            return Double.isNaN(angulo) ? null : angulo;
+        }
+
+        @Override
+        public int size() {
+            return xs.length;
+        }
+    }
+
+    private final long maxBytes;
+    private final Path directorio;
+    private final LinkedHashMap<Clave, Entrada> entradas = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Extracciones en curso, para que las peticiones simultáneas de la misma imagen esperen a la primera
+    private final ConcurrentHashMap<Clave, CompletableFuture<Entrada>> enCurso = new ConcurrentHashMap<>();
+
+    private final LongAdder aciertosMemoria = new LongAdder();
+    private final LongAdder aciertosDisco = new LongAdder();
+    private final LongAdder esperas = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+
+    /**
+     * Crea una caché sólo en memoria.
+     *
+     * @param maxBytes el tamaño aproximado máximo de las entradas en memoria.
+     */
+    public CacheExtraccion(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Crea una caché en memoria y, opcionalmente, en disco.
+     *
+     * @param maxBytes   el tamaño aproximado máximo de las entradas en memoria.
+     * @param directorio el directorio donde se guardan las extracciones, o null para no usar el disco.
+     * @throws IllegalArgumentException si el tamaño máximo no es positivo.
+     */
+    public CacheExtraccion(long maxBytes, Path directorio) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("El tamaño máximo de la caché debe ser positivo.");
+        }
+        this.maxBytes = maxBytes;
+        this.directorio = directorio;
+    }
+
+    /**
+     * Devuelve las minucias de una imagen codificada (PNG, JPEG...), extrayéndolas sólo si no están en la
+     * caché. La clave se calcula sobre los bytes del archivo, así que la extracción es la única que
+     * necesita decodificarlos.
+     *
+     * @param contenido          el contenido del archivo de imagen.
+     * @param saltarEcualizacion el parámetro con el que se extraen las minucias.
+     * @param calidadMinima      la calidad mínima con la que se extraen las minucias, o 0 si no se evalúa.
+     * @param extraccion         la extracción a ejecutar si la imagen no está en la caché.
+     * @return las minucias, de sólo lectura.
+     */
+    public List<Minutiae> obtener(byte[] contenido, boolean saltarEcualizacion, double calidadMinima,
+                                  Supplier<List<Minutiae>> extraccion) {
+        return obtener(clave(contenido, saltarEcualizacion, calidadMinima), extraccion);
+    }
+
+    /**
+     * Devuelve las minucias de una imagen leída como filas en escala de grises, por ejemplo con
+     * {@link LectorPGM}, extrayéndolas sólo si no están en la caché. La clave se calcula sobre los
+     * niveles de gris, así que no coincide con la de la misma imagen guardada en otro formato.
+     *
+     * @param fuente             las filas de la imagen; se recorren una vez para calcular la clave.
+     * @param saltarEcualizacion el parámetro con el que se extraen las minucias.
+     * @param calidadMinima      la calidad mínima con la que se extraen las minucias, o 0 si no se evalúa.
+     * @param extraccion         la extracción a ejecutar si la imagen no está en la caché.
+     * @return las minucias, de sólo lectura.
+     */
+    public List<Minutiae> obtener(FuenteFilasGris fuente, boolean saltarEcualizacion, double calidadMinima,
+                                  Supplier<List<Minutiae>> extraccion) {
+        return obtener(clave(fuente, saltarEcualizacion, calidadMinima), extraccion);
+    }
+
+    private List<Minutiae> obtener(Clave clave, Supplier<List<Minutiae>> extraccion) {
+        Entrada entrada = buscarMemoria(clave);
+        if (entrada != null) {
+            aciertosMemoria.increment();
+            return entrada;
+        }
+        CompletableFuture<Entrada> propia = new CompletableFuture<>();
+        CompletableFuture<Entrada> ajena = enCurso.putIfAbsent(clave, propia);
+        if (ajena != null) {
+            esperas.increment();
+            return esperar(ajena);
+        }
+        try {
+            entrada = cargarOExtraer(clave, extraccion);
+            propia.complete(entrada);
+            return entrada;
+        } catch (RuntimeException | Error e) {
+            propia.completeExceptionally(e);
+            throw e;
+        } finally {
+            enCurso.remove(clave, propia);
+        }
+    }
+
+    private synchronized Entrada buscarMemoria(Clave clave) {
+        return entradas.get(clave);
+    }
+
+    private static Entrada esperar(CompletableFuture<Entrada> extraccion) {
+        try {
+            return extraccion.join();
+        } catch (CompletionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof RuntimeException) {
+                throw (RuntimeException) causa;
+            }
+            if (causa instanceof Error) {
+                throw (Error) causa;
+            }
+            throw e;
+        }
+    }
+
+    // Sólo la llama el hilo que ha registrado la extracción en curso de la clave
+    private Entrada cargarOExtraer(Clave clave, Supplier<List<Minutiae>> extraccion) {
+        // Otra extracción de la misma clave puede haber terminado entre la consulta y el registro
+        Entrada entrada = buscarMemoria(clave);
+        if (entrada != null) {
+            aciertosMemoria.increment();
+            return entrada;
+        }
+        entrada = leerDisco(clave);
+        if (entrada != null) {
+            aciertosDisco.increment();
+        } else {
+            fallos.increment();
+            entrada = Entrada.desde(extraccion.get());
+            escribirDisco(clave, entrada);
+        }
+        guardar(clave, entrada);
+        return entrada;
+    }
+
+    private synchronized void guardar(Clave clave, Entrada entrada) {
+        Entrada anterior = entradas.put(clave, entrada);
+        if (anterior != null) {
+            bytes -= tamano(anterior);
+        }
+        bytes += tamano(entrada);
+        // Se descartan las menos usadas recientemente, pero nunca la que se acaba de guardar
+        Iterator<Entrada> iterador = entradas.values().iterator();
+        while (bytes > maxBytes && entradas.size() > 1) {
+            bytes -= tamano(iterador.next());
+            iterador.remove();
+        }
+    }
+
+    private static long tamano(Entrada entrada) {
+        return BYTES_POR_ENTRADA + BYTES_POR_MINUCIA * entrada.size();
+    }
+
+    public long getAciertosMemoria() {
+        return aciertosMemoria.sum();
+    }
+
+    public long getAciertosDisco() {
+        return aciertosDisco.sum();
+    }
+
+    /**
+     * @return las peticiones que no estaban en la caché pero han reutilizado la extracción en curso de otro hilo.
+     */
+    public long getEsperas() {
+        return esperas.sum();
+    }
+
+    public long getFallos() {
+        return fallos.sum();
+    }
+
+    public synchronized int size() {
+        return entradas.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Calcula la clave de una imagen a partir del contenido de su archivo.
+     *
+     * @param contenido          el contenido del archivo.
+     * @param saltarEcualizacion el parámetro con el que se extraen las minucias.
+     * @param calidadMinima      la calidad mínima con la que se extraen las minucias.
+     * @return la clave.
+     */
+    static Clave clave(byte[] contenido, boolean saltarEcualizacion, double calidadMinima) {
+        Hash hash = parametros(saltarEcualizacion, calidadMinima);
+        hash.mezclar(contenido.length);
+        hash.mezclar(TIPO_ARCHIVO);
+        hash.mezclar(contenido);
+        return hash.terminar();
+    }
+
+    /**
+     * Calcula la clave de una imagen a partir de sus filas en escala de grises.
+     *
+     * @param fuente             las filas de la imagen.
+     * @param saltarEcualizacion el parámetro con el que se extraen las minucias.
+     * @param calidadMinima      la calidad mínima con la que se extraen las minucias.
+     * @return la clave.
+     */
+    static Clave clave(FuenteFilasGris fuente, boolean saltarEcualizacion, double calidadMinima) {
+        Hash hash = parametros(saltarEcualizacion, calidadMinima);
+        hash.mezclar((long) fuente.getWidth() << 32 | fuente.getHeight());
+        hash.mezclar(TIPO_FILAS_GRIS);
+        byte[] fila = new byte[fuente.getWidth()];
+        for (int y = 0; y < fuente.getHeight(); y++) {
+            fuente.leerFila(y, fila, 0);
+            hash.mezclar(fila);
+        }
+        return hash.terminar();
+    }
+
+    private static Hash parametros(boolean saltarEcualizacion, double calidadMinima) {
+        Hash hash = new Hash();
+        hash.mezclar(VERSION);
+        hash.mezclar(saltarEcualizacion ? 1 : 0);
+        hash.mezclar(Double.doubleToLongBits(calidadMinima));
+        hash.mezclar(MinutiaeDetectionUtils.PROFUNDIDAD_REQUERIDA);
+        return hash;
+    }
+
+    /**
+     * Hash no criptográfico de 128 bits en dos carriles independientes, que consumen 8 bytes por paso.
+     */
+    private static final class Hash {
+        private long h1 = PRIMO3;
+        private long h2 = PRIMO4;
+        private long longitud;
+
+        void mezclar(long v) {
+            h1 = Long.rotateLeft(h1 ^ v * PRIMO2, 31) * PRIMO1;
+            h2 = Long.rotateLeft(h2 + v * PRIMO4, 27) * PRIMO3 + h1;
+            longitud += 8;
+        }
+
+        void mezclar(byte[] datos) {
+            int i = 0;
+            for (; i + 8 <= datos.length; i += 8) {
+                mezclar((long) LONG_LE.get(datos, i));
+            }
+            long resto = 0;
+            for (int k = 0; i < datos.length; i++, k += 8) {
+                resto |= (datos[i] & 0xFFL) << k;
+            }
+            mezclar(resto);
+            longitud += datos.length;
+        }
+
+        Clave terminar() {
+            return new Clave(avalancha(h1 ^ longitud), avalancha(h2 + h1));
+        }
+
+        private static long avalancha(long h) {
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            return h ^ h >>> 33;
+        }
+    }
+
+    private Entrada leerDisco(Clave clave) {
+        if (directorio == null) {
+            return null;
+        }
+        Path archivo = directorio.resolve(clave + ".minucias");
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(archivo)))) {
+            if (entrada.readInt() != MAGIA_ARCHIVO || entrada.readInt() != VERSION) {
+                return null;
+            }
+            int n = entrada.readInt();
+            // Cada minucia ocupa al menos 21 bytes tras los 12 de la cabecera
+            if (n < 0 || n > (Files.size(archivo) - 12) / 21) {
+                throw new IOException("número de minucias no válido: " + n);
+            }
+            Entrada minucias = new Entrada(n);
+            for (int i = 0; i < n; i++) {
+                int x = entrada.readInt();
+                int y = entrada.readInt();
+                int type = entrada.readInt();
+                int numAngulos = entrada.readUnsignedByte();
+                if (numAngulos != (type == 1 ? 1 : Entrada.ANGULOS)) {
+                    throw new IOException("la minucia " + i + " tiene " + numAngulos + " ángulos");
+                }
+                minucias.anadir(i, x, y, type);
+                for (int a = 0; a < numAngulos; a++) {
+                    minucias.angulos[i * Entrada.ANGULOS + a] = entrada.readDouble();
+                }
+            }
+            return minucias;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("No se pudo leer la caché " + archivo + ": " + e);
+            return null;
+        }
+    }
+
+    private void escribirDisco(Clave clave, List<Minutiae> minutiaeList) {
+        if (directorio == null) {
+            return;
+        }
+        Path archivo = directorio.resolve(clave + ".minucias");
+        Path temporal = null;
+        try {
+            Files.createDirectories(directorio);
+            // Se escribe en un temporal y se renombra, para que otro proceso nunca lea un archivo a medias
+            temporal = Files.createTempFile(directorio, clave.toString(), ".tmp");
+            try (DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+                salida.writeInt(MAGIA_ARCHIVO);
+                salida.writeInt(VERSION);
+                salida.writeInt(minutiaeList.size());
+                for (Minutiae minutia : minutiaeList) {
+                    salida.writeInt(minutia.getX());
+                    salida.writeInt(minutia.getY());
+                    salida.writeInt(minutia.getType());
+                    Double[] angles = minutia.getAngles();
+                    salida.writeByte(angles.length);
+                    for (Double angulo : angles) {
+                        salida.writeDouble(angulo == null ? Double.NaN : angulo);
+                    }
+                }
+            }
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warning("No se pudo escribir la caché " + archivo + ": " + e);
+            borrar(temporal);
+        }
+    }
+
+    private static void borrar(Path temporal) {
+        if (temporal == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(temporal);
+        } catch (IOException e) {
+            LOGGER.warning("No se pudo borrar " + temporal + ": " + e);
+        }
+    }
+}
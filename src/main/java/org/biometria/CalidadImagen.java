@@ -0,0 +1,64 @@
+package org.biometria;
+
+import java.util.Locale;
+
+/**
+ * Resultado de {@link EvaluadorCalidad}: tres indicadores entre 0 y 1 y la puntuación de la imagen, que
+ * es el menor de ellos, de modo que basta con que uno falle para rechazarla.
+ */
+public final class CalidadImagen {
+    private final double contraste;
+    private final double cobertura;
+    private final double densidadCrestas;
+
+    CalidadImagen(double contraste, double cobertura, double densidadCrestas) {
+        this.contraste = contraste;
+        this.cobertura = cobertura;
+        this.densidadCrestas = densidadCrestas;
+    }
+
+    /**
+     * @return la diferencia entre los niveles de gris máximo y mínimo, relativa a la de una captura normal.
+     */
+    public double getContraste() {
+        return contraste;
+    }
+
+    /**
+     * @return la fracción de bloques con variación suficiente para contener huella, relativa a la mínima esperada.
+     */
+    public double getCobertura() {
+        return cobertura;
+    }
+
+    /**
+     * @return las oscilaciones de gris por píxel de los bloques con huella, relativas a las de unas crestas
+     * nítidas; es bajo tanto en las zonas borrosas como en las que oscilan demasiado deprisa para ser crestas.
+     */
+    public double getDensidadCrestas() {
+        return densidadCrestas;
+    }
+
+    public double getPuntuacion() {
+        return Math.min(contraste, Math.min(cobertura, densidadCrestas));
+    }
+
+    /**
+     * @return el indicador que determina la puntuación, como explicación de un rechazo.
+     */
+    public String getMotivo() {
+        if (contraste <= cobertura && contraste <= densidadCrestas) {
+            return "contraste bajo";
+        }
+        if (cobertura <= densidadCrestas) {
+            return "poca superficie con huella";
+        }
+        return "crestas poco definidas o ruido";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.2f (contraste %.2f, cobertura %.2f, crestas %.2f)",
+                getPuntuacion(), contraste, cobertura, densidadCrestas);
+    }
+}
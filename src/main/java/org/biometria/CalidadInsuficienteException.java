@@ -0,0 +1,23 @@
+package org.biometria;
+
+import java.util.Locale;
+
+/**
+ * Se lanza cuando una imagen no alcanza la calidad mínima y se descarta antes de binarizarla y
+ * adelgazarla.
+ */
+public class CalidadInsuficienteException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final CalidadImagen calidad;
+
+    public CalidadInsuficienteException(CalidadImagen calidad, double minimo) {
+        super(String.format(Locale.ROOT, "Calidad insuficiente (%.2f < %.2f): %s",
+                calidad.getPuntuacion(), minimo, calidad.getMotivo()));
+        this.calidad = calidad;
+    }
+
+    public CalidadImagen getCalidad() {
+        return calidad;
+    }
+}
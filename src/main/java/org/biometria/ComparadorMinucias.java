@@ -0,0 +1,539 @@
+package org.biometria;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compara dos conjuntos de minucias (verificación 1:1) y devuelve una puntuación de similitud.
+ * <p>
+ * La alineación se busca por votación: cada par de minucias del mismo tipo propone la rotación que
+ * lleva la dirección de una sobre la otra y la traslación que entonces hace coincidir sus posiciones.
+ * Los votos se acumulan en una rejilla de rotación y traslación, y la celda con más votos da la
+ * transformación, promediando los pares que la votaron. Con ella se transforma la primera plantilla
+ * y cada minucia se empareja con la minucia libre más cercana de la segunda, si coincide en tipo y
+ * está lo bastante cerca en posición y dirección. La transformación se ajusta después por mínimos
+ * cuadrados sobre esas parejas y se vuelve a emparejar, quedándose con el mejor resultado.
+ * <p>
+ * Ambas plantillas se centran en su centroide, de forma que la rotación no desplaza las minucias
+ * lejanas al origen y la traslación votada es pequeña. Se trabaja con los ángulos cuantizados de
+ * {@link MinutiaeTemplate} (la dirección de cada minucia es {@link MinutiaeTemplate#getDireccionCuantizada},
+ * que en las bifurcaciones no depende del orden en que se trazaron sus caminos) y, en los bucles sobre
+ * pares, con tablas de senos y cosenos en coma fija y aritmética entera. Las minucias se ordenan por
+ * tipo y coordenada x para recorrer sólo las del mismo tipo y, al emparejar, sólo las cercanas.
+ * <p>
+ * El acumulador y el resto de memoria de trabajo se reutilizan entre llamadas (del acumulador sólo se
+ * limpian las celdas votadas), así que cada instancia no es segura para varios hilos; {@link #porHilo()}
+ * devuelve una instancia propia del hilo actual.
+ */
+public class ComparadorMinucias {
+    /**
+     * Puntuación de dos plantillas cuyas minucias se emparejan todas.
+     */
+    public static final int PUNTUACION_MAXIMA = 1000;
+
+    // Senos y cosenos de los 256 ángulos cuantizados, en coma fija con 14 bits decimales
+    private static final int BITS_TRIGONOMETRIA = 14;
+    private static final int[] SENO = new int[256];
+    private static final int[] COSENO = new int[256];
+
+    static {
+        for (int q = 0; q < 256; q++) {
+            double radianes = Math.toRadians(MinutiaeTemplate.descuantizarAngulo(q));
+            SENO[q] = (int) Math.round(Math.sin(radianes) * (1 << BITS_TRIGONOMETRIA));
+            COSENO[q] = (int) Math.round(Math.cos(radianes) * (1 << BITS_TRIGONOMETRIA));
+        }
+    }
+
+    // Celdas del acumulador: 32 rotaciones de 8 pasos (11,25 grados) y traslaciones de 16 píxeles en ±256
+    private static final int BITS_CELDA_ROTACION = 3;
+    private static final int CELDAS_ROTACION = 256 >> BITS_CELDA_ROTACION;
+    private static final int BITS_CELDA_TRASLACION = 4;
+    private static final int TRASLACION_MAXIMA = 256;
+    private static final int CELDAS_TRASLACION = 2 * TRASLACION_MAXIMA >> BITS_CELDA_TRASLACION;
+
+    // Rotación máxima entre dos capturas del mismo dedo que se considera, en pasos (45 grados)
+    private static final int ROTACION_MAXIMA = 32;
+
+    // Tolerancias para emparejar una minucia transformada con otra
+    private static final int DISTANCIA_MAXIMA = 12;
+    private static final int DIFERENCIA_ANGULO_MAXIMA = 12;
+
+    // Parejas necesarias para ajustar la transformación por mínimos cuadrados
+    private static final int PAREJAS_MINIMAS_AJUSTE = 3;
+
+    private static final ThreadLocal<ComparadorMinucias> POR_HILO = ThreadLocal.withInitial(ComparadorMinucias::new);
+
+    private final Conjunto a = new Conjunto();
+    private final Conjunto b = new Conjunto();
+
+    private final int[] votos = new int[CELDAS_ROTACION * CELDAS_TRASLACION * CELDAS_TRASLACION];
+    private int[] tocadas = new int[256];
+    private int numTocadas;
+    private int mejorCelda;
+    private int mejorVotos;
+
+    // Votos emitidos en la última votación: celda, rotación y traslación de cada par
+    private int[] votoCelda = new int[1024];
+    private int[] votoRotacion = new int[1024];
+    private int[] votoTx = new int[1024];
+    private int[] votoTy = new int[1024];
+    private int numVotos;
+
+    // Rangos de posiciones de una ventana de direcciones, ver Conjunto.ventanaAngular
+    private final int[] rangos = new int[4];
+
+    // Marca con la generación actual las minucias de la segunda plantilla ya emparejadas
+    private int[] emparejadas = new int[64];
+    private int generacion;
+
+    // Parejas (índice en la primera plantilla, índice en la segunda) del último emparejamiento
+    private int[] parejasA = new int[64];
+    private int[] parejasB = new int[64];
+
+    static ComparadorMinucias porHilo() {
+        return POR_HILO.get();
+    }
+
+    /**
+     * Compara dos listas de minucias, como las que devuelve {@link MinutiaeDetectionUtils#buscarMinucias}.
+     *
+     * @param primera la primera lista.
+     * @param segunda la segunda lista.
+     * @return la puntuación, entre 0 y {@link #PUNTUACION_MAXIMA}.
+     */
+    public int comparar(List<Minutiae> primera, List<Minutiae> segunda) {
+        return comparar(MinutiaeTemplate.desde(primera), MinutiaeTemplate.desde(segunda));
+    }
+
+    /**
+     * Compara dos plantillas. La puntuación es simétrica salvo por el orden en que se resuelven los
+     * emparejamientos dudosos.
+     *
+     * @param primera la primera plantilla.
+     * @param segunda la segunda plantilla.
+     * @return la puntuación, entre 0 y {@link #PUNTUACION_MAXIMA}: el cuadrado de las minucias
+     * emparejadas dividido por el producto de los tamaños de las plantillas.
+     */
+    public int comparar(MinutiaeTemplate primera, MinutiaeTemplate segunda) {
+        fijarSonda(primera);
+        return compararConSonda(segunda);
+    }
+
+    /**
+     * Prepara la plantilla que se va a comparar con muchas otras (por ejemplo, con una galería), para
+     * no repetir su preparación en cada comparación. La plantilla se copia, así que puede modificarse
+     * después sin afectar a las comparaciones.
+     *
+     * @param sonda la plantilla de referencia.
+     */
+    public void fijarSonda(MinutiaeTemplate sonda) {
+        a.cargar(sonda);
+    }
+
+    /**
+     * Compara una plantilla con la fijada en {@link #fijarSonda}. Equivale a {@code comparar(sonda, segunda)}.
+     *
+     * @param segunda la plantilla a comparar.
+     * @return la puntuación, entre 0 y {@link #PUNTUACION_MAXIMA}.
+     */
+    public int compararConSonda(MinutiaeTemplate segunda) {
+        b.cargar(segunda);
+        return puntuar();
+    }
+
+    /**
+     * Compara con la sonda las minucias de un registro de {@link GaleriaPlantillas}, leyéndolas
+     * directamente del búfer.
+     *
+     * @param datos       el búfer que contiene el registro.
+     * @param posicion    la posición de la primera minucia del registro.
+     * @param numMinucias el número de minucias del registro.
+     * @return la puntuación, entre 0 y {@link #PUNTUACION_MAXIMA}.
+     */
+    int compararConSonda(ByteBuffer datos, int posicion, int numMinucias) {
+        b.cargar(datos, posicion, numMinucias);
+        return puntuar();
+    }
+
+    // Compara las dos plantillas cargadas
+    private int puntuar() {
+        int n = a.n;
+        int m = b.n;
+        if (n == 0 || m == 0) {
+            return 0;
+        }
+
+        int mejorCelda = votar();
+        if (mejorCelda < 0) {
+            return 0;
+        }
+
+        // Promedia la transformación de los pares que votaron la mejor celda
+        long sumaRotacion = 0;
+        long sumaTx = 0;
+        long sumaTy = 0;
+        int pares = 0;
+        for (int v = 0; v < numVotos; v++) {
+            if (votoCelda[v] == mejorCelda) {
+                sumaRotacion += votoRotacion[v];
+                sumaTx += votoTx[v];
+                sumaTy += votoTy[v];
+                pares++;
+            }
+        }
+        // Los votos de una celda no cruzan el 0 de la rotación, así que su media es directa
+        double radianes = Math.toRadians(MinutiaeTemplate.descuantizarAngulo((int) ((sumaRotacion + pares / 2) / pares)));
+        int emparejamientos = emparejar(radianes, (double) sumaTx / pares, (double) sumaTy / pares);
+
+        if (emparejamientos >= PAREJAS_MINIMAS_AJUSTE) {
+            emparejamientos = Math.max(emparejamientos, ajustarYEmparejar(emparejamientos));
+        }
+        return (int) ((long) PUNTUACION_MAXIMA * emparejamientos * emparejamientos / ((long) n * m));
+    }
+
+    /**
+     * Acumula los votos de los pares del mismo tipo cuya rotación no supera la máxima y devuelve la
+     * celda más votada, o -1 si no hay ninguna. Cada voto se guarda también en la lista de votos.
+     */
+    private int votar() {
+        int n = a.n;
+        numVotos = 0;
+        mejorCelda = -1;
+        mejorVotos = 0;
+        int tipoBloque = Integer.MIN_VALUE;
+        int bloque = -1;
+        try {
+            for (int i = 0; i < n; i++) {
+                if (a.tipo[i] != tipoBloque) {
+                    tipoBloque = a.tipo[i];
+                    bloque = b.bloque(tipoBloque);
+                }
+                if (bloque < 0) {
+                    continue;
+                }
+                b.ventanaAngular(bloque, a.angulo[i], ROTACION_MAXIMA, rangos);
+                votarRango(i, rangos[0], rangos[1]);
+                votarRango(i, rangos[2], rangos[3]);
+            }
+        } finally {
+            for (int t = 0; t < numTocadas; t++) {
+                votos[tocadas[t]] = 0;
+            }
+            numTocadas = 0;
+        }
+        return mejorCelda;
+    }
+
+    private void votarRango(int i, int desde, int hasta) {
+        int xa = a.x[i];
+        int ya = a.y[i];
+        int angA = a.angulo[i];
+        for (int j = desde; j < hasta; j++) {
+            int rotacion = (b.angulo[j] - angA) & 0xFF;
+            int tx = b.x[j] - rotarX(xa, ya, rotacion);
+            int ty = b.y[j] - rotarY(xa, ya, rotacion);
+            int celda = celda(rotacion, tx, ty);
+            if (celda < 0) {
+                continue;
+            }
+            int v = ++votos[celda];
+            if (v == 1) {
+                anadirTocada(celda);
+            }
+            if (v > mejorVotos) {
+                mejorVotos = v;
+                mejorCelda = celda;
+            }
+            anadirVoto(celda, rotacion, tx, ty);
+        }
+    }
+
+    // Ajusta por mínimos cuadrados la rotación y traslación que mejor superponen las últimas parejas
+    private int ajustarYEmparejar(int numParejas) {
+        double mediaAx = 0;
+        double mediaAy = 0;
+        double mediaBx = 0;
+        double mediaBy = 0;
+        for (int p = 0; p < numParejas; p++) {
+            mediaAx += a.x[parejasA[p]];
+            mediaAy += a.y[parejasA[p]];
+            mediaBx += b.x[parejasB[p]];
+            mediaBy += b.y[parejasB[p]];
+        }
+        mediaAx /= numParejas;
+        mediaAy /= numParejas;
+        mediaBx /= numParejas;
+        mediaBy /= numParejas;
+
+        double productoEscalar = 0;
+        double productoVectorial = 0;
+        for (int p = 0; p < numParejas; p++) {
+            double ax = a.x[parejasA[p]] - mediaAx;
+            double ay = a.y[parejasA[p]] - mediaAy;
+            double bx = b.x[parejasB[p]] - mediaBx;
+            double by = b.y[parejasB[p]] - mediaBy;
+            productoEscalar += ax * bx + ay * by;
+            productoVectorial += ax * by - ay * bx;
+        }
+        double radianes = Math.atan2(productoVectorial, productoEscalar);
+        double coseno = Math.cos(radianes);
+        double seno = Math.sin(radianes);
+        double tx = mediaBx - (mediaAx * coseno - mediaAy * seno);
+        double ty = mediaBy - (mediaAx * seno + mediaAy * coseno);
+        return emparejar(radianes, tx, ty);
+    }
+
+    // Empareja cada minucia transformada de la primera plantilla con la más cercana libre de la segunda
+    private int emparejar(double radianes, double tx, double ty) {
+        int n = a.n;
+        siguienteGeneracion(b.n);
+        if (parejasA.length < n) {
+            parejasA = new int[Math.max(n, parejasA.length * 2)];
+            parejasB = new int[parejasA.length];
+        }
+        double coseno = Math.cos(radianes);
+        double seno = Math.sin(radianes);
+        int rotacion = MinutiaeTemplate.cuantizarAngulo(Math.toDegrees(radianes));
+        int distanciaMaxima2 = DISTANCIA_MAXIMA * DISTANCIA_MAXIMA;
+        int emparejamientos = 0;
+        int tipoBloque = Integer.MIN_VALUE;
+        int bloque = -1;
+        for (int i = 0; i < n; i++) {
+            if (a.tipo[i] != tipoBloque) {
+                tipoBloque = a.tipo[i];
+                bloque = b.bloque(tipoBloque);
+            }
+            int x = (int) Math.round(a.x[i] * coseno - a.y[i] * seno + tx);
+            int y = (int) Math.round(a.x[i] * seno + a.y[i] * coseno + ty);
+            int angulo = (a.angulo[i] + rotacion) & 0xFF;
+
+            int mejor = -1;
+            int mejorDistancia2 = distanciaMaxima2 + 1;
+            // Sólo se miran las minucias con una dirección parecida
+            if (bloque < 0) {
+                continue;
+            }
+            b.ventanaAngular(bloque, angulo, DIFERENCIA_ANGULO_MAXIMA, rangos);
+            for (int r = 0; r < rangos.length; r += 2) {
+                for (int j = rangos[r]; j < rangos[r + 1]; j++) {
+                    if (emparejadas[j] == generacion) {
+                        continue;
+                    }
+                    int dx = b.x[j] - x;
+                    int dy = b.y[j] - y;
+                    int distancia2 = dx * dx + dy * dy;
+                    if (distancia2 < mejorDistancia2) {
+                        mejor = j;
+                        mejorDistancia2 = distancia2;
+                    }
+                }
+            }
+            if (mejor >= 0) {
+                emparejadas[mejor] = generacion;
+                parejasA[emparejamientos] = i;
+                parejasB[emparejamientos] = mejor;
+                emparejamientos++;
+            }
+        }
+        return emparejamientos;
+    }
+
+    /**
+     * Copia de una plantilla en arrays de enteros, centrada en su centroide y ordenada por tipo y
+     * dirección, para que los bucles internos no pasen por los accesores.
+     */
+    private static final class Conjunto {
+        int n;
+        int[] x = new int[64];
+        int[] y = new int[64];
+        int[] tipo = new int[64];
+        int[] angulo = new int[64];
+        // Minucias tal como se leen, antes de centrarlas y ordenarlas
+        private int[] crudoX = new int[64];
+        private int[] crudoY = new int[64];
+        private int[] crudoTipo = new int[64];
+        private int[] crudoAngulo = new int[64];
+        private long[] claves = new long[64];
+
+        // Tipos distintos, en orden, y tabla de posiciones por dirección de cada uno (257 entradas por bloque)
+        int numBloques;
+        int[] tipoBloque = new int[2];
+        int[] primeraPorAngulo = new int[2 * 257];
+
+        void cargar(MinutiaeTemplate plantilla) {
+            reservar(plantilla.size());
+            for (int i = 0; i < n; i++) {
+                crudoX[i] = plantilla.getX(i);
+                crudoY[i] = plantilla.getY(i);
+                crudoTipo[i] = plantilla.getType(i);
+                crudoAngulo[i] = plantilla.getDireccionCuantizada(i);
+            }
+            ordenar();
+        }
+
+        // Lee las minucias de un registro de GaleriaPlantillas sin pasar por una plantilla intermedia
+        void cargar(ByteBuffer datos, int posicion, int numMinucias) {
+            reservar(numMinucias);
+            for (int i = 0; i < n; i++) {
+                int p = posicion + i * GaleriaPlantillas.BYTES_POR_MINUCIA;
+                crudoX[i] = datos.getShort(p) & 0xFFFF;
+                crudoY[i] = datos.getShort(p + 2) & 0xFFFF;
+                crudoTipo[i] = datos.get(p + 4);
+                crudoAngulo[i] = crudoTipo[i] == 1 ? datos.get(p + 5) & 0xFF : MinutiaeTemplate.direccionBifurcacion(
+                        datos.get(p + 5) & 0xFF, datos.get(p + 6) & 0xFF, datos.get(p + 7) & 0xFF);
+            }
+            ordenar();
+        }
+
+        private void reservar(int tamano) {
+            n = tamano;
+            if (x.length < n) {
+                int capacidad = Math.max(n, x.length * 2);
+                x = new int[capacidad];
+                y = new int[capacidad];
+                tipo = new int[capacidad];
+                angulo = new int[capacidad];
+                crudoX = new int[capacidad];
+                crudoY = new int[capacidad];
+                crudoTipo = new int[capacidad];
+                crudoAngulo = new int[capacidad];
+                claves = new long[capacidad];
+            }
+        }
+
+        // Centra las minucias leídas, las ordena por tipo y dirección y calcula los bloques de cada tipo
+        private void ordenar() {
+            long sumaX = 0;
+            long sumaY = 0;
+            for (int i = 0; i < n; i++) {
+                sumaX += crudoX[i];
+                sumaY += crudoY[i];
+            }
+            int centroX = n == 0 ? 0 : (int) (sumaX / n);
+            int centroY = n == 0 ? 0 : (int) (sumaY / n);
+
+            // Clave de orden: tipo, dirección e índice original
+            for (int i = 0; i < n; i++) {
+                claves[i] = (long) (crudoTipo[i] + 0x80) << 40 | (long) crudoAngulo[i] << 32 | i;
+            }
+            Arrays.sort(claves, 0, n);
+            for (int k = 0; k < n; k++) {
+                int i = (int) claves[k];
+                x[k] = crudoX[i] - centroX;
+                y[k] = crudoY[i] - centroY;
+                tipo[k] = crudoTipo[i];
+                angulo[k] = crudoAngulo[i];
+            }
+
+            numBloques = 0;
+            for (int k = 0; k < n; k++) {
+                if (k == 0 || tipo[k] != tipo[k - 1]) {
+                    if (numBloques == tipoBloque.length) {
+                        tipoBloque = Arrays.copyOf(tipoBloque, numBloques * 2);
+                        primeraPorAngulo = Arrays.copyOf(primeraPorAngulo, numBloques * 2 * 257);
+                    }
+                    tipoBloque[numBloques++] = tipo[k];
+                }
+            }
+            // Para cada bloque y dirección v, la primera posición del bloque con dirección mayor o igual que v
+            int k = 0;
+            for (int bl = 0; bl < numBloques; bl++) {
+                int base = bl * 257;
+                for (int v = 0; v <= 256; v++) {
+                    while (k < n && tipo[k] == tipoBloque[bl] && angulo[k] < v) {
+                        k++;
+                    }
+                    primeraPorAngulo[base + v] = k;
+                }
+            }
+        }
+
+        // Bloque de las minucias del tipo indicado, o -1 si no hay ninguna
+        int bloque(int t) {
+            for (int k = 0; k < numBloques; k++) {
+                if (tipoBloque[k] == t) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Calcula las posiciones de un bloque cuya dirección dista como mucho el margen de la indicada.
+         * Como la dirección es circular, pueden ser dos rangos.
+         *
+         * @param rangos recibe los dos rangos como {inicio1, fin1, inicio2, fin2}; el segundo puede estar vacío.
+         */
+        void ventanaAngular(int bloque, int angulo, int margen, int[] rangos) {
+            int base = bloque * 257;
+            int desde = angulo - margen;
+            int hasta = angulo + margen;
+            if (desde < 0) {
+                rangos[0] = primeraPorAngulo[base + desde + 256];
+                rangos[1] = primeraPorAngulo[base + 256];
+                desde = 0;
+            } else if (hasta > 255) {
+                rangos[0] = primeraPorAngulo[base];
+                rangos[1] = primeraPorAngulo[base + hasta - 255];
+                hasta = 255;
+            } else {
+                rangos[0] = 0;
+                rangos[1] = 0;
+            }
+            rangos[2] = primeraPorAngulo[base + desde];
+            rangos[3] = primeraPorAngulo[base + hasta + 1];
+        }
+    }
+
+    private static int rotarX(int x, int y, int rotacion) {
+        return (x * COSENO[rotacion] - y * SENO[rotacion]) >> BITS_TRIGONOMETRIA;
+    }
+
+    private static int rotarY(int x, int y, int rotacion) {
+        return (x * SENO[rotacion] + y * COSENO[rotacion]) >> BITS_TRIGONOMETRIA;
+    }
+
+    // Índice de la celda del acumulador, o -1 si la traslación queda fuera del rango considerado
+    private static int celda(int rotacion, int tx, int ty) {
+        int cx = (tx + TRASLACION_MAXIMA) >> BITS_CELDA_TRASLACION;
+        int cy = (ty + TRASLACION_MAXIMA) >> BITS_CELDA_TRASLACION;
+        if (cx < 0 || cx >= CELDAS_TRASLACION || cy < 0 || cy >= CELDAS_TRASLACION) {
+            return -1;
+        }
+        return ((rotacion >> BITS_CELDA_ROTACION) * CELDAS_TRASLACION + cy) * CELDAS_TRASLACION + cx;
+    }
+
+    private void anadirTocada(int celda) {
+        if (numTocadas == tocadas.length) {
+            tocadas = Arrays.copyOf(tocadas, numTocadas * 2);
+        }
+        tocadas[numTocadas++] = celda;
+    }
+
+    private void anadirVoto(int celda, int rotacion, int tx, int ty) {
+        if (numVotos == votoCelda.length) {
+            int capacidad = numVotos * 2;
+            votoCelda = Arrays.copyOf(votoCelda, capacidad);
+            votoRotacion = Arrays.copyOf(votoRotacion, capacidad);
+            votoTx = Arrays.copyOf(votoTx, capacidad);
+            votoTy = Arrays.copyOf(votoTy, capacidad);
+        }
+        votoCelda[numVotos] = celda;
+        votoRotacion[numVotos] = rotacion;
+        votoTx[numVotos] = tx;
+        votoTy[numVotos] = ty;
+        numVotos++;
+    }
+
+    private void siguienteGeneracion(int tamano) {
+        if (emparejadas.length < tamano) {
+            emparejadas = new int[Math.max(tamano, emparejadas.length * 2)];
+            generacion = 0;
+        }
+        if (++generacion == 0) {
+            Arrays.fill(emparejadas, 0);
+            generacion = 1;
+        }
+    }
+}
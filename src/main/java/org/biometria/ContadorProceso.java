@@ -0,0 +1,33 @@
+package org.biometria;
+
+/**
+ * Contadores de los algoritmos del procesamiento, acumulados para todas las imágenes.
+ */
+public enum ContadorProceso {
+    /**
+     * Píxeles que los filtros de ruido cambian de valor.
+     */
+    PIXELES_RUIDO_CORREGIDOS,
+    /**
+     * Subiteraciones del adelgazamiento de Zhang-Suen, contando la última, que ya no borra nada.
+     */
+    SUBITERACIONES_ZHANG_SUEN,
+    /**
+     * Píxeles borrados por el adelgazamiento.
+     */
+    PIXELES_BORRADOS_ZHANG_SUEN,
+    /**
+     * Píxeles del esqueleto evaluados como posibles minucias.
+     */
+    CANDIDATOS_MINUCIA,
+    MINUCIAS_CORTE,
+    MINUCIAS_BIFURCACION,
+    /**
+     * Bifurcaciones para las que no se encontraron tres caminos y tienen algún ángulo a 0.
+     */
+    BIFURCACIONES_INCOMPLETAS,
+    /**
+     * Imágenes descartadas por no alcanzar la calidad mínima.
+     */
+    IMAGENES_RECHAZADAS
+}
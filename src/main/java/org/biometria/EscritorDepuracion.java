@@ -0,0 +1,271 @@
+package org.biometria;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Escribe en disco las imágenes intermedias de depuración seleccionadas. La conversión a
+ * BufferedImage y la codificación PNG se hacen en un hilo en segundo plano, de modo que normalmente
+ * no retrasan la extracción de minucias. Las imágenes que se le pasan no deben modificarse después.
+ * <p>
+ * Cada escritura pendiente retiene una copia completa de la imagen de su etapa (16 MB en una imagen de
+ * 4096x4096), y codificarla lleva más que extraer las minucias, así que la cola está limitada a
+ * {@value #ESCRITURAS_PENDIENTES} escrituras. Con la cola llena, el hilo que encola la escritura la
+ * ejecuta él mismo: en un lote, los hilos de extracción se frenan hasta que el disco los alcanza, en
+ * lugar de acumular imágenes en memoria hasta agotarla.
+ */
+public class EscritorDepuracion implements AutoCloseable {
+    private final static Logger LOGGER = Logger.getLogger(EscritorDepuracion.class.getName());
+
+    // El escritor PNG usa el nivel de deflate (1 - calidad) * 9 truncado: 0.85 es el nivel 1, el más rápido
+    // que todavía comprime. Las imágenes de depuración se escriben una vez y se miran pocas veces.
+    private static final float CALIDAD_COMPRESION_PNG = 0.85f;
+    // Escrituras que pueden esperar en la cola del hilo de escritura
+    static final int ESCRITURAS_PENDIENTES = 4;
+
+    /**
+     * Artefactos de depuración que se pueden generar, uno por etapa del procesamiento.
+     */
+    public enum Artefacto {
+        GRIS("imagenSalidaEscalaGrises.png"),
+        ECUALIZADA("imagenSalidaEcualizada.png"),
+        BINARIZADA("imagenSalidaBinarizada.png"),
+        FILTRADA("imagenSalidaFiltrada.png"),
+        ADELGAZADA("imagenSalidaAdelgazada.png"),
+        MINUCIAS("imagenMinuciasMarcadas.png"),
+        ANGULOS("imagenAngulosMarcados.png");
+
+        private final String nombreArchivo;
+
+        Artefacto(String nombreArchivo) {
+            this.nombreArchivo = nombreArchivo;
+        }
+
+        public String getNombreArchivo() {
+            return nombreArchivo;
+        }
+
+        /**
+         * Interpreta una lista separada por comas de nombres de artefacto (por ejemplo "gris,adelgazada").
+         *
+         * @param lista los nombres, sin distinguir mayúsculas.
+         * @return los artefactos seleccionados.
+         * @throws IllegalArgumentException si algún nombre no corresponde a ningún artefacto.
+         */
+        public static Set<Artefacto> desdeLista(String lista) {
+            Set<Artefacto> artefactos = EnumSet.noneOf(Artefacto.class);
+            for (String nombre : lista.split(",")) {
+                if (!nombre.isBlank()) {
+                    artefactos.add(valueOf(nombre.trim().toUpperCase(Locale.ROOT)));
+                }
+            }
+            return artefactos;
+        }
+    }
+
+    private final Set<Artefacto> activos;
+    private final File directorio;
+    private final String prefijo;
+    private final ExecutorService executor;
+    // Sólo el escritor que creó el hilo lo cierra; las vistas de paraImagen lo comparten
+    private final boolean propietario;
+
+    /**
+     * Crea un escritor que sólo genera los artefactos indicados.
+     *
+     * @param activos    los artefactos a escribir; si está vacío no se crea ningún hilo.
+     * @param directorio el directorio de salida.
+     * @param prefijo    prefijo para los nombres de archivo, para distinguir varias imágenes en el mismo directorio.
+     */
+    public EscritorDepuracion(Set<Artefacto> activos, File directorio, String prefijo) {
+        this.activos = activos.isEmpty() ? EnumSet.noneOf(Artefacto.class) : EnumSet.copyOf(activos);
+        this.directorio = directorio;
+        this.prefijo = prefijo;
+        this.executor = this.activos.isEmpty() ? null : new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ESCRITURAS_PENDIENTES), r -> {
+                    Thread hilo = new Thread(r, "escritor-depuracion");
+                    hilo.setDaemon(true);
+                    return hilo;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.propietario = true;
+    }
+
+    private EscritorDepuracion(EscritorDepuracion base, String prefijo) {
+        this.activos = base.activos;
+        this.directorio = base.directorio;
+        this.prefijo = prefijo;
+        this.executor = base.executor;
+        this.propietario = false;
+    }
+
+    /**
+     * Devuelve un escritor que comparte el hilo de escritura de este pero antepone otro prefijo a los
+     * nombres de archivo, para escribir los artefactos de varias imágenes en el mismo directorio.
+     * Cerrar el escritor devuelto no tiene efecto.
+     *
+     * @param prefijo el prefijo de los archivos de la imagen.
+     * @return el escritor para esa imagen.
+     */
+    public EscritorDepuracion paraImagen(String prefijo) {
+        return new EscritorDepuracion(this, prefijo);
+    }
+
+    /**
+     * Crea un escritor que no genera ningún artefacto.
+     *
+     * @return un escritor inactivo.
+     */
+    public static EscritorDepuracion ninguno() {
+        return new EscritorDepuracion(EnumSet.noneOf(Artefacto.class), new File("."), "");
+    }
+
+    public boolean isActivo(Artefacto artefacto) {
+        return activos.contains(artefacto);
+    }
+
+    /**
+     * Encola la escritura de una imagen intermedia si su artefacto está activo. Si la cola está llena,
+     * la escritura se hace en el hilo que llama.
+     *
+     * @param artefacto el artefacto que representa la imagen.
+     * @param imagen    la imagen a escribir.
+     * @param modo      el modo de conversión de {@link ProcesamientoImagenUtils#convertirAFomatoBufferedImage}.
+     */
+    public void escribir(Artefacto artefacto, FingerPrintImage imagen, int modo) {
+        if (!isActivo(artefacto)) {
+            return;
+        }
+        encolar(artefacto, () -> guardar(artefacto, ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagen, modo)));
+    }
+
+    /**
+     * Encola la escritura de las imágenes con las minucias y sus ángulos marcados sobre el esqueleto,
+     * si alguno de esos artefactos está activo.
+     *
+     * @param imagenAdelgazada el esqueleto sobre el que se han detectado las minucias.
+     */
+    public void escribirMinucias(FingerPrintImage imagenAdelgazada) {
+        if (!isActivo(Artefacto.MINUCIAS) && !isActivo(Artefacto.ANGULOS)) {
+            return;
+        }
+        List<Minutiae> minutiaeList = new ArrayList<>(imagenAdelgazada.getMinutiaeList());
+        encolar(Artefacto.MINUCIAS, () -> {
+            BufferedImage imagenMinuciasMarcadas = ImagenMarcado.crear(imagenAdelgazada);
+            MinutiaeDetectionUtils.marcarMinuciasEnBufferedImage(imagenMinuciasMarcadas, minutiaeList);
+            if (isActivo(Artefacto.MINUCIAS)) {
+                guardar(Artefacto.MINUCIAS, imagenMinuciasMarcadas);
+            }
+            if (isActivo(Artefacto.ANGULOS)) {
+                MinutiaeDetectionUtils.dibujarAngulosEnBufferedImage(imagenMinuciasMarcadas, minutiaeList);
+                guardar(Artefacto.ANGULOS, imagenMinuciasMarcadas);
+            }
+        });
+    }
+
+    /**
+     * Imagen sobre la que se marcan las minucias y sus ángulos. Está en su propia clase para que la paleta,
+     * y con ella el modelo de color y los perfiles de AWT, sólo se carguen al marcar minucias y no en cada
+     * extracción, que siempre carga EscritorDepuracion.
+     */
+    private static final class ImagenMarcado {
+        // Negro y blanco del esqueleto, rojo y azul de las minucias y verde de los ángulos
+        private static final IndexColorModel PALETA = new IndexColorModel(8, 5,
+                new byte[]{0, (byte) 0xFF, (byte) 0xFF, 0, 0},
+                new byte[]{0, (byte) 0xFF, 0, 0, (byte) 0xFF},
+                new byte[]{0, (byte) 0xFF, 0, (byte) 0xFF, 0});
+
+        /**
+         * Crea una imagen indexada con {@link #PALETA}, que ya contiene los colores de las marcas, de modo
+         * que dibujar sobre ella no pierde color y se codifica como PNG con paleta. Los índices 0 y 1 de la
+         * paleta son el negro y el blanco, así que las filas del esqueleto se copian tal cual.
+         * <p>
+         * Se usa un byte por píxel y no una imagen empaquetada de 4 bits porque Java2D traza las líneas de
+         * forma distinta en las imágenes empaquetadas, y los ángulos no coincidirían con los de una imagen RGB.
+         *
+         * @param imagenAdelgazada el esqueleto, con píxeles 0 (negro) y 1 (blanco).
+         * @return la imagen con el esqueleto, lista para marcar.
+         */
+        static BufferedImage crear(FingerPrintImage imagenAdelgazada) {
+            int width = imagenAdelgazada.getWidth();
+            BufferedImage imagen = new BufferedImage(width, imagenAdelgazada.getHeight(),
+                    BufferedImage.TYPE_BYTE_INDEXED, PALETA);
+            byte[] destino = ((DataBufferByte) imagen.getRaster().getDataBuffer()).getData();
+            byte[] pixeles = imagenAdelgazada.getPixels();
+            for (int y = 0; y < imagenAdelgazada.getHeight(); y++) {
+                System.arraycopy(pixeles, imagenAdelgazada.getRowOffset(y), destino, y * width, width);
+            }
+            return imagen;
+        }
+    }
+
+    /**
+     * Espera a que terminen las escrituras pendientes y libera el hilo de escritura.
+     */
+    @Override
+    public void close() {
+        if (executor == null || !propietario) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Esperando a que terminen de escribirse las imágenes de depuración");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Escritura {
+        void ejecutar() throws IOException;
+    }
+
+    private void encolar(Artefacto artefacto, Escritura escritura) {
+        executor.execute(() -> {
+            try {
+                escritura.ejecutar();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.severe("No se pudo escribir la imagen de depuración " + artefacto + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void guardar(Artefacto artefacto, BufferedImage imagen) throws IOException {
+        File archivo = new File(directorio, prefijo + artefacto.getNombreArchivo());
+        ImageWriter escritor = ImageIO.getImageWritersByFormatName("png").next();
+        try (OutputStream salida = new BufferedOutputStream(new FileOutputStream(archivo));
+             MemoryCacheImageOutputStream flujo = new MemoryCacheImageOutputStream(salida)) {
+            ImageWriteParam parametros = escritor.getDefaultWriteParam();
+            if (parametros.canWriteCompressed()) {
+                parametros.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                parametros.setCompressionQuality(CALIDAD_COMPRESION_PNG);
+            }
+            escritor.setOutput(flujo);
+            escritor.write(null, new IIOImage(imagen, null, null), parametros);
+        } finally {
+            escritor.dispose();
+        }
+        LOGGER.info("Imagen de depuración " + archivo + " guardada en disco");
+    }
+}
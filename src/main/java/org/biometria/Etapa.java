@@ -0,0 +1,49 @@
+package org.biometria;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Etapa del procesamiento que transforma una imagen en otra del mismo tamaño, escribiendo en una
+ * imagen de salida que le proporciona quien la ejecuta. Las etapas se encadenan con {@link Pipeline},
+ * que reutiliza los búferes de las imágenes de una ejecución a la siguiente.
+ */
+@FunctionalInterface
+public interface Etapa {
+    /**
+     * Aplica la etapa. El contenido previo de la salida es indefinido, así que la etapa debe escribir
+     * todos sus píxeles; tampoco debe conservar ninguna de las dos imágenes tras volver.
+     *
+     * @param entrada la imagen de entrada.
+     * @param salida  la imagen donde se escribe el resultado, del mismo tamaño que la entrada.
+     */
+    void aplicar(FingerPrintImage entrada, FingerPrintImage salida);
+
+    /**
+     * @return la ecualización del histograma de {@link ProcesamientoImagenUtils#convertirGrisAHistograma}.
+     */
+    static Etapa ecualizacion() {
+        return ProcesamientoImagenUtils::convertirGrisAHistograma;
+    }
+
+    /**
+     * @return la binarización por el valor medio de {@link ProcesamientoImagenUtils#convertirABlancoYNegro}.
+     */
+    static Etapa binarizacion() {
+        return ProcesamientoImagenUtils::convertirABlancoYNegro;
+    }
+
+    /**
+     * @return el filtro de ruido binario de {@link TransformacionesImagenUtils#aplicarFiltroRuidoBinario}.
+     */
+    static Etapa filtroRuido() {
+        return TransformacionesImagenUtils::aplicarFiltroRuidoBinario;
+    }
+
+    /**
+     * @param pool el pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @return el adelgazamiento de Zhang-Suen de {@link TransformacionesImagenUtils#adelgazamientoZhangSuen}.
+     */
+    static Etapa adelgazamiento(ForkJoinPool pool) {
+        return (entrada, salida) -> TransformacionesImagenUtils.adelgazamientoZhangSuen(entrada, salida, pool);
+    }
+}
@@ -0,0 +1,34 @@
+package org.biometria;
+
+/**
+ * Etapas del procesamiento de una huella de las que se miden el tiempo y la memoria reservada.
+ */
+public enum EtapaProceso {
+    GRIS,
+    /**
+     * Evaluación de la calidad de la imagen en escala de grises con {@link EvaluadorCalidad}.
+     */
+    CALIDAD,
+    ECUALIZACION,
+    BINARIZACION,
+    FILTRO_RUIDO,
+    ADELGAZAMIENTO,
+    DETECCION_MINUCIAS,
+    /**
+     * Primera pasada de {@link ExtraccionPorBandas}: histograma de grises y tabla de umbral.
+     */
+    HISTOGRAMA_POR_BANDAS,
+    /**
+     * Segunda pasada de {@link ExtraccionPorBandas}: gris, binarización y filtros de ruido fila a fila.
+     */
+    FILTRADO_POR_BANDAS,
+    /**
+     * Extracción completa de una imagen, desde la imagen decodificada hasta las minucias.
+     */
+    EXTRACCION,
+    /**
+     * Petición completa de {@link ServidorExtraccion}, desde que se admite hasta que se envía la respuesta.
+     * La memoria reservada es sólo la del hilo que atiende la petición, no la de la extracción.
+     */
+    PETICION
+}
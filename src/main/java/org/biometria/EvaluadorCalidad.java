@@ -0,0 +1,228 @@
+package org.biometria;
+
+import java.util.Arrays;
+
+/**
+ * Evalúa la calidad de una imagen en escala de grises antes de binarizarla, para descartar las capturas
+ * en blanco, con poco contraste o borrosas sin pagar el filtrado y el adelgazamiento, que en ellas
+ * además producen miles de minucias espurias.
+ * <p>
+ * Se calculan tres indicadores, cada uno entre 0 y 1 (ver {@link CalidadImagen}):
+ * <ul>
+ *     <li>El contraste, a partir de los niveles máximo y mínimo que ya calcula la conversión a gris.</li>
+ *     <li>La cobertura: la fracción de bloques de {@value #BLOQUE}x{@value #BLOQUE} píxeles cuya desviación
+ *     típica indica que contienen crestas y no fondo liso.</li>
+ *     <li>La densidad de crestas: en esos bloques, cuántas veces por píxel cambia de sentido el nivel de gris,
+ *     contando sólo los cambios de al menos {@value #OSCILACION_MINIMA} niveles. Los cambios se cuentan a lo
+ *     largo de las filas y a lo largo de las columnas, y de cada bloque se toma la mayor de las dos cuentas:
+ *     unas crestas casi horizontales apenas oscilan por filas, y sin las columnas una huella en arco se
+ *     tomaría por borrosa. Una zona emborronada tiene variación pero casi no oscila; una que oscila cada
+ *     pocos píxeles es ruido.</li>
+ * </ul>
+ * Las filas se recorren una sola vez y de arriba abajo, acumulando una fila de bloques y el estado de cada
+ * columna, así que la evaluación también sirve para {@link ExtraccionPorBandas} sin tener la imagen entera
+ * en memoria.
+ */
+public final class EvaluadorCalidad {
+    static final int BLOQUE = 16;
+    // Desviación típica mínima, en niveles de gris, de un bloque con huella
+    private static final int DESVIACION_MINIMA = 10;
+    static final int OSCILACION_MINIMA = 16;
+
+    // Valores de una captura normal, con los que cada indicador llega a 1
+    private static final double CONTRASTE_REFERENCIA = 128;
+    private static final double COBERTURA_REFERENCIA = 0.4;
+    private static final double DENSIDAD_REFERENCIA = 0.04;
+    // Por encima de 0.4 cambios por píxel (crestas cada menos de 5 píxeles) no son crestas sino ruido, y a
+    // partir de 0.5 el indicador vale 0
+    private static final double DENSIDAD_MAXIMA = 0.4;
+    private static final double DENSIDAD_RUIDO = 0.5;
+
+    private final int width;
+    private final int height;
+    private final long[] suma;
+    private final long[] sumaCuadrados;
+    private final int[] cambios;
+    private final int[] cambiosColumnas;
+    // Sentido y último extremo del nivel de gris de cada columna, como los de la fila en anadirFila
+    private final byte[] sentidoColumna;
+    private final short[] extremoColumna;
+    private int filas;
+    private int bloques;
+    private int bloquesConHuella;
+    private long cambiosConHuella;
+    private long pixelesConHuella;
+
+    /**
+     * @param width  el ancho de la imagen.
+     * @param height el alto de la imagen.
+     * @throws IllegalArgumentException si las dimensiones no son positivas.
+     */
+    EvaluadorCalidad(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        this.width = width;
+        this.height = height;
+        int bloquesX = (width + BLOQUE - 1) / BLOQUE;
+        this.suma = new long[bloquesX];
+        this.sumaCuadrados = new long[bloquesX];
+        this.cambios = new int[bloquesX];
+        this.cambiosColumnas = new int[bloquesX];
+        this.sentidoColumna = new byte[width];
+        this.extremoColumna = new short[width];
+    }
+
+    /**
+     * Evalúa una imagen en escala de grises cuyos valores máximo y mínimo ya están calculados, como las
+     * que devuelve {@link ProcesamientoImagenUtils#cargarGris}.
+     *
+     * @param imagenGris la imagen.
+     * @return su calidad.
+     */
+    public static CalidadImagen evaluar(FingerPrintImage imagenGris) {
+        EvaluadorCalidad evaluador = new EvaluadorCalidad(imagenGris.getWidth(), imagenGris.getHeight());
+        byte[] pixeles = imagenGris.getPixels();
+        for (int y = 0; y < imagenGris.getHeight(); y++) {
+            evaluador.anadirFila(pixeles, imagenGris.getRowOffset(y));
+        }
+        return evaluador.terminar(imagenGris.getMinGrayValue(), imagenGris.getMaxGrayValue());
+    }
+
+    /**
+     * Evalúa la imagen y la rechaza si no alcanza la puntuación mínima.
+     *
+     * @param imagenGris la imagen, con sus valores máximo y mínimo calculados.
+     * @param minimo     la puntuación mínima, entre 0 y 1.
+     * @throws CalidadInsuficienteException si la puntuación es menor que el mínimo.
+     */
+    public static void comprobar(FingerPrintImage imagenGris, double minimo) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        CalidadImagen calidad = evaluar(imagenGris);
+        Metricas.registrar(EtapaProceso.CALIDAD, inicio, bytes);
+        comprobar(calidad, minimo);
+    }
+
+    /**
+     * Comprueba una puntuación mínima antes de usarla, para que todas las extracciones la validen igual.
+     *
+     * @param minimo la puntuación mínima.
+     * @return la misma puntuación.
+     * @throws IllegalArgumentException si no está entre 0 y 1.
+     */
+    static double validarMinimo(double minimo) {
+        if (!(minimo >= 0 && minimo <= 1)) {
+            throw new IllegalArgumentException("La calidad mínima debe estar entre 0 y 1: " + minimo);
+        }
+        return minimo;
+    }
+
+    static void comprobar(CalidadImagen calidad, double minimo) {
+        if (calidad.getPuntuacion() < minimo) {
+            Metricas.incrementar(ContadorProceso.IMAGENES_RECHAZADAS, 1);
+            throw new CalidadInsuficienteException(calidad, minimo);
+        }
+    }
+
+    /**
+     * Acumula la siguiente fila de la imagen; las filas deben llegar en orden, empezando por la 0.
+     *
+     * @param pixeles        el búfer de la fila.
+     * @param desplazamiento la posición del primer píxel de la fila.
+     */
+    void anadirFila(byte[] pixeles, int desplazamiento) {
+        // Sentido actual del nivel de gris (1 sube, -1 baja, 0 todavía no se sabe) y su último extremo
+        int sentido = 0;
+        int extremo = pixeles[desplazamiento] & 0xFF;
+        for (int x = 0; x < width; x++) {
+            int valor = pixeles[desplazamiento + x] & 0xFF;
+            int bloque = x / BLOQUE;
+            suma[bloque] += valor;
+            sumaCuadrados[bloque] += valor * valor;
+            if (sentido == 0) {
+                if (Math.abs(valor - extremo) >= OSCILACION_MINIMA) {
+                    sentido = valor > extremo ? 1 : -1;
+                    extremo = valor;
+                }
+            } else if ((valor - extremo) * sentido > 0) {
+                extremo = valor;
+            } else if (Math.abs(valor - extremo) >= OSCILACION_MINIMA) {
+                cambios[bloque]++;
+                sentido = -sentido;
+                extremo = valor;
+            }
+            if (filas == 0) {
+                extremoColumna[x] = (short) valor;
+            } else {
+                anadirColumna(x, valor, bloque);
+            }
+        }
+        filas++;
+        if (filas % BLOQUE == 0 || filas == height) {
+            cerrarFilaBloques((filas - 1) % BLOQUE + 1);
+        }
+    }
+
+    // Avanza una fila el recorrido de la columna x, con el mismo criterio que el de las filas
+    private void anadirColumna(int x, int valor, int bloque) {
+        int sentido = sentidoColumna[x];
+        int extremo = extremoColumna[x];
+        if (sentido == 0) {
+            if (Math.abs(valor - extremo) >= OSCILACION_MINIMA) {
+                sentidoColumna[x] = (byte) (valor > extremo ? 1 : -1);
+                extremoColumna[x] = (short) valor;
+            }
+        } else if ((valor - extremo) * sentido > 0) {
+            extremoColumna[x] = (short) valor;
+        } else if (Math.abs(valor - extremo) >= OSCILACION_MINIMA) {
+            cambiosColumnas[bloque]++;
+            sentidoColumna[x] = (byte) -sentido;
+            extremoColumna[x] = (short) valor;
+        }
+    }
+
+    private void cerrarFilaBloques(int alto) {
+        for (int b = 0; b < suma.length; b++) {
+            long n = (long) alto * Math.min(BLOQUE, width - b * BLOQUE);
+            double media = (double) suma[b] / n;
+            double varianza = (double) sumaCuadrados[b] / n - media * media;
+            bloques++;
+            if (varianza >= DESVIACION_MINIMA * DESVIACION_MINIMA) {
+                bloquesConHuella++;
+                cambiosConHuella += Math.max(cambios[b], cambiosColumnas[b]);
+                pixelesConHuella += n;
+            }
+        }
+        Arrays.fill(suma, 0);
+        Arrays.fill(sumaCuadrados, 0);
+        Arrays.fill(cambios, 0);
+        Arrays.fill(cambiosColumnas, 0);
+    }
+
+    /**
+     * @param minimo el nivel de gris mínimo de la imagen.
+     * @param maximo el nivel de gris máximo de la imagen.
+     * @return la calidad de la imagen.
+     * @throws IllegalStateException si no se han acumulado todas las filas.
+     */
+    CalidadImagen terminar(int minimo, int maximo) {
+        if (filas != height) {
+            throw new IllegalStateException("Faltan filas por evaluar: " + filas + " de " + height);
+        }
+        double contraste = Math.min(1, (maximo - minimo) / CONTRASTE_REFERENCIA);
+        double cobertura = Math.min(1, (double) bloquesConHuella / bloques / COBERTURA_REFERENCIA);
+        return new CalidadImagen(contraste, cobertura, indicadorDensidad());
+    }
+
+    private double indicadorDensidad() {
+        if (pixelesConHuella == 0) {
+            return 0;
+        }
+        double densidad = (double) cambiosConHuella / pixelesConHuella;
+        if (densidad > DENSIDAD_MAXIMA) {
+            return Math.max(0, (DENSIDAD_RUIDO - densidad) / (DENSIDAD_RUIDO - DENSIDAD_MAXIMA));
+        }
+        return Math.min(1, densidad / DENSIDAD_REFERENCIA);
+    }
+}
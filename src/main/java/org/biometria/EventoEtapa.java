@@ -0,0 +1,31 @@
+package org.biometria;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Evento de JFR que se emite al terminar cada etapa del procesamiento, si la grabación lo tiene activo.
+ */
+@Name("org.biometria.Etapa")
+@Label("Etapa de procesamiento")
+@Category("Biometria")
+@Description("Duración y memoria reservada de una etapa de la extracción de minucias")
+@StackTrace(false)
+class EventoEtapa extends Event {
+    @Label("Etapa")
+    String etapa;
+
+    @Label("Duración")
+    @Timespan(Timespan.NANOSECONDS)
+    long duracion;
+
+    @Label("Memoria reservada")
+    @DataAmount
+    long bytesReservados;
+}
@@ -0,0 +1,176 @@
+package org.biometria;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Extracción de minucias en flujo, para imágenes tan grandes que no caben varias copias en memoria.
+ * El resultado es idéntico al de la extracción por etapas de {@code Main}, pero ninguna etapa previa
+ * al adelgazamiento guarda la imagen completa:
+ * <ol>
+ *     <li>Una primera pasada por las filas de la fuente sólo acumula el histograma de grises, del que
+ *     salen la tabla de ecualización y el umbral de binarización, combinados en una sola tabla.</li>
+ *     <li>La segunda pasada binariza cada fila, la empaqueta a 64 píxeles por palabra y la hace pasar por
+ *     los dos filtros de ruido fusionados de {@link FiltroRuidoFusionado}, con ventanas de tres filas
+ *     empaquetadas. Cada fila filtrada se escribe en la rejilla del adelgazamiento.</li>
+ *     <li>El adelgazamiento es la única etapa global: trabaja sobre esa rejilla, de un byte por píxel,
+ *     y las minucias se detectan sobre la misma rejilla, sin copiarla.</li>
+ * </ol>
+ * Además de la rejilla, la memoria usada es proporcional al ancho de la imagen. La rejilla es un búfer
+ * de trabajo del hilo ({@link PoolBuferes}) que se reutiliza de una imagen a la siguiente.
+ */
+public class ExtraccionPorBandas {
+    private final static Logger LOGGER = Logger.getLogger(ExtraccionPorBandas.class.getName());
+
+    // Ranura de PoolBuferes de la rejilla del adelgazamiento
+    private static final int RANURA_REJILLA = 2;
+
+    /**
+     * Extrae las minucias de la imagen que proporciona la fuente.
+     *
+     * @param fuente             las filas en escala de grises; se leen dos veces.
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @return la imagen adelgazada, con la lista de minucias detectadas; su búfer se reutiliza en la
+     * siguiente extracción del mismo hilo.
+     */
+    public static FingerPrintImage extraerMinucias(FuenteFilasGris fuente, boolean saltarEcualizacion,
+                                                   ForkJoinPool poolAdelgazamiento) {
+        return extraerMinucias(fuente, saltarEcualizacion, poolAdelgazamiento, 0);
+    }
+
+    /**
+     * Extrae las minucias de la imagen que proporciona la fuente, descartándola tras la primera pasada
+     * si su calidad, evaluada con {@link EvaluadorCalidad} en esa misma pasada, no llega al mínimo.
+     *
+     * @param fuente             las filas en escala de grises; se leen dos veces.
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @param calidadMinima      la puntuación mínima, entre 0 y 1; con 0 no se evalúa la calidad.
+     * @return la imagen adelgazada, con la lista de minucias detectadas; su búfer se reutiliza en la
+     * siguiente extracción del mismo hilo.
+     * @throws CalidadInsuficienteException si la imagen no alcanza la calidad mínima.
+     * @throws IllegalArgumentException     si la calidad mínima no está entre 0 y 1.
+     */
+    public static FingerPrintImage extraerMinucias(FuenteFilasGris fuente, boolean saltarEcualizacion,
+                                                   ForkJoinPool poolAdelgazamiento, double calidadMinima) {
+        EvaluadorCalidad.validarMinimo(calidadMinima);
+        int width = fuente.getWidth();
+        int height = fuente.getHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("La imagen es demasiado grande.");
+        }
+        byte[] fila = new byte[width];
+
+        LOGGER.fine("Calculando el histograma de grises");
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        int[] histograma = new int[256];
+        EvaluadorCalidad evaluador = calidadMinima > 0 ? new EvaluadorCalidad(width, height) : null;
+        for (int y = 0; y < height; y++) {
+            fuente.leerFila(y, fila, 0);
+            for (int x = 0; x < width; x++) {
+                histograma[fila[x] & 0xFF]++;
+            }
+            if (evaluador != null) {
+                evaluador.anadirFila(fila, 0);
+            }
+        }
+        if (evaluador != null) {
+            int minimo = 0;
+            while (histograma[minimo] == 0) {
+                minimo++;
+            }
+            int maximo = 255;
+            while (histograma[maximo] == 0) {
+                maximo--;
+            }
+            EvaluadorCalidad.comprobar(evaluador.terminar(minimo, maximo), calidadMinima);
+        }
+        long[] umbral = tablaUmbral(histograma, width * height, saltarEcualizacion);
+        Metricas.registrar(EtapaProceso.HISTOGRAMA_POR_BANDAS, inicio, bytes);
+
+        LOGGER.fine("Binarizando y filtrando el ruido por filas");
+        inicio = Metricas.inicio();
+        bytes = Metricas.bytesReservados();
+        byte[] grid = PoolBuferes.porHilo().bytes(RANURA_REJILLA, width * height);
+        filtrarFilas(fuente, umbral, fila, grid);
+        Metricas.registrar(EtapaProceso.FILTRADO_POR_BANDAS, inicio, bytes);
+
+        LOGGER.fine("Aplicando adelgazamiento Zhang-Suen");
+        inicio = Metricas.inicio();
+        bytes = Metricas.bytesReservados();
+        AdelgazadorZhangSuen.porHilo().adelgazar(grid, width, height, poolAdelgazamiento);
+        Metricas.registrar(EtapaProceso.ADELGAZAMIENTO, inicio, bytes);
+        // Tras adelgazar, el esqueleto de la rejilla queda en blanco (1), como en la imagen adelgazada
+        FingerPrintImage imagenAdelgazada = new FingerPrintImage(width, height, grid);
+
+        LOGGER.fine("Aplicando detección de minucias");
+        MinutiaeDetectionUtils.buscarMinucias(imagenAdelgazada);
+        return imagenAdelgazada;
+    }
+
+    /**
+     * Combina la ecualización y la binarización: para cada nivel de gris de la entrada, 1 si el píxel
+     * queda en blanco y 0 si queda en negro.
+     */
+    private static long[] tablaUmbral(int[] histograma, int tampixel, boolean saltarEcualizacion) {
+        long[] umbral = new long[256];
+        if (saltarEcualizacion) {
+            int valorMedio = ProcesamientoImagenUtils.valorMedio(histograma);
+            for (int valor = 0; valor < 256; valor++) {
+                umbral[valor] = valor > valorMedio ? 1 : 0;
+            }
+        } else {
+            int[] histogramaEcualizado = new int[256];
+            byte[] lutNiveles = ProcesamientoImagenUtils.tablaEcualizacion(histograma, tampixel, histogramaEcualizado);
+            int valorMedio = ProcesamientoImagenUtils.valorMedio(histogramaEcualizado);
+            for (int valor = 0; valor < 256; valor++) {
+                umbral[valor] = (lutNiveles[valor] & 0xFF) > valorMedio ? 1 : 0;
+            }
+        }
+        return umbral;
+    }
+
+    /**
+     * Segunda pasada: binariza, filtra el ruido con {@link FiltroRuidoFusionado} y escribe la rejilla
+     * del adelgazamiento, con 1 para los píxeles negros (las crestas) y 0 para los blancos.
+     */
+    private static void filtrarFilas(FuenteFilasGris fuente, long[] umbral, byte[] fila, byte[] grid) {
+        int width = fuente.getWidth();
+        int height = fuente.getHeight();
+        FiltroRuidoFusionado filtro = new FiltroRuidoFusionado(width, height, (y, filtrada) -> {
+            int destino = y * width;
+            long palabra = 0;
+            for (int x = 0; x < width; x++) {
+                if ((x & 63) == 0) {
+                    palabra = filtrada[x >>> 6];
+                }
+                grid[destino + x] = (byte) (~palabra & 1L);
+                palabra >>>= 1;
+            }
+        });
+        for (int r = 0; r < height; r++) {
+            fuente.leerFila(r, fila, 0);
+            empaquetar(fila, umbral, filtro.getEntrada(), filtro.ranura(r));
+            filtro.filaLista(r);
+        }
+        Metricas.incrementar(ContadorProceso.PIXELES_RUIDO_CORREGIDOS, filtro.getCorregidos());
+    }
+
+    // Binariza una fila de grises con la tabla de umbral y la empaqueta a partir de la posición indicada
+    private static void empaquetar(byte[] fila, long[] umbral, long[] destino, int inicio) {
+        int width = fila.length;
+        long palabra = 0;
+        for (int x = 0; x < width; x++) {
+            palabra |= umbral[fila[x] & 0xFF] << x;
+            if ((x & 63) == 63 || x == width - 1) {
+                destino[inicio + (x >>> 6)] = palabra;
+                palabra = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.biometria;
+
+import java.util.Arrays;
+
+/**
+ * Aplica los dos filtros de ruido binario en una sola pasada por filas. Las filas de la imagen
+ * empaquetada entran de una en una, de arriba abajo, en una ventana circular de tres filas; en cuanto
+ * hay tres filas de entrada se aplica el primer filtro a la del medio, que pasa a otra ventana
+ * circular de tres filas, y en cuanto esta tiene tres filas se aplica el segundo filtro y la fila
+ * resultante se entrega al destino. Ninguna de las dos imágenes intermedias llega a existir entera.
+ * <p>
+ * El resultado es idéntico al de aplicar los dos filtros sobre imágenes completas: cada filtro deja
+ * en negro la primera y la última fila, y las columnas del borde.
+ */
+final class FiltroRuidoFusionado {
+    /**
+     * Recibe las filas ya filtradas, en orden.
+     */
+    interface Destino {
+        /**
+         * @param y    la fila.
+         * @param fila las palabras de la fila filtrada, a partir de la posición 0; se reutilizan para la siguiente.
+         */
+        void escribirFila(int y, long[] fila);
+    }
+
+    private final int height;
+    private final int palabras;
+    private final long[] mascara;
+    private final Destino destino;
+    // Ventanas circulares de tres filas: la fila y está en la posición (y % 3) * palabras
+    private final long[] entrada;
+    private final long[] filtradas1;
+    private final long[] filtrada2;
+    private int siguiente;
+    private long corregidos;
+
+    /**
+     * @param width   el ancho de la imagen.
+     * @param height  el alto de la imagen.
+     * @param destino quien recibe las filas filtradas.
+     */
+    FiltroRuidoFusionado(int width, int height, Destino destino) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        this.height = height;
+        this.palabras = BinaryFingerPrintImage.palabrasPorFila(width);
+        this.mascara = BinaryFingerPrintImage.mascaraInterior(width);
+        this.destino = destino;
+        this.entrada = new long[3 * palabras];
+        this.filtradas1 = new long[3 * palabras];
+        this.filtrada2 = new long[palabras];
+    }
+
+    /**
+     * Devuelve la ventana de entrada, en la que se escribe cada fila en la posición {@link #ranura(int)}
+     * antes de llamar a {@link #filaLista(int)}.
+     *
+     * @return la ventana circular de las filas de entrada.
+     */
+    long[] getEntrada() {
+        return entrada;
+    }
+
+    /**
+     * @param y la fila.
+     * @return la posición de la fila en las ventanas circulares.
+     */
+    int ranura(int y) {
+        return (y % 3) * palabras;
+    }
+
+    /**
+     * Indica que la fila r de la imagen ya está en la ventana de entrada y filtra todo lo que dependía
+     * de ella. Tras la última fila se entregan también las que quedaban pendientes.
+     *
+     * @param r la fila; las filas deben llegar en orden, empezando por la 0.
+     * @throws IllegalStateException si la fila no es la siguiente.
+     */
+    void filaLista(int r) {
+        if (r != siguiente) {
+            throw new IllegalStateException("Se esperaba la fila " + siguiente + " y se recibió la " + r);
+        }
+        siguiente++;
+
+        // Con la fila r ya se puede aplicar el primer filtro a la fila r - 1
+        int k = r - 1;
+        if (k == 0) {
+            Arrays.fill(filtradas1, ranura(0), ranura(0) + palabras, 0L);
+        } else if (k > 0) {
+            TransformacionesImagenUtils.ruidoBinario1Fila(entrada, ranura(k - 1), ranura(k), ranura(k + 1),
+                    filtradas1, ranura(k), mascara);
+        }
+        // Y con la fila r - 1 del primer filtro, el segundo a la fila r - 2
+        if (r >= 2) {
+            filtrarSegundo(r - 2);
+        }
+        if (r == height - 1) {
+            // La última fila del primer filtro queda en negro
+            int ultima = ranura(height - 1);
+            Arrays.fill(filtradas1, ultima, ultima + palabras, 0L);
+            for (int q = Math.max(0, height - 2); q < height; q++) {
+                filtrarSegundo(q);
+            }
+        }
+    }
+
+    /**
+     * @return el número de píxeles de las filas ya entregadas que cambian respecto de la entrada.
+     */
+    long getCorregidos() {
+        return corregidos;
+    }
+
+    // Aplica el segundo filtro a la fila q, que necesita las filas q - 1, q y q + 1 del primero; la
+    // fila q de la entrada sigue en su ventana, porque como mucho han llegado las filas q + 1 y q + 2
+    private void filtrarSegundo(int q) {
+        if (q == 0 || q == height - 1) {
+            Arrays.fill(filtrada2, 0L);
+        } else {
+            TransformacionesImagenUtils.ruidoBinario2Fila(filtradas1, ranura(q - 1), ranura(q), ranura(q + 1),
+                    filtrada2, 0, mascara);
+        }
+        int original = ranura(q);
+        for (int w = 0; w < palabras; w++) {
+            corregidos += Long.bitCount(filtrada2[w] ^ entrada[original + w]);
+        }
+        destino.escribirFila(q, filtrada2);
+    }
+}
@@ -6,18 +6,27 @@ import java.util.List;
  * Representa una imagen de huella dactilar en escala de grises. Esta clase permite la creación
  * y manipulación básica de imágenes de huellas dactilares, como establecer y obtener el valor
  * de píxeles individuales.
+ * <p>
+ * Los píxeles se almacenan en un único búfer {@code byte[]} contiguo ordenado por filas
+ * (el píxel {@code (x, y)} está en {@code y * stride + x}), con un byte sin signo por píxel.
+ * Las etapas de procesamiento pueden recorrer directamente este búfer mediante
+ * {@link #getPixels()} y {@link #getRowOffset(int)} sin comprobar límites en cada píxel.
  */
 public class FingerPrintImage {
     static final int BLANCO = 1;
     static final int NEGRO = 0;
-    private int width;
-    private int height;
-    private char[][] img;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final byte[] pixels;
 
     private char maxGrayValue;
     private char minGrayValue;
     private char midGrayValue;
 
+    // Histograma de niveles de gris (256 entradas), o null si no se ha calculado
+    private int[] histogram;
+
     // Lista de minucias de la imagen
     private List<Minutiae> minutiaeList;
 
@@ -29,12 +38,33 @@ public class FingerPrintImage {
      * @throws IllegalArgumentException si el ancho o la altura son menores o iguales a 0.
      */
     public FingerPrintImage(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Construye una imagen sobre un búfer de píxeles ya existente, sin copiarlo.
+     *
+     * @param width  el ancho de la imagen en píxeles. Debe ser mayor que 0.
+     * @param height la altura de la imagen en píxeles. Debe ser mayor que 0.
+     * @param pixels búfer ordenado por filas de al menos {@code width * height} bytes, o null para reservar uno nuevo.
+     * @throws IllegalArgumentException si las dimensiones no son válidas o el búfer es demasiado pequeño.
+     */
+    FingerPrintImage(int width, int height, byte[] pixels) {
         if (width <= 0 || height <= 0) {
             throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
         }
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("La imagen es demasiado grande.");
+        }
+        if (pixels == null) {
+            pixels = new byte[width * height];
+        } else if (pixels.length < width * height) {
+            throw new IllegalArgumentException("El búfer de píxeles es menor que la imagen.");
+        }
         this.width = width;
         this.height = height;
-        img = new char[width][height];
+        this.stride = width;
+        this.pixels = pixels;
     }
 
     /**
@@ -42,17 +72,14 @@ public class FingerPrintImage {
      * @param img la imagen a copiar
      */
     public FingerPrintImage(FingerPrintImage img){
-        this.width = img.getWidth();
-        this.height = img.getHeight();
-        this.img = new char[width][height];
-        for(int i = 0; i < width; i++){
-            for(int j = 0; j < height; j++){
-                this.img[i][j] = img.getPixel(i, j);
-            }
+        this(img.getWidth(), img.getHeight());
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(img.getPixels(), img.getRowOffset(y), pixels, getRowOffset(y), width);
         }
         this.maxGrayValue = img.getMaxGrayValue();
         this.minGrayValue = img.getMinGrayValue();
         this.midGrayValue = img.getMidGrayValue();
+        this.histogram = img.getHistogram() == null ? null : img.getHistogram().clone();
 
         this.minutiaeList = img.getMinutiaeList();
     }
@@ -81,13 +108,15 @@ public class FingerPrintImage {
      * @param x     la coordenada x del píxel (horizontal).
      * @param y     la coordenada y del píxel (vertical).
      * @param color el valor de escala de grises del píxel, donde 0 es negro y 255 es blanco.
+     *              Invalida el histograma de la imagen, si lo tenía.
      * @throws IllegalArgumentException si las coordenadas están fuera de los límites de la imagen.
      */
     public void setPixel(int x, int y, char color) {
         if (x < 0 || x >= width || y < 0 || y >= height) {
             throw new IllegalArgumentException("Las coordenadas del píxel están fuera de los límites.");
         }
-        img[x][y] = color;
+        pixels[y * stride + x] = (byte) color;
+        histogram = null;
     }
 
     /**
@@ -102,7 +131,40 @@ public class FingerPrintImage {
         if (x < 0 || x >= width || y < 0 || y >= height) {
             throw new IllegalArgumentException("Las coordenadas del píxel están fuera de los límites.");
         }
-        return img[x][y];
+        return (char) (pixels[y * stride + x] & 0xFF);
+    }
+
+    /**
+     * Devuelve el búfer de píxeles subyacente, sin copiarlo. Cada byte se interpreta sin signo
+     * ({@code pixels[i] & 0xFF}); las escrituras sobre el búfer se reflejan en la imagen.
+     *
+     * @return el búfer de píxeles ordenado por filas.
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Devuelve la distancia, en bytes, entre el comienzo de dos filas consecutivas del búfer.
+     *
+     * @return el paso entre filas.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Devuelve la posición en el búfer del primer píxel de la fila indicada.
+     *
+     * @param y la fila.
+     * @return el desplazamiento de la fila dentro de {@link #getPixels()}.
+     * @throws IllegalArgumentException si la fila está fuera de los límites de la imagen.
+     */
+    public int getRowOffset(int y) {
+        if (y < 0 || y >= height) {
+            throw new IllegalArgumentException("La fila está fuera de los límites.");
+        }
+        return y * stride;
     }
 
     public char getMaxGrayValue() {
@@ -129,6 +191,21 @@ public class FingerPrintImage {
         this.midGrayValue = midGrayValue;
     }
 
+    /**
+     * Devuelve el histograma de niveles de gris calculado por la etapa que generó la imagen. Cuando
+     * existe, los valores máximo, mínimo y medio ya son coherentes con él. Las escrituras directas sobre
+     * {@link #getPixels()} no lo invalidan.
+     *
+     * @return el histograma de 256 entradas, o null si no se ha calculado.
+     */
+    public int[] getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(int[] histogram) {
+        this.histogram = histogram;
+    }
+
     public List<Minutiae> getMinutiaeList() {
         return minutiaeList;
     }
@@ -0,0 +1,21 @@
+package org.biometria;
+
+/**
+ * Origen de una imagen en escala de grises que se lee fila a fila, sin tenerla entera en memoria como
+ * {@link FingerPrintImage}. Cada fila se puede leer más de una vez y en cualquier orden, aunque
+ * {@link ExtraccionPorBandas} las recorre de arriba abajo.
+ */
+public interface FuenteFilasGris {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Copia una fila de niveles de gris, un byte sin signo por píxel.
+     *
+     * @param y              la fila.
+     * @param destino        el búfer donde se copia.
+     * @param desplazamiento la posición de {@code destino} donde se copia el primer píxel.
+     */
+    void leerFila(int y, byte[] destino, int desplazamiento);
+}
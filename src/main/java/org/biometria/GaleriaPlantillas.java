@@ -0,0 +1,372 @@
+package org.biometria;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Galería de plantillas de minucias guardada en un único archivo, que se lee proyectándolo en memoria.
+ * Las comparaciones con una sonda leen las minucias directamente de la proyección, sin crear objetos
+ * por plantilla ni copiarlas al montículo.
+ * <p>
+ * Formato del archivo, en little-endian:
+ * <ul>
+ *     <li>Cabecera de {@value #TAMANO_CABECERA} bytes: firma, versión, número de plantillas, capacidad
+ *     y posición de la tabla de posiciones y final de los datos.</li>
+ *     <li>Tabla de posiciones: un {@code long} por plantilla con la posición de su registro.</li>
+ *     <li>Registros: identificador ({@code int}), número de minucias ({@code short} sin signo) y dos
+ *     bytes de relleno, seguidos de {@value #BYTES_POR_MINUCIA} bytes por minucia: x e y ({@code short}
+ *     sin signo), el tipo y los tres ángulos cuantizados de {@link MinutiaeTemplate}.</li>
+ * </ul>
+ * Añadir una plantilla escribe su registro al final del archivo, su posición en la tabla y, por último,
+ * la cabecera, así que nunca se reescriben los registros existentes. Cuando la tabla se llena se escribe
+ * otra del doble de capacidad al final del archivo. Si el proceso se interrumpe a mitad, la cabecera
+ * sigue describiendo la galería anterior.
+ * <p>
+ * El archivo se proyecta en tramos de {@value #TAMANO_TRAMO} bytes y ningún registro cruza el límite de
+ * un tramo. Las lecturas pueden hacerse desde varios hilos mientras no se añadan plantillas.
+ */
+public class GaleriaPlantillas implements Closeable {
+    private final static Logger LOGGER = Logger.getLogger(GaleriaPlantillas.class.getName());
+
+    /**
+     * Bytes que ocupa cada minucia en un registro.
+     */
+    public static final int BYTES_POR_MINUCIA = 8;
+
+    static final int TAMANO_CABECERA = 64;
+    static final int TAMANO_TRAMO = 1 << 30;
+    private static final int MAGIA = 0x4D4E4353;
+    private static final int VERSION = 1;
+    private static final int CAPACIDAD_INICIAL_TABLA = 1024;
+    private static final int BYTES_CABECERA_REGISTRO = 8;
+    private static final int MAXIMO_MINUCIAS = 0xFFFF;
+
+    private final FileChannel canal;
+    private final boolean soloLectura;
+
+    // Copia en memoria de la tabla de posiciones y de la cabecera
+    private long[] posiciones;
+    private int numPlantillas;
+    private int capacidadTabla;
+    private long posicionTabla;
+    private long finDatos;
+
+    private volatile Proyeccion proyeccion = new Proyeccion(new ByteBuffer[0], 0);
+    private ByteBuffer escritura = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Tramos proyectados y hasta dónde cubren el archivo
+    private static final class Proyeccion {
+        final ByteBuffer[] tramos;
+        final long fin;
+
+        Proyeccion(ByteBuffer[] tramos, long fin) {
+            this.tramos = tramos;
+            this.fin = fin;
+        }
+    }
+
+    private GaleriaPlantillas(FileChannel canal, boolean soloLectura) {
+        this.canal = canal;
+        this.soloLectura = soloLectura;
+    }
+
+    /**
+     * Abre una galería para leer y añadir plantillas, creándola si el archivo no existe.
+     *
+     * @param archivo la ruta del archivo.
+     * @return la galería abierta.
+     * @throws IOException si no se puede abrir o el archivo no es una galería válida.
+     */
+    public static GaleriaPlantillas abrir(Path archivo) throws IOException {
+        boolean nueva = !Files.exists(archivo) || Files.size(archivo) == 0;
+        FileChannel canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return iniciar(canal, false, nueva, archivo);
+    }
+
+    /**
+     * Abre una galería existente sólo para leer.
+     *
+     * @param archivo la ruta del archivo.
+     * @return la galería abierta.
+     * @throws IOException si no se puede abrir o el archivo no es una galería válida.
+     */
+    public static GaleriaPlantillas abrirSoloLectura(Path archivo) throws IOException {
+        return iniciar(FileChannel.open(archivo, StandardOpenOption.READ), true, false, archivo);
+    }
+
+    private static GaleriaPlantillas iniciar(FileChannel canal, boolean soloLectura, boolean nueva, Path archivo)
+            throws IOException {
+        GaleriaPlantillas galeria = new GaleriaPlantillas(canal, soloLectura);
+        try {
+            if (nueva) {
+                galeria.inicializar();
+                LOGGER.info("Creada la galería de plantillas " + archivo);
+            } else {
+                galeria.cargarCabecera();
+            }
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+        return galeria;
+    }
+
+    private void inicializar() throws IOException {
+        capacidadTabla = CAPACIDAD_INICIAL_TABLA;
+        posicionTabla = TAMANO_CABECERA;
+        finDatos = posicionTabla + (long) capacidadTabla * Long.BYTES;
+        posiciones = new long[capacidadTabla];
+        escribir(ByteBuffer.allocate(capacidadTabla * Long.BYTES), posicionTabla);
+        escribirCabecera();
+    }
+
+    private void cargarCabecera() throws IOException {
+        ByteBuffer cabecera = leerCompleto(0, TAMANO_CABECERA);
+        if (cabecera.getInt(0) != MAGIA) {
+            throw new IOException("El archivo no es una galería de plantillas.");
+        }
+        if (cabecera.getInt(4) != VERSION) {
+            throw new IOException("Versión de galería no soportada: " + cabecera.getInt(4));
+        }
+        numPlantillas = cabecera.getInt(8);
+        capacidadTabla = cabecera.getInt(12);
+        posicionTabla = cabecera.getLong(16);
+        finDatos = cabecera.getLong(24);
+        if (numPlantillas < 0 || numPlantillas > capacidadTabla || finDatos > canal.size()
+                || posicionTabla + (long) capacidadTabla * Long.BYTES > finDatos) {
+            throw new IOException("La cabecera de la galería está dañada.");
+        }
+        posiciones = new long[capacidadTabla];
+        leerCompleto(posicionTabla, numPlantillas * Long.BYTES).asLongBuffer().get(posiciones, 0, numPlantillas);
+    }
+
+    /**
+     * Añade una plantilla al final de la galería.
+     *
+     * @param id        el identificador de la plantilla; no tiene por qué ser único.
+     * @param plantilla las minucias.
+     * @return el índice de la plantilla en la galería.
+     * @throws IOException si la galería es de sólo lectura o falla la escritura.
+     * @throws IllegalArgumentException si la plantilla tiene más minucias de las que admite un registro.
+     */
+    public int anadir(int id, MinutiaeTemplate plantilla) throws IOException {
+        if (soloLectura) {
+            throw new IOException("La galería está abierta sólo para lectura.");
+        }
+        int n = plantilla.size();
+        if (n > MAXIMO_MINUCIAS) {
+            throw new IllegalArgumentException("La plantilla tiene demasiadas minucias: " + n);
+        }
+        int longitud = BYTES_CABECERA_REGISTRO + n * BYTES_POR_MINUCIA;
+        if (escritura.capacity() < longitud) {
+            escritura = ByteBuffer.allocate(longitud).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        escritura.clear();
+        escritura.putInt(id).putShort((short) n).putShort((short) 0);
+        for (int i = 0; i < n; i++) {
+            escritura.putShort((short) plantilla.getX(i))
+                    .putShort((short) plantilla.getY(i))
+                    .put((byte) plantilla.getType(i))
+                    .put((byte) plantilla.getAnguloCuantizado(i, 0))
+                    .put((byte) plantilla.getAnguloCuantizado(i, 1))
+                    .put((byte) plantilla.getAnguloCuantizado(i, 2));
+        }
+        escritura.flip();
+
+        long posicion = posicionSinCruzarTramo(finDatos, longitud);
+        escribir(escritura, posicion);
+        long fin = posicion + longitud;
+
+        if (numPlantillas == capacidadTabla) {
+            // Tabla llena: se escribe una nueva del doble de capacidad tras el registro
+            int capacidad = capacidadTabla * 2;
+            long[] ampliadas = Arrays.copyOf(posiciones, capacidad);
+            ampliadas[numPlantillas] = posicion;
+            ByteBuffer tabla = ByteBuffer.allocate(capacidad * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            tabla.asLongBuffer().put(ampliadas);
+            escribir(tabla, fin);
+            posiciones = ampliadas;
+            posicionTabla = fin;
+            capacidadTabla = capacidad;
+            fin += (long) capacidad * Long.BYTES;
+        } else {
+            ByteBuffer entrada = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            entrada.putLong(0, posicion);
+            escribir(entrada, posicionTabla + (long) numPlantillas * Long.BYTES);
+            posiciones[numPlantillas] = posicion;
+        }
+        finDatos = fin;
+        numPlantillas++;
+        escribirCabecera();
+        return numPlantillas - 1;
+    }
+
+    /**
+     * Añade una plantilla al final de la galería.
+     *
+     * @param id           el identificador de la plantilla.
+     * @param minutiaeList las minucias.
+     * @return el índice de la plantilla en la galería.
+     * @throws IOException si la galería es de sólo lectura o falla la escritura.
+     */
+    public int anadir(int id, List<Minutiae> minutiaeList) throws IOException {
+        return anadir(id, MinutiaeTemplate.desde(minutiaeList));
+    }
+
+    public int size() {
+        return numPlantillas;
+    }
+
+    public int getId(int i) {
+        long posicion = posicionRegistro(i);
+        return tramo(posicion, BYTES_CABECERA_REGISTRO).getInt(desplazamiento(posicion));
+    }
+
+    public int getNumMinucias(int i) {
+        long posicion = posicionRegistro(i);
+        return tramo(posicion, BYTES_CABECERA_REGISTRO).getShort(desplazamiento(posicion) + 4) & 0xFFFF;
+    }
+
+    /**
+     * Copia las minucias de una plantilla de la galería.
+     *
+     * @param i       el índice de la plantilla.
+     * @param destino la plantilla que recibe las minucias; se vacía antes.
+     */
+    public void leer(int i, MinutiaeTemplate destino) {
+        int n = getNumMinucias(i);
+        long posicion = posicionRegistro(i);
+        ByteBuffer datos = tramo(posicion, BYTES_CABECERA_REGISTRO + n * BYTES_POR_MINUCIA);
+        int p = desplazamiento(posicion) + BYTES_CABECERA_REGISTRO;
+        destino.vaciar();
+        for (int k = 0; k < n; k++, p += BYTES_POR_MINUCIA) {
+            destino.anadir(datos.getShort(p) & 0xFFFF, datos.getShort(p + 2) & 0xFFFF, datos.get(p + 4),
+                    datos.get(p + 5), datos.get(p + 6), datos.get(p + 7));
+        }
+    }
+
+    /**
+     * Lee una plantilla de la galería.
+     *
+     * @param i el índice de la plantilla.
+     * @return una copia de sus minucias.
+     */
+    public MinutiaeTemplate leer(int i) {
+        MinutiaeTemplate plantilla = new MinutiaeTemplate(getNumMinucias(i));
+        leer(i, plantilla);
+        return plantilla;
+    }
+
+    /**
+     * Compara una plantilla de la galería con la sonda fijada en el comparador, leyendo sus minucias
+     * directamente del archivo proyectado.
+     *
+     * @param i          el índice de la plantilla.
+     * @param comparador el comparador, con la sonda ya fijada mediante
+     *                   {@link ComparadorMinucias#fijarSonda(MinutiaeTemplate)}.
+     * @return la puntuación, entre 0 y {@link ComparadorMinucias#PUNTUACION_MAXIMA}.
+     */
+    public int compararConSonda(int i, ComparadorMinucias comparador) {
+        int n = getNumMinucias(i);
+        long posicion = posicionRegistro(i);
+        ByteBuffer datos = tramo(posicion, BYTES_CABECERA_REGISTRO + n * BYTES_POR_MINUCIA);
+        return comparador.compararConSonda(datos, desplazamiento(posicion) + BYTES_CABECERA_REGISTRO, n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!soloLectura) {
+            canal.force(true);
+        }
+        proyeccion = new Proyeccion(new ByteBuffer[0], 0);
+        canal.close();
+    }
+
+    private long posicionRegistro(int i) {
+        if (i < 0 || i >= numPlantillas) {
+            throw new IllegalArgumentException("La plantilla está fuera de los límites de la galería.");
+        }
+        return posiciones[i];
+    }
+
+    private static int desplazamiento(long posicion) {
+        return (int) (posicion % TAMANO_TRAMO);
+    }
+
+    // Si el registro cruzara el límite de un tramo, empieza en el siguiente
+    private static long posicionSinCruzarTramo(long posicion, int longitud) {
+        long siguienteTramo = (posicion / TAMANO_TRAMO + 1) * TAMANO_TRAMO;
+        return posicion + longitud > siguienteTramo ? siguienteTramo : posicion;
+    }
+
+    // Tramo proyectado que contiene el rango indicado, proyectando de nuevo si se ha añadido después
+    private ByteBuffer tramo(long posicion, int longitud) {
+        Proyeccion actual = proyeccion;
+        if (posicion + longitud > actual.fin) {
+            actual = proyectar();
+        }
+        return actual.tramos[(int) (posicion / TAMANO_TRAMO)];
+    }
+
+    private synchronized Proyeccion proyectar() {
+        Proyeccion anterior = proyeccion;
+        if (anterior.fin == finDatos) {
+            return anterior;
+        }
+        int numTramos = (int) ((finDatos + TAMANO_TRAMO - 1) / TAMANO_TRAMO);
+        ByteBuffer[] tramos = Arrays.copyOf(anterior.tramos, numTramos);
+        // Los tramos completos ya proyectados se conservan; el último y los nuevos se proyectan otra vez
+        int primero = (int) (anterior.fin / TAMANO_TRAMO);
+        try {
+            for (int t = primero; t < numTramos; t++) {
+                long inicio = (long) t * TAMANO_TRAMO;
+                long tamano = Math.min(TAMANO_TRAMO, finDatos - inicio);
+                MappedByteBuffer tramo = canal.map(FileChannel.MapMode.READ_ONLY, inicio, tamano);
+                tramos[t] = tramo.order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se ha podido proyectar la galería en memoria.", e);
+        }
+        proyeccion = new Proyeccion(tramos, finDatos);
+        return proyeccion;
+    }
+
+    private void escribirCabecera() throws IOException {
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA).order(ByteOrder.LITTLE_ENDIAN);
+        cabecera.putInt(0, MAGIA)
+                .putInt(4, VERSION)
+                .putInt(8, numPlantillas)
+                .putInt(12, capacidadTabla)
+                .putLong(16, posicionTabla)
+                .putLong(24, finDatos);
+        escribir(cabecera, 0);
+    }
+
+    private void escribir(ByteBuffer datos, long posicion) throws IOException {
+        while (datos.hasRemaining()) {
+            posicion += canal.write(datos, posicion);
+        }
+    }
+
+    private ByteBuffer leerCompleto(long posicion, int longitud) throws IOException {
+        ByteBuffer datos = ByteBuffer.allocate(longitud).order(ByteOrder.LITTLE_ENDIAN);
+        while (datos.hasRemaining()) {
+            if (canal.read(datos, posicion + datos.position()) < 0) {
+                throw new IOException("El archivo de la galería está truncado.");
+            }
+        }
+        return datos.flip();
+    }
+}
@@ -0,0 +1,426 @@
+package org.biometria;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Índice en memoria para identificación 1:N: dada una plantilla sonda, devuelve una lista corta de
+ * plantillas de la galería candidatas a compararse con {@link ComparadorMinucias}.
+ * <p>
+ * Cada plantilla se describe con triángulos formados por cada minucia y dos de sus
+ * {@value #VECINOS} vecinas más cercanas. De cada triángulo se obtiene una clave invariante a
+ * rotación y traslación: la longitud de sus tres lados, ordenados y cuantizados, el tipo de cada
+ * vértice y la dirección de cada minucia respecto a la recta que une su vértice con el centro del
+ * triángulo, cuantizada en octantes. Las claves se guardan en una tabla hash de direccionamiento
+ * abierto con claves {@code int}, y cada una apunta a la lista de plantillas que la contienen. Los
+ * identificadores de las plantillas se buscan en otra tabla del mismo tipo, así que el índice no crea
+ * objetos por plantilla fuera de sus arrays de claves.
+ * <p>
+ * Una consulta calcula las claves de la sonda y suma un voto a cada plantilla por cada clave
+ * compartida; sólo recorre las listas de esas claves, no toda la galería. Las plantillas se pueden
+ * añadir y eliminar en cualquier momento. Cada instancia reutiliza su memoria de trabajo entre
+ * consultas, por lo que no es segura para varios hilos.
+ */
+public class IndiceGeometrico {
+    /**
+     * Vecinas más cercanas de cada minucia con las que se forman triángulos.
+     */
+    public static final int VECINOS = 3;
+
+    // Cuantización de los lados: 5 bits, en pasos de 8 píxeles
+    private static final int PASO_LADO = 8;
+    private static final int LADO_MAXIMO = 31;
+    // Votos mínimos para que una plantilla se considere candidata
+    private static final int VOTOS_MINIMOS = 2;
+
+    // Tabla hash: clave + 1 (0 es una posición libre), lista de ranuras y su longitud
+    private int[] tablaClaves = new int[1024];
+    private int[][] tablaListas = new int[1024][];
+    private int[] tablaTamanos = new int[1024];
+    private int numClaves;
+
+    // Plantillas indexadas, en ranuras densas que se reutilizan al eliminar
+    private int[] idPorRanura = new int[64];
+    private int[][] clavesPorRanura = new int[64][];
+    private int numRanuras;
+    private int[] ranurasLibres = new int[16];
+    private int numRanurasLibres;
+
+    // Tabla hash de identificadores: id y ranura + 1 (0 es una posición libre)
+    private int[] tablaIds = new int[64];
+    private int[] tablaRanuras = new int[64];
+    private int numPlantillas;
+
+    // Memoria de trabajo de las consultas
+    private int[] votos = new int[64];
+    private int[] tocadas = new int[64];
+    private long[] puntuadas = new long[64];
+    private final Triangulos triangulos = new Triangulos();
+
+    /**
+     * Añade una plantilla al índice. Si ya había una con el mismo identificador, la sustituye.
+     *
+     * @param id        el identificador de la plantilla, que devuelven las consultas.
+     * @param plantilla las minucias de la plantilla.
+     */
+    public void insertar(int id, MinutiaeTemplate plantilla) {
+        eliminar(id);
+        int[] claves = triangulos.calcularClaves(plantilla);
+        int ranura = reservarRanura(id);
+        clavesPorRanura[ranura] = claves;
+        for (int clave : claves) {
+            anadirALista(clave, ranura);
+        }
+    }
+
+    /**
+     * Añade una plantilla al índice a partir de las minucias detectadas.
+     *
+     * @param id            el identificador de la plantilla.
+     * @param minutiaeList las minucias, como las que devuelve {@link MinutiaeDetectionUtils#buscarMinucias}.
+     */
+    public void insertar(int id, List<Minutiae> minutiaeList) {
+        insertar(id, MinutiaeTemplate.desde(minutiaeList));
+    }
+
+    /**
+     * Elimina una plantilla del índice.
+     *
+     * @param id el identificador de la plantilla.
+     * @return true si la plantilla estaba en el índice.
+     */
+    public boolean eliminar(int id) {
+        int posicionId = buscarPosicionId(id);
+        if (tablaRanuras[posicionId] == 0) {
+            return false;
+        }
+        int ranura = tablaRanuras[posicionId] - 1;
+        quitarId(posicionId);
+        for (int clave : clavesPorRanura[ranura]) {
+            quitarDeLista(clave, ranura);
+        }
+        clavesPorRanura[ranura] = null;
+        if (numRanurasLibres == ranurasLibres.length) {
+            ranurasLibres = Arrays.copyOf(ranurasLibres, numRanurasLibres * 2);
+        }
+        ranurasLibres[numRanurasLibres++] = ranura;
+        return true;
+    }
+
+    /**
+     * Devuelve el número de plantillas indexadas.
+     *
+     * @return el tamaño de la galería.
+     */
+    public int size() {
+        return numPlantillas;
+    }
+
+    /**
+     * Busca las plantillas que comparten más triángulos con la sonda.
+     *
+     * @param sonda          la plantilla a identificar.
+     * @param maxCandidatos  el número máximo de candidatas a devolver.
+     * @return los identificadores de las candidatas, de más a menos votos.
+     * @throws IllegalArgumentException si el número de candidatas no es positivo.
+     */
+    public int[] buscarCandidatos(MinutiaeTemplate sonda, int maxCandidatos) {
+        if (maxCandidatos <= 0) {
+            throw new IllegalArgumentException("El número de candidatas debe ser positivo.");
+        }
+        if (votos.length < numRanuras) {
+            votos = new int[idPorRanura.length];
+        }
+        int numTocadas = 0;
+        for (int clave : triangulos.calcularClaves(sonda)) {
+            int posicion = buscarPosicion(clave);
+            if (tablaClaves[posicion] == 0) {
+                continue;
+            }
+            int[] lista = tablaListas[posicion];
+            int tamano = tablaTamanos[posicion];
+            for (int k = 0; k < tamano; k++) {
+                int ranura = lista[k];
+                if (votos[ranura]++ == 0) {
+                    if (numTocadas == tocadas.length) {
+                        tocadas = Arrays.copyOf(tocadas, numTocadas * 2);
+                    }
+                    tocadas[numTocadas++] = ranura;
+                }
+            }
+        }
+
+        // Se ordenan las ranuras con suficientes votos empaquetando (votos, ranura) en un long
+        if (puntuadas.length < numTocadas) {
+            puntuadas = new long[tocadas.length];
+        }
+        int numPuntuadas = 0;
+        for (int t = 0; t < numTocadas; t++) {
+            int ranura = tocadas[t];
+            if (votos[ranura] >= VOTOS_MINIMOS) {
+                puntuadas[numPuntuadas++] = (long) votos[ranura] << 32 | ranura;
+            }
+            votos[ranura] = 0;
+        }
+        Arrays.sort(puntuadas, 0, numPuntuadas);
+        int cantidad = Math.min(maxCandidatos, numPuntuadas);
+        int[] candidatas = new int[cantidad];
+        for (int c = 0; c < cantidad; c++) {
+            candidatas[c] = idPorRanura[(int) puntuadas[numPuntuadas - 1 - c]];
+        }
+        return candidatas;
+    }
+
+    /**
+     * Busca candidatas a partir de las minucias detectadas en la sonda.
+     *
+     * @param minutiaeList  las minucias de la sonda.
+     * @param maxCandidatos el número máximo de candidatas a devolver.
+     * @return los identificadores de las candidatas, de más a menos votos.
+     */
+    public int[] buscarCandidatos(List<Minutiae> minutiaeList, int maxCandidatos) {
+        return buscarCandidatos(MinutiaeTemplate.desde(minutiaeList), maxCandidatos);
+    }
+
+    private int reservarRanura(int id) {
+        int ranura;
+        if (numRanurasLibres > 0) {
+            ranura = ranurasLibres[--numRanurasLibres];
+        } else {
+            if (numRanuras == idPorRanura.length) {
+                idPorRanura = Arrays.copyOf(idPorRanura, numRanuras * 2);
+                clavesPorRanura = Arrays.copyOf(clavesPorRanura, numRanuras * 2);
+            }
+            ranura = numRanuras++;
+        }
+        idPorRanura[ranura] = id;
+        anadirId(id, ranura);
+        return ranura;
+    }
+
+    private void anadirId(int id, int ranura) {
+        // Como la de claves, la tabla se mantiene ocupada como mucho a la mitad
+        if (2 * (numPlantillas + 1) > tablaIds.length) {
+            redimensionarIds();
+        }
+        int posicion = buscarPosicionId(id);
+        tablaIds[posicion] = id;
+        tablaRanuras[posicion] = ranura + 1;
+        numPlantillas++;
+    }
+
+    // Vacía la posición y adelanta las entradas siguientes de la secuencia de sondeo que ya no se encontrarían
+    private void quitarId(int posicion) {
+        int mascara = tablaIds.length - 1;
+        int libre = posicion;
+        int siguiente = (libre + 1) & mascara;
+        while (tablaRanuras[siguiente] != 0) {
+            int inicial = mezclar(tablaIds[siguiente]) & mascara;
+            // Se mueve si su posición inicial no está entre la libre (excluida) y la suya, circularmente
+            if (((siguiente - inicial) & mascara) >= ((siguiente - libre) & mascara)) {
+                tablaIds[libre] = tablaIds[siguiente];
+                tablaRanuras[libre] = tablaRanuras[siguiente];
+                libre = siguiente;
+            }
+            siguiente = (siguiente + 1) & mascara;
+        }
+        tablaRanuras[libre] = 0;
+        numPlantillas--;
+    }
+
+    // Posición del identificador en su tabla, o la posición libre donde iría
+    private int buscarPosicionId(int id) {
+        int mascara = tablaIds.length - 1;
+        int posicion = mezclar(id) & mascara;
+        while (tablaRanuras[posicion] != 0 && tablaIds[posicion] != id) {
+            posicion = (posicion + 1) & mascara;
+        }
+        return posicion;
+    }
+
+    private void redimensionarIds() {
+        int[] idsAnteriores = tablaIds;
+        int[] ranurasAnteriores = tablaRanuras;
+        tablaIds = new int[idsAnteriores.length * 2];
+        tablaRanuras = new int[idsAnteriores.length * 2];
+        for (int p = 0; p < idsAnteriores.length; p++) {
+            if (ranurasAnteriores[p] != 0) {
+                int posicion = buscarPosicionId(idsAnteriores[p]);
+                tablaIds[posicion] = idsAnteriores[p];
+                tablaRanuras[posicion] = ranurasAnteriores[p];
+            }
+        }
+    }
+
+    private void anadirALista(int clave, int ranura) {
+        int posicion = buscarPosicion(clave);
+        if (tablaClaves[posicion] == 0) {
+            // La tabla se mantiene ocupada como mucho a la mitad
+            if (2 * (numClaves + 1) > tablaClaves.length) {
+                redimensionar();
+                posicion = buscarPosicion(clave);
+            }
+            tablaClaves[posicion] = clave + 1;
+            tablaListas[posicion] = new int[4];
+            numClaves++;
+        }
+        int tamano = tablaTamanos[posicion];
+        if (tamano == tablaListas[posicion].length) {
+            tablaListas[posicion] = Arrays.copyOf(tablaListas[posicion], tamano * 2);
+        }
+        tablaListas[posicion][tamano] = ranura;
+        tablaTamanos[posicion] = tamano + 1;
+    }
+
+    // Las claves se quedan en la tabla aunque su lista se vacíe, así no hace falta reubicar las demás
+    private void quitarDeLista(int clave, int ranura) {
+        int posicion = buscarPosicion(clave);
+        int[] lista = tablaListas[posicion];
+        int tamano = tablaTamanos[posicion];
+        for (int k = 0; k < tamano; k++) {
+            if (lista[k] == ranura) {
+                lista[k] = lista[tamano - 1];
+                tablaTamanos[posicion] = tamano - 1;
+                return;
+            }
+        }
+    }
+
+    // Posición de la clave en la tabla, o la posición libre donde iría
+    private int buscarPosicion(int clave) {
+        int mascara = tablaClaves.length - 1;
+        int posicion = mezclar(clave) & mascara;
+        while (tablaClaves[posicion] != 0 && tablaClaves[posicion] != clave + 1) {
+            posicion = (posicion + 1) & mascara;
+        }
+        return posicion;
+    }
+
+    private void redimensionar() {
+        int[] clavesAnteriores = tablaClaves;
+        int[][] listasAnteriores = tablaListas;
+        int[] tamanosAnteriores = tablaTamanos;
+        int capacidad = clavesAnteriores.length * 2;
+        tablaClaves = new int[capacidad];
+        tablaListas = new int[capacidad][];
+        tablaTamanos = new int[capacidad];
+        for (int p = 0; p < clavesAnteriores.length; p++) {
+            if (clavesAnteriores[p] != 0) {
+                int posicion = buscarPosicion(clavesAnteriores[p] - 1);
+                tablaClaves[posicion] = clavesAnteriores[p];
+                tablaListas[posicion] = listasAnteriores[p];
+                tablaTamanos[posicion] = tamanosAnteriores[p];
+            }
+        }
+    }
+
+    // Dispersa los bits de la clave, cuyos bits bajos (el lado más corto) están muy concentrados
+    private static int mezclar(int clave) {
+        int h = clave * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Calcula las claves de los triángulos de una plantilla, reutilizando sus arrays entre llamadas.
+     */
+    private static final class Triangulos {
+        private int[] vecinos = new int[64 * VECINOS];
+        private long[] distancias = new long[64];
+        private int[] claves = new int[64 * VECINOS * (VECINOS - 1) / 2];
+
+        /**
+         * @return las claves distintas de la plantilla, ordenadas.
+         */
+        int[] calcularClaves(MinutiaeTemplate plantilla) {
+            int n = plantilla.size();
+            int k = Math.min(VECINOS, n - 1);
+            if (k < 2) {
+                return new int[0];
+            }
+            if (vecinos.length < n * VECINOS) {
+                vecinos = new int[n * VECINOS];
+                distancias = new long[n];
+                claves = new int[n * VECINOS * (VECINOS - 1) / 2];
+            }
+
+            // Vecinas más cercanas de cada minucia, empaquetando (distancia², índice) para ordenarlas
+            for (int i = 0; i < n; i++) {
+                int numDistancias = 0;
+                for (int j = 0; j < n; j++) {
+                    if (j != i) {
+                        long dx = plantilla.getX(j) - plantilla.getX(i);
+                        long dy = plantilla.getY(j) - plantilla.getY(i);
+                        distancias[numDistancias++] = (dx * dx + dy * dy) << 32 | j;
+                    }
+                }
+                Arrays.sort(distancias, 0, numDistancias);
+                for (int v = 0; v < k; v++) {
+                    vecinos[i * VECINOS + v] = (int) distancias[v];
+                }
+            }
+
+            int numClaves = 0;
+            for (int i = 0; i < n; i++) {
+                for (int v1 = 0; v1 < k; v1++) {
+                    for (int v2 = v1 + 1; v2 < k; v2++) {
+                        claves[numClaves++] = clave(plantilla, i, vecinos[i * VECINOS + v1], vecinos[i * VECINOS + v2]);
+                    }
+                }
+            }
+            Arrays.sort(claves, 0, numClaves);
+            int distintas = 0;
+            for (int c = 0; c < numClaves; c++) {
+                if (c == 0 || claves[c] != claves[c - 1]) {
+                    claves[distintas++] = claves[c];
+                }
+            }
+            return Arrays.copyOf(claves, distintas);
+        }
+
+        /**
+         * Clave de 27 bits del triángulo: los tres lados cuantizados de menor a mayor (5 bits cada uno),
+         * si es bifurcación el vértice opuesto a cada lado (1 bit cada uno) y la dirección relativa de
+         * la minucia de ese vértice (3 bits cada uno).
+         */
+        private static int clave(MinutiaeTemplate plantilla, int p0, int p1, int p2) {
+            int[] vertices = {p0, p1, p2};
+            double[] lados = {
+                    distancia(plantilla, p1, p2),
+                    distancia(plantilla, p2, p0),
+                    distancia(plantilla, p0, p1)
+            };
+            // Ordena los vértices por la longitud del lado opuesto
+            for (int a = 1; a < 3; a++) {
+                for (int b = a; b > 0 && lados[b] < lados[b - 1]; b--) {
+                    double lado = lados[b];
+                    lados[b] = lados[b - 1];
+                    lados[b - 1] = lado;
+                    int vertice = vertices[b];
+                    vertices[b] = vertices[b - 1];
+                    vertices[b - 1] = vertice;
+                }
+            }
+            double centroX = (plantilla.getX(p0) + plantilla.getX(p1) + plantilla.getX(p2)) / 3.0;
+            double centroY = (plantilla.getY(p0) + plantilla.getY(p1) + plantilla.getY(p2)) / 3.0;
+
+            int clave = 0;
+            for (int v = 0; v < 3; v++) {
+                int p = vertices[v];
+                int lado = Math.min(LADO_MAXIMO, (int) (lados[v] / PASO_LADO));
+                int bifurcacion = plantilla.getType(p) == 3 ? 1 : 0;
+                double haciaCentro = Math.toDegrees(Math.atan2(centroY - plantilla.getY(p), centroX - plantilla.getX(p)));
+                int relativa = (plantilla.getDireccionCuantizada(p) - MinutiaeTemplate.cuantizarAngulo(haciaCentro)) & 0xFF;
+                // Octante redondeado al más cercano
+                int octante = ((relativa + 16) >> 5) & 7;
+                clave |= lado << (5 * v) | bifurcacion << (15 + v) | octante << (18 + 3 * v);
+            }
+            return clave;
+        }
+
+        private static double distancia(MinutiaeTemplate plantilla, int a, int b) {
+            double dx = plantilla.getX(b) - plantilla.getX(a);
+            double dy = plantilla.getY(b) - plantilla.getY(a);
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.biometria;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lee imágenes en escala de grises de 8 bits sin pasar por ImageIO ni cargar AWT: archivos PGM binarios
+ * ({@code P5}) y archivos crudos de un byte por píxel, ordenados por filas, cuyas dimensiones se indican
+ * aparte. El archivo se proyecta en memoria con {@link FileChannel#map} y cada fila se copia directamente
+ * de la proyección al búfer de destino, sin decodificar nada ni pasar por valores RGB.
+ * <p>
+ * Los niveles de gris se usan tal cual, sin la conversión de espacio de color que aplica
+ * {@link ProcesamientoImagenUtils#convertirRGBaGris} a las imágenes grises de ImageIO. Los PGM con un
+ * valor máximo menor que 255 se reescalan a 0-255; los de 16 bits no se admiten. La proyección sigue
+ * siendo válida después de cerrar el archivo y se libera cuando el lector deja de usarse. Las
+ * instancias no tienen estado mutable y se pueden leer desde varios hilos.
+ */
+public final class LectorPGM implements FuenteFilasGris {
+    private final ByteBuffer datos;
+    private final int inicio;
+    private final int width;
+    private final int height;
+    // Reescalado de cada nivel cuando el valor máximo no es 255, o null si se copian tal cual
+    private final byte[] escala;
+
+    private LectorPGM(ByteBuffer datos, int inicio, int width, int height, int maximo) {
+        this.datos = datos;
+        this.inicio = inicio;
+        this.width = width;
+        this.height = height;
+        if (maximo == 255) {
+            this.escala = null;
+        } else {
+            this.escala = new byte[256];
+            for (int v = 0; v <= maximo; v++) {
+                escala[v] = (byte) ((v * 255 + maximo / 2) / maximo);
+            }
+            for (int v = maximo + 1; v < 256; v++) {
+                escala[v] = (byte) 255;
+            }
+        }
+    }
+
+    /**
+     * Abre un archivo PGM binario ({@code P5}) de 8 bits.
+     *
+     * @param archivo el archivo.
+     * @return el lector de sus filas.
+     * @throws IOException si no se puede leer, no es un PGM binario o su cabecera no es válida.
+     */
+    public static LectorPGM abrir(Path archivo) throws IOException {
+        try {
+            return leer(proyectar(archivo));
+        } catch (IOException e) {
+            throw new IOException(archivo + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Interpreta un PGM binario ({@code P5}) de 8 bits ya en memoria, sin copiarlo.
+     *
+     * @param datos el contenido del archivo, desde su posición actual.
+     * @return el lector de sus filas.
+     * @throws IOException si no es un PGM binario o su cabecera no es válida.
+     */
+    public static LectorPGM leer(ByteBuffer datos) throws IOException {
+        ByteBuffer cabecera = datos.slice();
+        if (cabecera.remaining() < 2 || cabecera.get() != 'P' || cabecera.get() != '5') {
+            throw new IOException("No es un archivo PGM binario (P5).");
+        }
+        int width = leerEntero(cabecera);
+        int height = leerEntero(cabecera);
+        int maximo = leerEntero(cabecera);
+        if (maximo < 1 || maximo > 65535) {
+            throw new IOException("Valor máximo de gris no válido: " + maximo);
+        }
+        if (maximo > 255) {
+            throw new IOException("Sólo se admiten imágenes PGM de 8 bits.");
+        }
+        // Tras el valor máximo viene un único espacio en blanco y, después, los píxeles
+        if (!cabecera.hasRemaining() || !esEspacio(cabecera.get())) {
+            throw new IOException("Cabecera PGM incompleta.");
+        }
+        return crear(datos.slice(), cabecera.position(), width, height, maximo);
+    }
+
+    /**
+     * Abre un archivo crudo de un byte por píxel, ordenado por filas y sin cabecera.
+     *
+     * @param archivo el archivo.
+     * @param width   el ancho de la imagen.
+     * @param height  el alto de la imagen.
+     * @return el lector de sus filas.
+     * @throws IOException si no se puede leer o su tamaño no corresponde a las dimensiones.
+     */
+    public static LectorPGM abrirRaw(Path archivo, int width, int height) throws IOException {
+        try {
+            ByteBuffer datos = proyectar(archivo);
+            if ((long) width * height != datos.remaining()) {
+                throw new IOException("El tamaño del archivo (" + datos.remaining() + " bytes) no corresponde a "
+                        + width + "x" + height + " píxeles.");
+            }
+            return crear(datos, 0, width, height, 255);
+        } catch (IOException e) {
+            throw new IOException(archivo + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static LectorPGM crear(ByteBuffer datos, int inicio, int width, int height, int maximo) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        if ((long) width * height > datos.limit() - (long) inicio) {
+            throw new IOException("El archivo tiene menos píxeles de los que indica su cabecera.");
+        }
+        return new LectorPGM(datos, inicio, width, height, maximo);
+    }
+
+    private static ByteBuffer proyectar(Path archivo) throws IOException {
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            long tamano = canal.size();
+            if (tamano > Integer.MAX_VALUE) {
+                throw new IOException("El archivo es demasiado grande.");
+            }
+            return canal.map(FileChannel.MapMode.READ_ONLY, 0, tamano);
+        }
+    }
+
+    // Lee un entero decimal de la cabecera, saltando los espacios y los comentarios que lo preceden
+    private static int leerEntero(ByteBuffer cabecera) throws IOException {
+        byte c = siguienteNoEspacio(cabecera);
+        if (c < '0' || c > '9') {
+            throw new IOException("Cabecera PGM no válida.");
+        }
+        long valor = 0;
+        while (c >= '0' && c <= '9') {
+            valor = valor * 10 + (c - '0');
+            if (valor > Integer.MAX_VALUE) {
+                throw new IOException("Cabecera PGM no válida.");
+            }
+            if (!cabecera.hasRemaining()) {
+                throw new IOException("Cabecera PGM incompleta.");
+            }
+            c = cabecera.get();
+        }
+        // Se devuelve el separador, porque el que sigue al valor máximo marca el comienzo de los píxeles
+        cabecera.position(cabecera.position() - 1);
+        return (int) valor;
+    }
+
+    private static byte siguienteNoEspacio(ByteBuffer cabecera) throws IOException {
+        while (cabecera.hasRemaining()) {
+            byte c = cabecera.get();
+            if (c == '#') {
+                while (cabecera.hasRemaining() && cabecera.get() != '\n') {
+                    // Los comentarios llegan hasta el final de la línea
+                }
+            } else if (!esEspacio(c)) {
+                return c;
+            }
+        }
+        throw new IOException("Cabecera PGM incompleta.");
+    }
+
+    private static boolean esEspacio(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void leerFila(int y, byte[] destino, int desplazamiento) {
+        if (y < 0 || y >= height) {
+            throw new IllegalArgumentException("La fila está fuera de los límites.");
+        }
+        datos.get(inicio + y * width, destino, desplazamiento, width);
+        if (escala != null) {
+            for (int x = desplazamiento; x < desplazamiento + width; x++) {
+                destino[x] = escala[destino[x] & 0xFF];
+            }
+        }
+    }
+}
@@ -2,112 +2,496 @@ package org.biometria;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+/**
+ * Extrae las minucias de una imagen de huella dactilar, o de un lote de imágenes.
+ * <p>
+ * Uso: {@code Main <imagen> [opciones]}, {@code Main -lote=<directorio|lista> [opciones]} o
+ * {@code Main -servidor[=<puerto>] [opciones]}
+ * Las imágenes {@code .pgm} (PGM binario de 8 bits) y {@code .raw} (un byte de gris por píxel, sin cabecera)
+ * se leen con {@link LectorPGM}, sin pasar por ImageIO; el resto de formatos, con ImageIO. De los archivos
+ * {@code .esqueleto} guardados con {@code -guardarEsqueletos} sólo se vuelven a detectar las minucias, sin
+ * repetir el adelgazamiento ni pasar por la caché, para probar cambios en la detección sobre un corpus entero.
+ * <ul>
+ *     <li>{@code -ancho=<n>} y {@code -alto=<n>}: dimensiones de las imágenes {@code .raw}.</li>
+ *     <li>{@code -saltarEcualizacion}: binariza la imagen en escala de grises sin ecualizarla.</li>
+ *     <li>{@code -adelgazamientoParalelo}: reparte el adelgazamiento en el pool común
+ *     (su tamaño se ajusta con {@code -Djava.util.concurrent.ForkJoinPool.common.parallelism}).</li>
+ *     <li>{@code -porBandas}: procesa la imagen fila a fila hasta el adelgazamiento, con memoria acotada (ver
+ *     {@link ExtraccionPorBandas}). En este modo sólo se pueden depurar la imagen adelgazada y las minucias.</li>
+ *     <li>{@code -depurar}: guarda además todas las imágenes intermedias; {@code -depurar=gris,adelgazada,...}
+ *     sólo las indicadas (ver {@link EscritorDepuracion.Artefacto}). Por defecto sólo se obtienen las minucias.</li>
+ *     <li>{@code -lote=<ruta>}: procesa todas las imágenes de un directorio, o las de un archivo con una ruta por
+ *     línea, y escribe las minucias de cada una en {@code <nombre>.minucias.txt} (ver {@link ProcesadorLotes}).</li>
+ *     <li>{@code -servidor}: en lugar de procesar imágenes, queda a la espera de peticiones HTTP en el puerto
+ *     de loopback indicado (por defecto, {@value ServidorExtraccion#PUERTO_POR_DEFECTO}) hasta que se detiene el
+ *     proceso (ver {@link ServidorExtraccion}). No genera imágenes de depuración.</li>
+ *     <li>{@code -hilos=<n>}: imágenes del lote, o peticiones del servidor, que se procesan a la vez (por
+ *     defecto, una por procesador).</li>
+ *     <li>{@code -salida=<directorio>}: directorio de los archivos generados (por defecto, el actual).</li>
+ *     <li>{@code -metricas}: mide el tiempo, la memoria reservada y los contadores de cada etapa (ver
+ *     {@link Metricas}) y los escribe al terminar. Las etapas también se emiten como eventos de JFR
+ *     {@code org.biometria.Etapa} cuando hay una grabación activa, con o sin esta opción.</li>
+ *     <li>{@code -cache}: reutiliza las minucias de imágenes ya procesadas con los mismos parámetros (ver
+ *     {@link CacheExtraccion}); {@code -cache=<MB>} fija su tamaño en memoria (por defecto, 64 MB). Las
+ *     imágenes encontradas en la caché no generan imágenes de depuración.</li>
+ *     <li>{@code -cacheDisco=<directorio>}: guarda también la caché en el directorio indicado, y activa la caché.</li>
+ *     <li>{@code -calidadMinima}: descarta, antes de binarizarlas, las imágenes cuya calidad (ver
+ *     {@link EvaluadorCalidad}) no llega a {@value #CALIDAD_MINIMA_POR_DEFECTO}; {@code -calidadMinima=<x>} fija
+ *     otra puntuación mínima, entre 0 y 1. El motivo del rechazo aparece en el informe del lote, y el servidor
+ *     responde 422. La puntuación mínima forma parte de la clave de la caché.</li>
+ *     <li>{@code -guardarEsqueletos=<directorio>}: guarda el esqueleto de cada imagen procesada en
+ *     {@code <directorio>/<nombre>.esqueleto} (ver {@link ArchivoEsqueleto}), con el mismo nombre que sus
+ *     minucias en el lote. Las imágenes encontradas en la caché no lo generan.</li>
+ *     <li>{@code -profundidad=<n>}: profundidad de trazado de los ángulos al volver a detectar las minucias de
+ *     archivos {@code .esqueleto} (por defecto, {@value MinutiaeDetectionUtils#PROFUNDIDAD_REQUERIDA}).</li>
+ * </ul>
+ */
 public class Main {
     private final static Logger LOGGER = Logger.getLogger(Main.class.getName());
 
+    private static final int MEGAS_CACHE_POR_DEFECTO = 64;
+    private static final String EXTENSION_ESQUELETO = ".esqueleto";
+    private static final double CALIDAD_MINIMA_POR_DEFECTO = 0.3;
+
     public static void main(String[] args) {
-        if (args.length < 1) {
+        String imagePath = null;
+        String lote = null;
+        int hilos = Runtime.getRuntime().availableProcessors();
+        File directorioSalida = new File(".");
+        boolean saltarEcualizacion = false;
+        boolean porBandas = false;
+        RegistroMetricasMemoria metricas = null;
+        ForkJoinPool poolAdelgazamiento = null;
+        Set<EscritorDepuracion.Artefacto> artefactos = EnumSet.noneOf(EscritorDepuracion.Artefacto.class);
+        int megasCache = 0;
+        Path directorioCache = null;
+        int puertoServidor = -1;
+        int ancho = 0;
+        int alto = 0;
+        Path directorioEsqueletos = null;
+        int profundidad = MinutiaeDetectionUtils.PROFUNDIDAD_REQUERIDA;
+        double calidadMinima = 0;
+        for (String arg : args) {
+            if (arg.equals("-saltarEcualizacion")) {
+                saltarEcualizacion = true;
+            } else if (arg.equals("-adelgazamientoParalelo")) {
+                poolAdelgazamiento = ForkJoinPool.commonPool();
+            } else if (arg.equals("-metricas")) {
+                metricas = new RegistroMetricasMemoria();
+            } else if (arg.equals("-porBandas")) {
+                porBandas = true;
+            } else if (arg.equals("-depurar")) {
+                artefactos = EnumSet.allOf(EscritorDepuracion.Artefacto.class);
+            } else if (arg.startsWith("-depurar=")) {
+                try {
+                    artefactos = EscritorDepuracion.Artefacto.desdeLista(valor(arg));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Artefacto de depuración desconocido en " + arg + "; se admiten "
+                            + Arrays.toString(EscritorDepuracion.Artefacto.values()).toLowerCase(Locale.ROOT));
+                }
+            } else if (arg.equals("-servidor")) {
+                puertoServidor = ServidorExtraccion.PUERTO_POR_DEFECTO;
+            } else if (arg.startsWith("-servidor=")) {
+                // Un puerto no válido sigue pidiendo el servidor, en su puerto por defecto
+                puertoServidor = entero(arg, 0, 0xFFFF, ServidorExtraccion.PUERTO_POR_DEFECTO);
+            } else if (arg.startsWith("-ancho=")) {
+                ancho = entero(arg, 1, Integer.MAX_VALUE, ancho);
+            } else if (arg.startsWith("-alto=")) {
+                alto = entero(arg, 1, Integer.MAX_VALUE, alto);
+            } else if (arg.startsWith("-guardarEsqueletos=")) {
+                directorioEsqueletos = Paths.get(valor(arg));
+            } else if (arg.startsWith("-profundidad=")) {
+                profundidad = entero(arg, 1, Integer.MAX_VALUE, profundidad);
+            } else if (arg.equals("-calidadMinima")) {
+                calidadMinima = CALIDAD_MINIMA_POR_DEFECTO;
+            } else if (arg.startsWith("-calidadMinima=")) {
+                try {
+                    calidadMinima = EvaluadorCalidad.validarMinimo(Double.parseDouble(valor(arg)));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Calidad mínima no válida en " + arg + "; debe estar entre 0 y 1");
+                }
+            } else if (arg.startsWith("-lote=")) {
+                lote = valor(arg);
+            } else if (arg.startsWith("-hilos=")) {
+                hilos = entero(arg, 1, Integer.MAX_VALUE, hilos);
+            } else if (arg.startsWith("-salida=")) {
+                directorioSalida = new File(valor(arg));
+            } else if (arg.equals("-cache")) {
+                megasCache = MEGAS_CACHE_POR_DEFECTO;
+            } else if (arg.startsWith("-cache=")) {
+                megasCache = entero(arg, 1, Integer.MAX_VALUE, megasCache);
+            } else if (arg.startsWith("-cacheDisco=")) {
+                directorioCache = Paths.get(valor(arg));
+            } else if (!arg.startsWith("-") && imagePath == null) {
+                imagePath = arg;  // Obtiene la ruta de la imagen desde los argumentos
+            } else {
+                LOGGER.warning("Argumento desconocido: " + arg);
+            }
+        }
+        if (imagePath == null && lote == null && puertoServidor < 0) {
             LOGGER.warning("Por favor, proporcione la ruta de la imagen como argumento.");
             return;
         }
 
-        String imagePath = args[0];  // Obtiene la ruta de la imagen desde los argumentos
-        boolean saltarEcualizacion = args[args.length - 1].equals("-saltarEcualizacion");  // Revisa si el último argumento es el de saltar la ecualización
+        if (metricas != null) {
+            Metricas.instalar(metricas);
+        }
 
-        try {
-            // Cargamos la imagen original desde el archivo
-            LOGGER.info("Cargando la imagen original");
-            BufferedImage imagenOriginal = ImageIO.read(new File(imagePath));
-            LOGGER.info("Imagen cargada");
-
-            // Convertimos la imagen original a escala de grises
-            LOGGER.info("Convirtiendo imagen a escala de grises");
-            FingerPrintImage imagenGris = ProcesamientoImagenUtils.convertirRGBaGris(imagenOriginal, false);
-            LOGGER.info("Imagen convertida a escala de grises");
-
-            // Guardamos la imagen en escala de grises
-            BufferedImage imagenSalidaGris = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenGris, 1);
-            File archivoSalidaGris = new File("imagenSalidaEscalaGrises.png");
-            ImageIO.write(imagenSalidaGris, "png", archivoSalidaGris);
-            LOGGER.info("Imagen en escala de grises guardada en disco");
-
-            FingerPrintImage imagenParaBinarizar = imagenGris;
-
-            if (!saltarEcualizacion) {
-                // Aplicamos la ecualización de histograma a la imagen en escala de grises
-                LOGGER.info("Aplicando ecualización del histograma");
-                imagenParaBinarizar = ProcesamientoImagenUtils.convertirGrisAHistograma(imagenGris);
-                LOGGER.info("Imagen ecualizada");
-
-                // Guardamos la imagen ecualizada
-                BufferedImage imagenSalidaEcualizada = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenParaBinarizar, 1);
-                File archivoSalidaEcualizada = new File("imagenSalidaEcualizada.png");
-                ImageIO.write(imagenSalidaEcualizada, "png", archivoSalidaEcualizada);
-                LOGGER.info("Imagen ecualizada guardada en disco");
+        boolean ecualizacionSaltada = saltarEcualizacion;
+        ForkJoinPool pool = poolAdelgazamiento;
+        BiFunction<FuenteFilasGris, EscritorDepuracion, FingerPrintImage> extraccion;
+        if (porBandas) {
+            double minimo = calidadMinima;
+            extraccion = (fuente, depuracion) ->
+                    extraerMinuciasPorBandas(fuente, ecualizacionSaltada, pool, minimo, depuracion);
+        } else {
+            Pipeline pipeline = pipelineExtraccion(saltarEcualizacion, poolAdelgazamiento, calidadMinima);
+            extraccion = (fuente, depuracion) -> extraerMinucias(fuente, pipeline, depuracion);
+        }
+        CacheExtraccion cache = null;
+        if (megasCache > 0 || directorioCache != null) {
+            cache = new CacheExtraccion((long) (megasCache > 0 ? megasCache : MEGAS_CACHE_POR_DEFECTO) << 20, directorioCache);
+        }
+        CacheExtraccion cacheExtraccion = cache;
+        int anchoCrudo = ancho;
+        int altoCrudo = alto;
+        Path esqueletos = directorioEsqueletos;
+        int profundidadDeteccion = profundidad;
+        double calidad = calidadMinima;
+        ProcesadorLotes.Extractor extractorFinal = (archivo, nombre, depuracion) -> {
+            if (esEsqueleto(archivo)) {
+                return redetectarMinucias(archivo, profundidadDeteccion, depuracion);
+            }
+            if (esGrisSinDecodificar(archivo)) {
+                // PGM y crudos: se leen proyectados en memoria, sin ImageIO
+                FuenteFilasGris fuente = abrirGrisSinDecodificar(archivo, anchoCrudo, altoCrudo);
+                Supplier<List<Minutiae>> extraer = () ->
+                        guardarEsqueleto(extraccion.apply(fuente, depuracion), nombre, esqueletos);
+                return cacheExtraccion == null ? extraer.get()
+                        : cacheExtraccion.obtener(fuente, ecualizacionSaltada, calidad, extraer);
+            }
+            if (cacheExtraccion == null) {
+                BufferedImage imagen = leerImagen(archivo);
+                return guardarEsqueleto(extraccion.apply(ProcesamientoImagenUtils.filasGris(imagen, false), depuracion),
+                        nombre, esqueletos);
+            }
+            // La clave se calcula sobre el archivo, así que sólo se decodifica si no está en la caché
+            byte[] contenido = Files.readAllBytes(archivo.toPath());
+            try {
+                return cacheExtraccion.obtener(contenido, ecualizacionSaltada, calidad, () -> guardarEsqueleto(
+                        extraccion.apply(ProcesamientoImagenUtils.filasGris(decodificar(contenido, archivo.toString()),
+                                false), depuracion), nombre, esqueletos));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
 
+        if (puertoServidor >= 0) {
+            EscritorDepuracion sinDepuracion = EscritorDepuracion.ninguno();
+            ServidorExtraccion.Extractor extractorServidor = contenido -> {
+                Supplier<List<Minutiae>> extraer = () -> extraccion.apply(ProcesamientoImagenUtils.filasGris(
+                        decodificar(contenido, "el cuerpo de la petición"), false), sinDepuracion).getMinutiaeList();
+                try {
+                    return cacheExtraccion == null ? extraer.get()
+                            : cacheExtraccion.obtener(contenido, ecualizacionSaltada, calidad, extraer);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            };
+            try {
+                ServidorExtraccion servidor = new ServidorExtraccion(puertoServidor, hilos, extractorServidor, metricas);
+                Runtime.getRuntime().addShutdownHook(new Thread(servidor::close, "cierre-servidor"));
+            } catch (IOException e) {
+                LOGGER.severe("No se pudo iniciar el servidor: " + e.getMessage());
             }
+            return;
+        }
 
-            // Binarizamos la imagen usando el valor medio como umbral
-            LOGGER.info("Binarizando la imagen");
-            FingerPrintImage imagenBinarizada = ProcesamientoImagenUtils.convertirABlancoYNegro(imagenParaBinarizar);
-            LOGGER.info("Imagen binarizada");
-
-            // Guardamos la imagen binarizada
-            BufferedImage imagenSalidaBinarizada = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenBinarizada, 0);
-            File archivoSalidaBinarizada = new File("imagenSalidaBinarizada.png");
-            ImageIO.write(imagenSalidaBinarizada, "png", archivoSalidaBinarizada);
-            LOGGER.info("Imagen binarizada guardada en disco");
-
-            // Aplicamos filtro para eliminar ruido binario
-            LOGGER.info("Aplicando filtro para eliminar ruido");
-            FingerPrintImage imagenFiltrada = TransformacionesImagenUtils.aplicarFiltroRuidoBinario(imagenBinarizada);
-            LOGGER.info("Filtro para eliminar ruido aplicado");
-
-            // Guardamos la imagen filtrada
-            BufferedImage imagenSalidaFiltrada = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenFiltrada, 0);
-            File archivoSalidaFiltrada = new File("imagenSalidaFiltrada.png");
-            ImageIO.write(imagenSalidaFiltrada, "png", archivoSalidaFiltrada);
-            LOGGER.info("Imagen filtrada guardada en disco");
-
-            // Aplicamos adelgazamiento Zhang-Suen
-            LOGGER.info("Aplicando adelgazamiento Zhang-Suen");
-            FingerPrintImage imagenAdelgazada = TransformacionesImagenUtils.adelgazamientoZhangSuen(imagenFiltrada);
-            LOGGER.info("Adelgazamiento completado");
-
-            // Guardamos la imagen adelgazada
-            BufferedImage imagenSalidaAdelgazada = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenAdelgazada, 0);
-            File archivoSalidaAdelgazada = new File("imagenSalidaAdelgazada.png");
-            ImageIO.write(imagenSalidaAdelgazada, "png", archivoSalidaAdelgazada);
-            LOGGER.info("Imagen adelgazada guardada en disco");
-
-            LOGGER.info("Aplicando detección de minucias");
-            MinutiaeDetectionUtils.detectarMinucias(imagenAdelgazada);
-            LOGGER.info("Detección de minucias completada");
-
-            // Guardamos la imagen con las minucias marcadas
-            BufferedImage imagenMinuciasMarcadas = ProcesamientoImagenUtils.convertirAFomatoBufferedImage(imagenAdelgazada, 0);
-            MinutiaeDetectionUtils.marcarMinuciasEnBufferedImage(imagenMinuciasMarcadas, imagenAdelgazada.getMinutiaeList());
-            File archivoMinuciasMarcadas = new File("imagenMinuciasMarcadas.png");
-            ImageIO.write(imagenMinuciasMarcadas, "png", archivoMinuciasMarcadas);
-            LOGGER.info("Imagen minucias marcadas guardada en disco");
-
-            //Guardamos la imagen con los angulos marcados
-            MinutiaeDetectionUtils.dibujarAngulosEnBufferedImage(imagenMinuciasMarcadas, imagenAdelgazada.getMinutiaeList());
-            File archivoAngulosMarcados = new File("imagenAngulosMarcados.png");
-            ImageIO.write(imagenMinuciasMarcadas, "png", archivoAngulosMarcados);
-            LOGGER.info("Imagen angulos marcados guardada en disco");
+        try (EscritorDepuracion depuracion = new EscritorDepuracion(artefactos, directorioSalida, "")) {
+            if (lote != null) {
+                LOGGER.info("Procesando el lote " + lote + " con " + hilos + " hilos");
+                ProcesadorLotes procesador = new ProcesadorLotes(hilos, directorioSalida, extractorFinal, depuracion);
+                ProcesadorLotes.Resumen resumen = procesador.procesar(ProcesadorLotes.listarImagenes(new File(lote)));
+                resumen.imprimir(System.out);
+            } else {
+                LOGGER.info("Procesando la imagen " + imagePath);
+                File imagen = new File(imagePath);
+                MinutiaeDetectionUtils.imprimirMinucias(
+                        extractorFinal.extraer(imagen, ProcesadorLotes.nombreBase(imagen), depuracion));
+            }
+            if (cache != null) {
+                LOGGER.info("Caché de extracción: " + cache.getAciertosMemoria() + " aciertos en memoria, "
+                        + cache.getAciertosDisco() + " en disco, " + cache.getEsperas() + " esperas a otra extracción, "
+                        + cache.getFallos() + " fallos");
+            }
+            if (metricas != null) {
+                metricas.imprimir(System.out);
+            }
+            LOGGER.info("Procesamiento de imágenes finalizado");
+        } catch (CalidadInsuficienteException e) {
+            LOGGER.warning("Imagen descartada: " + e.getMessage());
+        } catch (IOException e) {
+            LOGGER.severe("Ocurrió un error al procesar las imágenes: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
+    private static String valor(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
 
-            LOGGER.info("Procesamiento de imágenes finalizado");
+    /**
+     * Interpreta el valor entero de una opción {@code -nombre=<n>}. Si no es un número o está fuera de los
+     * límites, lo avisa como el resto de argumentos no válidos y conserva el valor anterior.
+     *
+     * @param arg      el argumento completo.
+     * @param minimo   el menor valor admitido.
+     * @param maximo   el mayor valor admitido.
+     * @param anterior el valor que se conserva si el del argumento no es válido.
+     * @return el valor del argumento, o el anterior.
+     */
+    private static int entero(String arg, int minimo, int maximo, int anterior) {
+        try {
+            int valor = Integer.parseInt(valor(arg));
+            if (valor >= minimo && valor <= maximo) {
+                return valor;
+            }
+        } catch (NumberFormatException e) {
+            // Se avisa igual que de un valor fuera de los límites
+        }
+        String limites = maximo == Integer.MAX_VALUE ? "mayor o igual que " + minimo : "entre " + minimo + " y " + maximo;
+        LOGGER.warning("Valor no válido en " + arg + "; debe ser un entero " + limites);
+        return anterior;
+    }
 
+    /**
+     * Carga una imagen desde el archivo con ImageIO.
+     *
+     * @param archivo el archivo de imagen.
+     * @return la imagen cargada.
+     * @throws IOException si no se puede leer o su formato no está soportado.
+     */
+    static BufferedImage leerImagen(File archivo) throws IOException {
+        BufferedImage imagen = ImageIO.read(archivo);
+        if (imagen == null) {
+            throw new IOException("Formato de imagen no soportado: " + archivo);
+        }
+        return imagen;
+    }
 
+    /**
+     * Decodifica con ImageIO una imagen ya leída. Se usa dentro de las extracciones de la caché, que no
+     * pueden lanzar excepciones comprobadas.
+     *
+     * @param contenido el contenido del archivo de imagen.
+     * @param origen    de dónde procede la imagen, para el mensaje de error.
+     * @return la imagen decodificada.
+     * @throws UncheckedIOException si no se puede decodificar o su formato no está soportado.
+     */
+    private static BufferedImage decodificar(byte[] contenido, String origen) {
+        try {
+            BufferedImage imagen = ImageIO.read(new ByteArrayInputStream(contenido));
+            if (imagen == null) {
+                throw new IOException("Formato de imagen no soportado: " + origen);
+            }
+            return imagen;
         } catch (IOException e) {
-            LOGGER.severe("Ocurrió un error al procesar las imágenes: " + e.getMessage());
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Las imágenes PGM y las crudas se leen con LectorPGM; el resto, con ImageIO
+    private static boolean esGrisSinDecodificar(File archivo) {
+        String nombre = archivo.getName().toLowerCase(Locale.ROOT);
+        return nombre.endsWith(".pgm") || nombre.endsWith(".raw");
+    }
+
+    /**
+     * Abre una imagen PGM o cruda proyectándola en memoria, sin decodificarla.
+     *
+     * @param archivo el archivo {@code .pgm} o {@code .raw}.
+     * @param ancho   el ancho de las imágenes crudas, o 0 si no se ha indicado.
+     * @param alto    el alto de las imágenes crudas, o 0 si no se ha indicado.
+     * @return las filas de la imagen.
+     * @throws IOException si no se puede leer, su formato no es válido o faltan las dimensiones de una imagen cruda.
+     */
+    static FuenteFilasGris abrirGrisSinDecodificar(File archivo, int ancho, int alto) throws IOException {
+        if (archivo.getName().toLowerCase(Locale.ROOT).endsWith(".pgm")) {
+            return LectorPGM.abrir(archivo.toPath());
+        }
+        if (ancho <= 0 || alto <= 0) {
+            throw new IOException("Las imágenes crudas necesitan las opciones -ancho y -alto: " + archivo);
+        }
+        return LectorPGM.abrirRaw(archivo.toPath(), ancho, alto);
+    }
+
+    private static boolean esEsqueleto(File archivo) {
+        return archivo.getName().toLowerCase(Locale.ROOT).endsWith(EXTENSION_ESQUELETO);
+    }
+
+    // Guarda el esqueleto si se ha pedido, con el nombre de la imagen en el lote, y devuelve sus minucias
+    private static List<Minutiae> guardarEsqueleto(FingerPrintImage imagenAdelgazada, String nombre, Path directorio) {
+        if (directorio != null) {
+            try {
+                ArchivoEsqueleto.guardar(imagenAdelgazada, directorio.resolve(nombre + EXTENSION_ESQUELETO));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return imagenAdelgazada.getMinutiaeList();
+    }
+
+    /**
+     * Vuelve a detectar las minucias de un esqueleto guardado con {@link ArchivoEsqueleto}, sin repetir
+     * ninguna de las etapas anteriores.
+     *
+     * @param archivo     el archivo {@code .esqueleto}.
+     * @param profundidad la profundidad de trazado de los ángulos.
+     * @param depuracion  escritor de la imagen adelgazada y las minucias.
+     * @return las minucias detectadas.
+     * @throws IOException si no se puede leer el esqueleto.
+     */
+    static List<Minutiae> redetectarMinucias(File archivo, int profundidad, EscritorDepuracion depuracion) throws IOException {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        FingerPrintImage esqueleto = ArchivoEsqueleto.leer(archivo.toPath());
+        List<Minutiae> minutiaeList = MinutiaeDetectionUtils.buscarMinucias(esqueleto, profundidad);
+        // El esqueleto es una imagen nueva, así que no hace falta copiarlo antes de encolarlo
+        depuracion.escribir(EscritorDepuracion.Artefacto.ADELGAZADA, esqueleto, 0);
+        depuracion.escribirMinucias(esqueleto);
+        Metricas.registrar(EtapaProceso.EXTRACCION, inicio, bytes);
+        return minutiaeList;
+    }
+
+    /**
+     * Construye el pipeline de extracción: escala de grises, ecualización, binarización, filtrado de
+     * ruido y adelgazamiento, con el artefacto de depuración de cada etapa.
+     *
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @return el pipeline, que se puede compartir entre hilos.
+     */
+    static Pipeline pipelineExtraccion(boolean saltarEcualizacion, ForkJoinPool poolAdelgazamiento) {
+        return pipelineExtraccion(saltarEcualizacion, poolAdelgazamiento, 0);
+    }
+
+    /**
+     * Construye el pipeline de extracción, descartando antes de binarizar las imágenes que no alcanzan
+     * la calidad mínima (ver {@link EvaluadorCalidad}).
+     *
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @param calidadMinima      la puntuación mínima, entre 0 y 1; con 0 no se evalúa la calidad.
+     * @return el pipeline, que se puede compartir entre hilos.
+     */
+    static Pipeline pipelineExtraccion(boolean saltarEcualizacion, ForkJoinPool poolAdelgazamiento, double calidadMinima) {
+        Pipeline.Constructor constructor = Pipeline.constructor()
+                .depurarEntrada(EscritorDepuracion.Artefacto.GRIS, 1)
+                .calidadMinima(calidadMinima);
+        if (!saltarEcualizacion) {
+            constructor.etapa(Etapa.ecualizacion(), EscritorDepuracion.Artefacto.ECUALIZADA, 1);
+        }
+        return constructor
+                .etapa(Etapa.binarizacion(), EscritorDepuracion.Artefacto.BINARIZADA, 0)
+                .etapa(Etapa.filtroRuido(), EscritorDepuracion.Artefacto.FILTRADA, 0)
+                .etapa(Etapa.adelgazamiento(poolAdelgazamiento), EscritorDepuracion.Artefacto.ADELGAZADA, 0)
+                .construir();
+    }
+
+    /**
+     * Ejecuta todo el procesamiento sobre una imagen: escala de grises, ecualización, binarización,
+     * filtrado de ruido, adelgazamiento y detección de minucias. Las imágenes intermedias sólo se
+     * convierten y escriben si el escritor de depuración las tiene activas, y en segundo plano.
+     * <p>
+     * Cada llamada construye el pipeline; para procesar varias imágenes es preferible construirlo una
+     * vez con {@link #pipelineExtraccion} y usar {@link #extraerMinucias(BufferedImage, Pipeline, EscritorDepuracion)}.
+     *
+     * @param imagenOriginal     la imagen de entrada.
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @param depuracion         escritor de las imágenes intermedias.
+     * @return la imagen adelgazada, con la lista de minucias detectadas; su búfer se reutiliza en la
+     * siguiente extracción del mismo hilo.
+     */
+    static FingerPrintImage extraerMinucias(BufferedImage imagenOriginal, boolean saltarEcualizacion,
+                                            ForkJoinPool poolAdelgazamiento, EscritorDepuracion depuracion) {
+        return extraerMinucias(imagenOriginal, pipelineExtraccion(saltarEcualizacion, poolAdelgazamiento), depuracion);
+    }
+
+    /**
+     * Extrae las minucias de una imagen con el pipeline indicado.
+     *
+     * @param imagenOriginal la imagen de entrada.
+     * @param pipeline       el pipeline de extracción.
+     * @param depuracion     escritor de las imágenes intermedias.
+     * @return la imagen adelgazada, con la lista de minucias detectadas; su búfer se reutiliza en la
+     * siguiente extracción del mismo hilo.
+     */
+    static FingerPrintImage extraerMinucias(BufferedImage imagenOriginal, Pipeline pipeline, EscritorDepuracion depuracion) {
+        return extraerMinucias(ProcesamientoImagenUtils.filasGris(imagenOriginal, false), pipeline, depuracion);
+    }
+
+    /**
+     * Extrae las minucias de una imagen en escala de grises con el pipeline indicado.
+     *
+     * @param fuente     las filas de la imagen en escala de grises.
+     * @param pipeline   el pipeline de extracción.
+     * @param depuracion escritor de las imágenes intermedias.
+     * @return la imagen adelgazada, con la lista de minucias detectadas; su búfer se reutiliza en la
+     * siguiente extracción del mismo hilo.
+     */
+    static FingerPrintImage extraerMinucias(FuenteFilasGris fuente, Pipeline pipeline, EscritorDepuracion depuracion) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        LOGGER.fine("Extrayendo las minucias de la imagen");
+        FingerPrintImage imagenAdelgazada = pipeline.ejecutar(fuente, depuracion);
+        Metricas.registrar(EtapaProceso.EXTRACCION, inicio, bytes);
+        return imagenAdelgazada;
+    }
+
+    /**
+     * Extrae las minucias de una imagen fila a fila con {@link ExtraccionPorBandas}.
+     *
+     * @param fuente             las filas de la imagen en escala de grises.
+     * @param saltarEcualizacion si es true, se binariza la imagen en escala de grises sin ecualizar.
+     * @param poolAdelgazamiento pool en el que repartir el adelgazamiento, o null para hacerlo en el hilo actual.
+     * @param calidadMinima      la puntuación mínima, entre 0 y 1; con 0 no se evalúa la calidad.
+     * @param depuracion         escritor de la imagen adelgazada y las minucias.
+     * @return la imagen adelgazada, con la lista de minucias detectadas.
+     * @throws CalidadInsuficienteException si la imagen no alcanza la calidad mínima.
+     */
+    static FingerPrintImage extraerMinuciasPorBandas(FuenteFilasGris fuente, boolean saltarEcualizacion,
+                                                     ForkJoinPool poolAdelgazamiento, double calidadMinima,
+                                                     EscritorDepuracion depuracion) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        FingerPrintImage imagenAdelgazada = ExtraccionPorBandas.extraerMinucias(fuente, saltarEcualizacion,
+                poolAdelgazamiento, calidadMinima);
+        Metricas.registrar(EtapaProceso.EXTRACCION, inicio, bytes);
+        if (depuracion.isActivo(EscritorDepuracion.Artefacto.ADELGAZADA)
+                || depuracion.isActivo(EscritorDepuracion.Artefacto.MINUCIAS)
+                || depuracion.isActivo(EscritorDepuracion.Artefacto.ANGULOS)) {
+            FingerPrintImage copia = new FingerPrintImage(imagenAdelgazada);
+            depuracion.escribir(EscritorDepuracion.Artefacto.ADELGAZADA, copia, 0);
+            depuracion.escribirMinucias(copia);
         }
+        return imagenAdelgazada;
     }
 }
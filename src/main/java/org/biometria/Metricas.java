@@ -0,0 +1,120 @@
+package org.biometria;
+
+import jdk.jfr.EventType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Logger;
+
+/**
+ * Punto de entrada de la instrumentación del procesamiento. Las etapas miden su duración y la memoria
+ * que reservan así:
+ * <pre>{@code
+ * long inicio = Metricas.inicio();
+ * long bytes = Metricas.bytesReservados();
+ * ...
+ * Metricas.registrar(EtapaProceso.GRIS, inicio, bytes);
+ * }</pre>
+ * y envían cada medida al {@link RegistroMetricas} instalado y, si la grabación de JFR en curso lo tiene
+ * activo, como un evento {@code org.biometria.Etapa}. Mientras no haya registro ni grabación, cada llamada
+ * se reduce a una comprobación, sin leer el reloj ni reservar memoria.
+ */
+public final class Metricas {
+    private final static Logger LOGGER = Logger.getLogger(Metricas.class.getName());
+
+    private static final EventType TIPO_EVENTO = EventType.getEventType(EventoEtapa.class);
+    private static final com.sun.management.ThreadMXBean HILOS = memoriaPorHilo();
+
+    private static volatile RegistroMetricas registro = RegistroMetricas.NULO;
+
+    private Metricas() {
+    }
+
+    /**
+     * Instala el registro que recibe las métricas de todos los hilos.
+     *
+     * @param nuevo el registro, o {@link RegistroMetricas#NULO} para desactivar la instrumentación.
+     */
+    public static void instalar(RegistroMetricas nuevo) {
+        if (nuevo == null) {
+            throw new IllegalArgumentException("El registro no puede ser null; use RegistroMetricas.NULO.");
+        }
+        registro = nuevo;
+    }
+
+    public static RegistroMetricas getRegistro() {
+        return registro;
+    }
+
+    /**
+     * Indica si hay algún destino para las métricas: un registro instalado o una grabación de JFR con
+     * el evento de etapa activo.
+     */
+    public static boolean activas() {
+        return registro != RegistroMetricas.NULO || TIPO_EVENTO.isEnabled();
+    }
+
+    /**
+     * Marca el comienzo de una etapa.
+     *
+     * @return el instante actual en nanosegundos, o 0 si la instrumentación está desactivada.
+     */
+    public static long inicio() {
+        return activas() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Devuelve la memoria reservada hasta ahora por el hilo actual.
+     *
+     * @return los bytes reservados, o -1 si la instrumentación está desactivada o la JVM no los mide.
+     */
+    public static long bytesReservados() {
+        return HILOS != null && activas() ? HILOS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Registra el final de una etapa.
+     *
+     * @param etapa  la etapa.
+     * @param inicio el valor que devolvió {@link #inicio()} al empezarla.
+     * @param bytes  el valor que devolvió {@link #bytesReservados()} al empezarla.
+     */
+    public static void registrar(EtapaProceso etapa, long inicio, long bytes) {
+        if (inicio == 0 || !activas()) {
+            return;
+        }
+        long nanos = System.nanoTime() - inicio;
+        long reservados = bytes < 0 ? -1 : HILOS.getCurrentThreadAllocatedBytes() - bytes;
+        registro.registrarEtapa(etapa, nanos, reservados);
+
+        EventoEtapa evento = new EventoEtapa();
+        if (evento.isEnabled()) {
+            evento.etapa = etapa.name();
+            evento.duracion = nanos;
+            evento.bytesReservados = reservados;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Suma una cantidad a un contador del registro instalado.
+     *
+     * @param contador el contador.
+     * @param cantidad la cantidad a sumar.
+     */
+    public static void incrementar(ContadorProceso contador, long cantidad) {
+        registro.incrementar(contador, cantidad);
+    }
+
+    private static com.sun.management.ThreadMXBean memoriaPorHilo() {
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        if (hilos instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean extendido = (com.sun.management.ThreadMXBean) hilos;
+            if (extendido.isThreadAllocatedMemorySupported() && extendido.isThreadAllocatedMemoryEnabled()) {
+                return extendido;
+            }
+        }
+        LOGGER.fine("La JVM no mide la memoria reservada por hilo");
+        return null;
+    }
+}
@@ -2,154 +2,157 @@ package org.biometria;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 public class MinutiaeDetectionUtils {
-    private static final int PROFUNDIDAD_REQUERIDA = 6;
+    static final int PROFUNDIDAD_REQUERIDA = 6;
     private static final int LINEA_LARGO = 6; // Longitud de las líneas de ángulo
 
-    // Método principal para detectar minucias
+    // Posición de cada vecino en el byte de vecindad, recorridos en sentido circular
+    private static final int[] ORDEN_CIRCULAR = {0, 3, 5, 6, 7, 4, 2, 1};
+
+    // Crossing number de cada vecindad posible: la mitad de los cambios entre vecinos consecutivos del círculo
+    private static final byte[] CROSSING_NUMBER = new byte[256];
+
+    static {
+        for (int codigo = 0; codigo < 256; codigo++) {
+            int cambios = 0;
+            for (int i = 0; i < ORDEN_CIRCULAR.length; i++) {
+                int actual = codigo >> ORDEN_CIRCULAR[i] & 1;
+                int siguiente = codigo >> ORDEN_CIRCULAR[(i + 1) % ORDEN_CIRCULAR.length] & 1;
+                cambios += actual ^ siguiente;
+            }
+            CROSSING_NUMBER[codigo] = (byte) (cambios / 2);
+        }
+    }
+
+    // Método principal para detectar minucias: las guarda en la imagen y las imprime
     public static void detectarMinucias(FingerPrintImage image) {
+        imprimirMinucias(buscarMinucias(image));
+    }
+
+    // Detecta las minucias y las guarda en la imagen, sin imprimirlas. La imagen debe ser binaria (BLANCO/NEGRO)
+    public static List<Minutiae> buscarMinucias(FingerPrintImage image) {
+        return buscarMinucias(image, PROFUNDIDAD_REQUERIDA);
+    }
+
+    /**
+     * Detecta las minucias con otra profundidad de trazado de los ángulos, por ejemplo para probar
+     * distintos valores sobre esqueletos guardados con {@link ArchivoEsqueleto}.
+     *
+     * @param image       el esqueleto, binario (BLANCO/NEGRO); las minucias se guardan en él.
+     * @param profundidad la longitud de camino que debe tener cada rama de una minucia para medir su ángulo.
+     * @return las minucias detectadas.
+     * @throws IllegalArgumentException si la profundidad no es positiva.
+     */
+    public static List<Minutiae> buscarMinucias(FingerPrintImage image, int profundidad) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
         List<Minutiae> minutiaeList = new ArrayList<>();
         int width = image.getWidth();
         int height = image.getHeight();
-
-        // Recorre cada píxel de la imagen (excepto bordes)
-        for (int i = 1; i < width - 1; i++) {
-            for (int j = 1; j < height - 1; j++) {
-                if (image.getPixel(i, j) == FingerPrintImage.BLANCO) {
-                    int[] vecinos = obtenerVecinos(image, i, j);
-                    int crossingNumber = calcularCrossingNumber(vecinos);
+        int stride = image.getStride();
+        byte[] pixeles = image.getPixels();
+        TrazadorCrestas trazador = TrazadorCrestas.porHilo();
+        trazador.preparar(image, profundidad);
+        long candidatos = 0;
+        int cortes = 0;
+
+        // Recorre cada píxel de la imagen (excepto bordes) en el orden del búfer
+        for (int j = 1; j < height - 1 && width > 2; j++) {
+            int fila = image.getRowOffset(j);
+            // Ventana 3x3 de 9 bits: tres bits (arriba, centro, abajo) por columna, de izquierda a derecha
+            int ventana = columna(pixeles, fila, stride) << 3 | columna(pixeles, fila + 1, stride) << 6;
+            for (int i = 1; i < width - 1; i++) {
+                int k = fila + i;
+                ventana = ventana >>> 3 | columna(pixeles, k + 1, stride) << 6;
+                if (pixeles[k] == FingerPrintImage.BLANCO) {
+                    candidatos++;
+                    int crossingNumber = CROSSING_NUMBER[vecindad(ventana)];
 
                     // Determina el tipo de minucia basado en el crossing number
                     if (crossingNumber == 1) {
-                        minutiaeList.add(new CorteMinutiae(i, j, calcularAnguloCorte(image, i, j)));
+                        minutiaeList.add(new CorteMinutiae(i, j, calcularAnguloCorte(trazador, i, j)));
+                        cortes++;
                     } else if (crossingNumber == 3) {
-                        minutiaeList.add(new BifurcacionMinutiae(i, j, calcularAngulosBifurcacion(image, i, j)));
+                        minutiaeList.add(new BifurcacionMinutiae(i, j, calcularAngulosBifurcacion(trazador, i, j, profundidad)));
                     }
                 }
             }
         }
 
-        // Guarda la lista de minucias en la imagen y las imprime
+        // Conserva el orden por columnas (x y después y) en el que se han listado siempre las minucias
+        minutiaeList.sort(Comparator.comparingInt(Minutiae::getX).thenComparingInt(Minutiae::getY));
+
+        // Guarda la lista de minucias en la imagen
         image.setMinutiaeList(minutiaeList);
-        imprimirMinucias(minutiaeList);
+        Metricas.incrementar(ContadorProceso.CANDIDATOS_MINUCIA, candidatos);
+        Metricas.incrementar(ContadorProceso.MINUCIAS_CORTE, cortes);
+        Metricas.incrementar(ContadorProceso.MINUCIAS_BIFURCACION, minutiaeList.size() - cortes);
+        Metricas.registrar(EtapaProceso.DETECCION_MINUCIAS, inicio, bytes);
+        return minutiaeList;
     }
 
-    // Obtiene los píxeles vecinos alrededor de un punto (fila, col)
-    private static int[] obtenerVecinos(FingerPrintImage image, int fila, int col) {
-        return new int[]{
-                image.getPixel(fila, col + 1),     // Este
-                image.getPixel(fila - 1, col + 1), // Noreste
-                image.getPixel(fila - 1, col),     // Norte
-                image.getPixel(fila - 1, col - 1), // Noroeste
-                image.getPixel(fila, col - 1),     // Oeste
-                image.getPixel(fila + 1, col - 1), // Suroeste
-                image.getPixel(fila + 1, col),     // Sur
-                image.getPixel(fila + 1, col + 1)  // Sureste
-        };
+    // Empaqueta la columna del píxel k y sus vecinos de arriba y abajo en tres bits
+    private static int columna(byte[] pixeles, int k, int stride) {
+        return pixeles[k - stride] & 1 | (pixeles[k] & 1) << 1 | (pixeles[k + stride] & 1) << 2;
     }
 
-    private static int calcularCrossingNumber(int[] vecinos) {
-        int CN = 0;
-        for (int i = 0; i < vecinos.length; i++) {
-            CN += Math.abs(vecinos[i] - vecinos[(i + 1) % vecinos.length]); // %vecinos.length porque P9 == P1
-        }
-        return CN / 2;
+    // Quita el píxel central (bit 4) de la ventana 3x3 y deja los 8 vecinos en un byte
+    private static int vecindad(int ventana) {
+        return ventana & 0xF | (ventana >>> 5) << 4;
     }
 
     // Calcula el ángulo de una minucia de tipo terminación
-    private static Double calcularAnguloCorte(FingerPrintImage image, int x, int y) {
-        Set<Point> visitados = new HashSet<>();
-        List<Point> path = new ArrayList<>();
-        explorarCamino(image, x, y, path, visitados, 0);
-        return calcularAnguloDesdeCamino(path);
+    private static Double calcularAnguloCorte(TrazadorCrestas trazador, int x, int y) {
+        trazador.nuevaMinucia(x, y);
+        trazador.trazar(x, y);
+        return trazador.anguloCamino();
     }
 
-    // Calcula los tres ángulos de una minucia de tipo bifurcación
-    private static Double[] calcularAngulosBifurcacion(FingerPrintImage image, int x, int y) {
+    // Calcula los tres ángulos de una minucia de tipo bifurcación; los caminos comparten los píxeles visitados
+    private static Double[] calcularAngulosBifurcacion(TrazadorCrestas trazador, int x, int y, int profundidad) {
         Double[] angulos = new Double[3];
         int encontrado = 0;
-        Set<Point> visitados = new HashSet<>();
+        trazador.nuevaMinucia(x, y);
         for (int i = 0; i < 8 && encontrado < 3; i++) {
-            List<Point> path = new ArrayList<>();
-            explorarCamino(image, x, y, path, visitados, 0);
-            if (path.size() >= PROFUNDIDAD_REQUERIDA) {
-                angulos[encontrado++] = calcularAnguloDesdeCamino(path);
+            if (trazador.trazar(x, y) >= profundidad) {
+                angulos[encontrado++] = trazador.anguloCamino();
             }
         }
         // Asigna ángulos restantes a 0 si no se encontraron 3 caminos
+        if (encontrado < 3) {
+            Metricas.incrementar(ContadorProceso.BIFURCACIONES_INCOMPLETAS, 1);
+        }
         for (int i = encontrado; i < 3; i++) {
             angulos[i] = 0.0;
         }
         return angulos;
     }
 
-    // Explora el camino desde una minucia, permitiendo cualquier tipo de curvación
-    private static void explorarCamino(FingerPrintImage image, int x, int y, List<Point> path, Set<Point> visitados, int profundidad) {
-        // Verifica si se ha alcanzado la profundidad requerida
-        if (profundidad >= PROFUNDIDAD_REQUERIDA) {
-            return;
-        }
-
-        // Arrays para las direcciones en el plano (x, y)
-        int[] dx = {1, 1, 0, -1, -1, -1, 0, 1};
-        int[] dy = {0, 1, 1, 1, 0, -1, -1, -1};
-
-        // Añade el punto actual a los visitados y al camino
-        visitados.add(new Point(x, y));
-        path.add(new Point(x, y));
-
-        // Explora en todas las direcciones posibles (8 direcciones)
-        for (int dir = 0; dir < 8; dir++) {
-            int nx = x + dx[dir];
-            int ny = y + dy[dir];
-
-            // Verifica si el nuevo punto está dentro de los límites de la imagen y no ha sido visitado
-            if (nx >= 0 && ny >= 0 && nx < image.getWidth() && ny < image.getHeight() &&
-                    image.getPixel(nx, ny) == FingerPrintImage.BLANCO && !visitados.contains(new Point(nx, ny))) {
-                // Llama recursivamente a explorarCamino para el nuevo punto
-                explorarCamino(image, nx, ny, path, visitados, profundidad + 1);
-                // Si se ha alcanzado la profundidad requerida, se detiene la exploración
-                if (path.size() >= PROFUNDIDAD_REQUERIDA) {
-                    return;
-                }
-            }
-        }
-    }
-
-    // Calcula el ángulo basado en el camino explorado
-    private static double calcularAnguloDesdeCamino(List<Point> path) {
-        // Si el camino tiene menos de 2 puntos, el ángulo es 0
-        if (path.size() < 2) return 0.0;
-        // Toma el primer y último punto del camino
-        Point first = path.get(0);
-        Point last = path.get(path.size() - 1);
-        // Calcula las diferencias en x y y
-        double dx = last.x - first.x;
-        double dy = last.y - first.y;
-        // Calcula y devuelve el ángulo en grados
-        return Math.toDegrees(Math.atan2(dy, dx));
+    // Imprime la información de las minucias detectadas
+    public static void imprimirMinucias(List<Minutiae> minutiaeList) {
+        imprimirMinucias(minutiaeList, System.out);
     }
 
-    // Imprime la información de las minucias detectadas
-    private static void imprimirMinucias(List<Minutiae> minutiaeList) {
+    // Escribe la información de las minucias detectadas en la salida indicada
+    public static void imprimirMinucias(List<Minutiae> minutiaeList, PrintStream salida) {
         for (Minutiae minutia : minutiaeList) {
             // Imprime la posición y el tipo de la minucia
-            System.out.printf("Minucia en (%d, %d) - Tipo: %d - Angulos: ", minutia.getX(), minutia.getY(), minutia.getType());
+            salida.printf("Minucia en (%d, %d) - Tipo: %d - Angulos: ", minutia.getX(), minutia.getY(), minutia.getType());
             // Imprime los ángulos detectados para la minucia
             for (Double angulo : minutia.getAngles()) {
                 if (angulo != null) {
-                    System.out.printf("%.2f ", angulo);
+                    salida.printf("%.2f ", angulo);
                 } else {
                     // Imprime 0.00 para ángulos no detectados
-                    System.out.print("0.00 ");
+                    salida.print("0.00 ");
                 }
             }
-            System.out.println();
+            salida.println();
         }
     }
 
@@ -0,0 +1,302 @@
+package org.biometria;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Plantilla compacta de minucias, pensada para guardar muchas en memoria. En lugar de un objeto por
+ * minucia se usan arrays paralelos de tipos primitivos: coordenadas en {@code short} (sin signo, hasta
+ * 65535), el tipo en un {@code byte} y tres ángulos cuantizados en un {@code byte} cada uno, es decir,
+ * 8 bytes por minucia.
+ * <p>
+ * Los ángulos se cuantizan a 256 pasos por vuelta (unos 1,4 grados): el valor {@code q} representa
+ * {@code q * 360 / 256} grados, y los valores de 128 en adelante, los ángulos negativos. Las
+ * terminaciones sólo usan el primer ángulo; las bifurcaciones, los tres.
+ * <p>
+ * Al recorrerla, o mediante {@link #asList()}, se obtiene una vista compatible con la API de
+ * {@link Minutiae}, que crea los objetos a medida que se piden.
+ */
+public class MinutiaeTemplate implements Iterable<Minutiae> {
+    /**
+     * Número de ángulos que se guardan por minucia.
+     */
+    public static final int ANGULOS_POR_MINUCIA = 3;
+
+    private short[] xs;
+    private short[] ys;
+    private byte[] tipos;
+    private byte[] angulos;
+    private int size;
+
+    /**
+     * Construye una plantilla vacía.
+     *
+     * @param capacidad el número de minucias para el que se reserva espacio inicialmente.
+     * @throws IllegalArgumentException si la capacidad es negativa.
+     */
+    public MinutiaeTemplate(int capacidad) {
+        if (capacidad < 0) {
+            throw new IllegalArgumentException("La capacidad no puede ser negativa.");
+        }
+        this.xs = new short[capacidad];
+        this.ys = new short[capacidad];
+        this.tipos = new byte[capacidad];
+        this.angulos = new byte[capacidad * ANGULOS_POR_MINUCIA];
+    }
+
+    /**
+     * Crea una plantilla con las minucias de la lista, en el mismo orden.
+     *
+     * @param minutiaeList las minucias detectadas.
+     * @return la plantilla, sin espacio sobrante.
+     * @throws IllegalArgumentException si alguna coordenada no cabe en la plantilla.
+     */
+    public static MinutiaeTemplate desde(List<Minutiae> minutiaeList) {
+        MinutiaeTemplate plantilla = new MinutiaeTemplate(minutiaeList.size());
+        for (Minutiae minutia : minutiaeList) {
+            plantilla.anadir(minutia);
+        }
+        return plantilla;
+    }
+
+    /**
+     * Añade una minucia al final de la plantilla. Los ángulos nulos se guardan como 0.
+     *
+     * @param minutia la minucia.
+     * @throws IllegalArgumentException si alguna coordenada no cabe en la plantilla.
+     */
+    public void anadir(Minutiae minutia) {
+        Double[] angles = minutia.getAngles();
+        int i = reservar(minutia.getX(), minutia.getY(), minutia.getType());
+        for (int a = 0; a < Math.min(angles.length, ANGULOS_POR_MINUCIA); a++) {
+            angulos[i * ANGULOS_POR_MINUCIA + a] = angles[a] == null ? 0 : cuantizarAngulo(angles[a]);
+        }
+    }
+
+    /**
+     * Añade una minucia con sus ángulos ya cuantizados.
+     *
+     * @param x      la coordenada x.
+     * @param y      la coordenada y.
+     * @param type   el tipo (1 terminación, 3 bifurcación).
+     * @param angulo1 el primer ángulo cuantizado.
+     * @param angulo2 el segundo ángulo cuantizado.
+     * @param angulo3 el tercer ángulo cuantizado.
+     * @throws IllegalArgumentException si alguna coordenada no cabe en la plantilla.
+     */
+    public void anadir(int x, int y, int type, byte angulo1, byte angulo2, byte angulo3) {
+        int i = reservar(x, y, type);
+        angulos[i * ANGULOS_POR_MINUCIA] = angulo1;
+        angulos[i * ANGULOS_POR_MINUCIA + 1] = angulo2;
+        angulos[i * ANGULOS_POR_MINUCIA + 2] = angulo3;
+    }
+
+    private int reservar(int x, int y, int type) {
+        if (x < 0 || x > 0xFFFF || y < 0 || y > 0xFFFF) {
+            throw new IllegalArgumentException("Las coordenadas de la minucia no caben en la plantilla.");
+        }
+        if (size == xs.length) {
+            int capacidad = Math.max(8, size * 2);
+            xs = Arrays.copyOf(xs, capacidad);
+            ys = Arrays.copyOf(ys, capacidad);
+            tipos = Arrays.copyOf(tipos, capacidad);
+            angulos = Arrays.copyOf(angulos, capacidad * ANGULOS_POR_MINUCIA);
+        }
+        int i = size++;
+        xs[i] = (short) x;
+        ys[i] = (short) y;
+        tipos[i] = (byte) type;
+        return i;
+    }
+
+    /**
+     * Libera el espacio reservado que no ocupa ninguna minucia.
+     */
+    public void recortar() {
+        if (size < xs.length) {
+            xs = Arrays.copyOf(xs, size);
+            ys = Arrays.copyOf(ys, size);
+            tipos = Arrays.copyOf(tipos, size);
+            angulos = Arrays.copyOf(angulos, size * ANGULOS_POR_MINUCIA);
+        }
+    }
+
+    /**
+     * Elimina todas las minucias, conservando el espacio reservado para reutilizar la plantilla.
+     */
+    public void vaciar() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getX(int i) {
+        comprobarIndice(i);
+        return xs[i] & 0xFFFF;
+    }
+
+    public int getY(int i) {
+        comprobarIndice(i);
+        return ys[i] & 0xFFFF;
+    }
+
+    public int getType(int i) {
+        comprobarIndice(i);
+        return tipos[i];
+    }
+
+    /**
+     * Devuelve cuántos ángulos tiene la minucia según su tipo: uno las terminaciones y tres las bifurcaciones.
+     *
+     * @param i el índice de la minucia.
+     * @return el número de ángulos.
+     */
+    public int getNumAngulos(int i) {
+        return getType(i) == 1 ? 1 : ANGULOS_POR_MINUCIA;
+    }
+
+    /**
+     * Devuelve un ángulo cuantizado de la minucia.
+     *
+     * @param i     el índice de la minucia.
+     * @param slot  el ángulo, entre 0 y {@link #ANGULOS_POR_MINUCIA} - 1.
+     * @return el ángulo en pasos de 1/256 de vuelta, entre 0 y 255.
+     */
+    public int getAnguloCuantizado(int i, int slot) {
+        comprobarIndice(i);
+        if (slot < 0 || slot >= ANGULOS_POR_MINUCIA) {
+            throw new IllegalArgumentException("El ángulo está fuera de los límites.");
+        }
+        return angulos[i * ANGULOS_POR_MINUCIA + slot] & 0xFF;
+    }
+
+    /**
+     * Devuelve la dirección de la minucia, que no depende del orden en que se trazaron los caminos: el
+     * ángulo de una terminación o, en una bifurcación, el que elige {@link #direccionBifurcacion}.
+     *
+     * @param i el índice de la minucia.
+     * @return la dirección en pasos de 1/256 de vuelta, entre 0 y 255.
+     */
+    public int getDireccionCuantizada(int i) {
+        if (getType(i) == 1) {
+            return getAnguloCuantizado(i, 0);
+        }
+        int base = i * ANGULOS_POR_MINUCIA;
+        return direccionBifurcacion(angulos[base] & 0xFF, angulos[base + 1] & 0xFF, angulos[base + 2] & 0xFF);
+    }
+
+    /**
+     * Elige como dirección de una bifurcación el camino opuesto a los dos más próximos entre sí, es decir,
+     * la cresta de la que salen las dos ramas. Los caminos se trazan en el orden en que se encuentran los
+     * vecinos, así que el primero puede ser cualquiera de los tres y no sirve para comparar dos capturas;
+     * esta dirección es la misma sea cual sea el orden. Si hay dos pares igual de próximos, se queda con
+     * el menor de los ángulos candidatos.
+     *
+     * @param angulo1 el primer ángulo cuantizado, entre 0 y 255.
+     * @param angulo2 el segundo ángulo cuantizado, entre 0 y 255.
+     * @param angulo3 el tercer ángulo cuantizado, entre 0 y 255.
+     * @return la dirección cuantizada, que es uno de los tres ángulos.
+     */
+    public static int direccionBifurcacion(int angulo1, int angulo2, int angulo3) {
+        int separacion1 = separacion(angulo2, angulo3);
+        int separacion2 = separacion(angulo1, angulo3);
+        int separacion3 = separacion(angulo1, angulo2);
+        int direccion = angulo1;
+        int menor = separacion1;
+        if (separacion2 < menor || separacion2 == menor && angulo2 < direccion) {
+            direccion = angulo2;
+            menor = separacion2;
+        }
+        if (separacion3 < menor || separacion3 == menor && angulo3 < direccion) {
+            direccion = angulo3;
+        }
+        return direccion;
+    }
+
+    // Diferencia circular entre dos ángulos cuantizados, entre 0 y 128
+    private static int separacion(int angulo1, int angulo2) {
+        int diferencia = (angulo1 - angulo2) & 0xFF;
+        return Math.min(diferencia, 256 - diferencia);
+    }
+
+    /**
+     * Devuelve un ángulo de la minucia en grados.
+     *
+     * @param i    el índice de la minucia.
+     * @param slot el ángulo, entre 0 y {@link #ANGULOS_POR_MINUCIA} - 1.
+     * @return el ángulo en grados, en [-180, 180).
+     */
+    public double getAngulo(int i, int slot) {
+        return descuantizarAngulo(getAnguloCuantizado(i, slot));
+    }
+
+    /**
+     * Cuantiza un ángulo en grados a 256 pasos por vuelta, redondeando al paso más cercano.
+     *
+     * @param grados el ángulo en grados, de cualquier signo.
+     * @return el ángulo cuantizado.
+     */
+    public static byte cuantizarAngulo(double grados) {
+        return (byte) Math.round(grados * 256.0 / 360.0);
+    }
+
+    /**
+     * Convierte un ángulo cuantizado a grados.
+     *
+     * @param cuantizado el ángulo en pasos de 1/256 de vuelta; sólo se usan sus 8 bits más bajos.
+     * @return el ángulo en grados, en [-180, 180).
+     */
+    public static double descuantizarAngulo(int cuantizado) {
+        return (byte) cuantizado * 360.0 / 256.0;
+    }
+
+    /**
+     * Devuelve una vista de la plantilla como lista de {@link Minutiae}. Cada acceso crea el objeto de
+     * la minucia con los ángulos descuantizados; la vista refleja las minucias que se añadan después.
+     *
+     * @return la vista, de sólo lectura.
+     */
+    public List<Minutiae> asList() {
+        return new AbstractList<>() {
+            @Override
+            public Minutiae get(int i) {
+                return getMinutiae(i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Minutiae> iterator() {
+        return asList().iterator();
+    }
+
+    /**
+     * Crea el objeto {@link Minutiae} equivalente a una minucia de la plantilla.
+     *
+     * @param i el índice de la minucia.
+     * @return una terminación o una bifurcación, según el tipo.
+     */
+    public Minutiae getMinutiae(int i) {
+        int x = getX(i);
+        int y = getY(i);
+        if (tipos[i] == 1) {
+            return new CorteMinutiae(x, y, getAngulo(i, 0));
+        }
+        return new BifurcacionMinutiae(x, y, new Double[]{getAngulo(i, 0), getAngulo(i, 1), getAngulo(i, 2)});
+    }
+
+    private void comprobarIndice(int i) {
+        if (i < 0 || i >= size) {
+            throw new IllegalArgumentException("La minucia está fuera de los límites de la plantilla.");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.biometria;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cadena de etapas que lleva una imagen en escala de grises hasta el esqueleto con sus minucias.
+ * <p>
+ * La imagen de entrada se carga en un búfer de trabajo y cada {@link Etapa} escribe su resultado en
+ * el otro, alternando entre los dos, de modo que una ejecución completa sólo usa dos búferes del
+ * tamaño de la imagen. Los búferes se toman de {@link PoolBuferes} y se reutilizan en las siguientes
+ * ejecuciones del mismo hilo, así que en un procesamiento continuo no se reserva memoria proporcional
+ * a la imagen. Como consecuencia, la imagen devuelta por {@link #ejecutar} sólo es válida hasta la
+ * siguiente ejecución en el mismo hilo; las imágenes de depuración se copian antes de encolarlas.
+ * <p>
+ * Un pipeline no guarda estado entre ejecuciones y se puede compartir entre hilos.
+ */
+public final class Pipeline {
+    // Ranuras de PoolBuferes entre las que alternan las etapas
+    private static final int RANURA_PING = 0;
+    private static final int RANURA_PONG = 1;
+
+    private final EscritorDepuracion.Artefacto artefactoEntrada;
+    private final int modoEntrada;
+    private final double calidadMinima;
+    private final Paso[] pasos;
+
+    /**
+     * Una etapa y el artefacto de depuración con el que se guarda su resultado, o null si no tiene.
+     */
+    private static final class Paso {
+        final Etapa etapa;
+        final EscritorDepuracion.Artefacto artefacto;
+        final int modo;
+
+        Paso(Etapa etapa, EscritorDepuracion.Artefacto artefacto, int modo) {
+            this.etapa = etapa;
+            this.artefacto = artefacto;
+            this.modo = modo;
+        }
+    }
+
+    private Pipeline(Constructor constructor) {
+        this.artefactoEntrada = constructor.artefactoEntrada;
+        this.modoEntrada = constructor.modoEntrada;
+        this.calidadMinima = constructor.calidadMinima;
+        this.pasos = constructor.pasos.toArray(new Paso[0]);
+    }
+
+    public static Constructor constructor() {
+        return new Constructor();
+    }
+
+    /**
+     * Construye un pipeline añadiendo sus etapas en el orden en que se ejecutan.
+     */
+    public static final class Constructor {
+        private final List<Paso> pasos = new ArrayList<>();
+        private EscritorDepuracion.Artefacto artefactoEntrada;
+        private int modoEntrada;
+        private double calidadMinima;
+
+        private Constructor() {
+        }
+
+        /**
+         * Descarta las imágenes cuya calidad, evaluada con {@link EvaluadorCalidad} sobre la imagen de
+         * entrada, no llega al mínimo, antes de ejecutar ninguna etapa.
+         *
+         * @param calidadMinima la puntuación mínima, entre 0 y 1; con 0 no se evalúa la calidad.
+         * @return este constructor.
+         * @throws IllegalArgumentException si la puntuación no está entre 0 y 1.
+         */
+        public Constructor calidadMinima(double calidadMinima) {
+            this.calidadMinima = EvaluadorCalidad.validarMinimo(calidadMinima);
+            return this;
+        }
+
+        /**
+         * Guarda la imagen de entrada, en escala de grises, como artefacto de depuración.
+         *
+         * @param artefacto el artefacto que representa la imagen de entrada.
+         * @param modo      el modo de conversión de {@link ProcesamientoImagenUtils#convertirAFomatoBufferedImage}.
+         * @return este constructor.
+         */
+        public Constructor depurarEntrada(EscritorDepuracion.Artefacto artefacto, int modo) {
+            this.artefactoEntrada = artefacto;
+            this.modoEntrada = modo;
+            return this;
+        }
+
+        public Constructor etapa(Etapa etapa) {
+            return etapa(etapa, null, 0);
+        }
+
+        /**
+         * Añade una etapa cuyo resultado se guarda como artefacto de depuración.
+         *
+         * @param etapa     la etapa.
+         * @param artefacto el artefacto que representa su resultado, o null si no se depura.
+         * @param modo      el modo de conversión de {@link ProcesamientoImagenUtils#convertirAFomatoBufferedImage}.
+         * @return este constructor.
+         * @throws IllegalArgumentException si la etapa es null.
+         */
+        public Constructor etapa(Etapa etapa, EscritorDepuracion.Artefacto artefacto, int modo) {
+            if (etapa == null) {
+                throw new IllegalArgumentException("La etapa no puede ser null.");
+            }
+            pasos.add(new Paso(etapa, artefacto, modo));
+            return this;
+        }
+
+        public Pipeline construir() {
+            return new Pipeline(this);
+        }
+    }
+
+    /**
+     * Ejecuta todas las etapas sobre la imagen y detecta las minucias del resultado.
+     *
+     * @param fuente     las filas de la imagen en escala de grises.
+     * @param depuracion escritor de las imágenes intermedias.
+     * @return la imagen final, con la lista de minucias detectadas; su búfer se reutiliza en la siguiente
+     * ejecución del mismo hilo.
+     * @throws IllegalArgumentException si las dimensiones de la imagen no son válidas.
+     * @throws CalidadInsuficienteException si se ha fijado una calidad mínima y la imagen no la alcanza.
+     */
+    public FingerPrintImage ejecutar(FuenteFilasGris fuente, EscritorDepuracion depuracion) {
+        int width = fuente.getWidth();
+        int height = fuente.getHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Las dimensiones de la imagen deben ser positivas.");
+        }
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("La imagen es demasiado grande.");
+        }
+        PoolBuferes buferes = PoolBuferes.porHilo();
+        byte[] ping = buferes.bytes(RANURA_PING, width * height);
+        byte[] pong = buferes.bytes(RANURA_PONG, width * height);
+
+        FingerPrintImage actual = ProcesamientoImagenUtils.cargarGris(fuente, new FingerPrintImage(width, height, ping));
+        depurar(depuracion, artefactoEntrada, actual, modoEntrada);
+        if (calidadMinima > 0) {
+            EvaluadorCalidad.comprobar(actual, calidadMinima);
+        }
+        for (Paso paso : pasos) {
+            FingerPrintImage salida = new FingerPrintImage(width, height, actual.getPixels() == ping ? pong : ping);
+            paso.etapa.aplicar(actual, salida);
+            depurar(depuracion, paso.artefacto, salida, paso.modo);
+            actual = salida;
+        }
+
+        MinutiaeDetectionUtils.buscarMinucias(actual);
+        if (depuracion.isActivo(EscritorDepuracion.Artefacto.MINUCIAS)
+                || depuracion.isActivo(EscritorDepuracion.Artefacto.ANGULOS)) {
+            depuracion.escribirMinucias(new FingerPrintImage(actual));
+        }
+        return actual;
+    }
+
+    // El escritor trabaja en segundo plano y el búfer se reutiliza en la siguiente etapa: se le pasa una copia
+    private static void depurar(EscritorDepuracion depuracion, EscritorDepuracion.Artefacto artefacto,
+                                FingerPrintImage imagen, int modo) {
+        if (artefacto != null && depuracion.isActivo(artefacto)) {
+            depuracion.escribir(artefacto, new FingerPrintImage(imagen), modo);
+        }
+    }
+}
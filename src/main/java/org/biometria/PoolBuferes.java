@@ -0,0 +1,74 @@
+package org.biometria;
+
+/**
+ * Búferes de trabajo que se reutilizan de una imagen a la siguiente, para que el procesamiento
+ * continuo no reserve en cada imagen arrays del tamaño de la imagen.
+ * <p>
+ * Cada búfer se identifica por una ranura: quien lo pide es el único que lo usa mientras trabaja y no
+ * debe conservarlo después, porque la siguiente petición de la misma ranura devuelve el mismo array.
+ * Los búferes sólo crecen, hasta la siguiente potencia de dos del tamaño pedido, de forma que
+ * un lote con imágenes de tamaños parecidos deja de reservar memoria tras las primeras. Su contenido
+ * inicial es indefinido. Las instancias no son seguras para varios hilos; {@link #porHilo()} devuelve
+ * la del hilo actual.
+ */
+final class PoolBuferes {
+    static final int NUM_RANURAS = 4;
+
+    private static final ThreadLocal<PoolBuferes> POR_HILO = ThreadLocal.withInitial(PoolBuferes::new);
+
+    private final byte[][] bytes = new byte[NUM_RANURAS][];
+    private final long[][] palabras = new long[NUM_RANURAS][];
+
+    static PoolBuferes porHilo() {
+        return POR_HILO.get();
+    }
+
+    /**
+     * Devuelve el búfer de bytes de la ranura, con al menos el tamaño indicado.
+     *
+     * @param ranura la ranura, entre 0 y {@link #NUM_RANURAS} - 1.
+     * @param tamano el número de bytes necesario.
+     * @return el búfer de la ranura, con su contenido anterior.
+     */
+    byte[] bytes(int ranura, int tamano) {
+        byte[] bufer = bytes[ranura];
+        if (bufer == null || bufer.length < tamano) {
+            bufer = new byte[capacidad(tamano)];
+            bytes[ranura] = bufer;
+        }
+        return bufer;
+    }
+
+    /**
+     * Devuelve el búfer de palabras de la ranura, con al menos el tamaño indicado. Las ranuras de
+     * palabras son independientes de las de bytes.
+     *
+     * @param ranura la ranura, entre 0 y {@link #NUM_RANURAS} - 1.
+     * @param tamano el número de palabras necesario.
+     * @return el búfer de la ranura, con su contenido anterior.
+     */
+    long[] palabras(int ranura, int tamano) {
+        long[] bufer = palabras[ranura];
+        if (bufer == null || bufer.length < tamano) {
+            bufer = new long[capacidad(tamano)];
+            palabras[ranura] = bufer;
+        }
+        return bufer;
+    }
+
+    /**
+     * Suelta todos los búferes del hilo actual, por ejemplo tras procesar una imagen mucho mayor
+     * que las habituales.
+     */
+    static void liberar() {
+        POR_HILO.remove();
+    }
+
+    private static int capacidad(int tamano) {
+        if (tamano <= 64) {
+            return 64;
+        }
+        int potencia = Integer.highestOneBit(tamano - 1) << 1;
+        return potencia > 0 ? potencia : tamano;
+    }
+}
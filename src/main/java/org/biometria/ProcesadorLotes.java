@@ -0,0 +1,256 @@
+package org.biometria;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Procesa un lote de imágenes en una sola JVM con un número acotado de hilos. Las minucias de cada
+ * imagen se escriben en su propio archivo {@code <nombre>.minucias.txt} del directorio de salida y,
+ * al terminar, se devuelve un resumen con el rendimiento y los fallos. El fallo de una imagen no
+ * interrumpe el resto del lote.
+ */
+public class ProcesadorLotes {
+    private final static Logger LOGGER = Logger.getLogger(ProcesadorLotes.class.getName());
+
+    private static final Set<String> EXTENSIONES = new HashSet<>(Arrays.asList("png", "jpg", "jpeg", "bmp", "gif", "tif", "tiff", "pgm", "raw", "esqueleto"));
+
+    /**
+     * Extrae las minucias de una imagen del lote.
+     */
+    @FunctionalInterface
+    public interface Extractor {
+        /**
+         * @param imagen     el archivo de la imagen.
+         * @param nombre     el nombre de la imagen en el lote, sin extensión y distinto del de las demás,
+         *                   para nombrar los archivos que se generen a partir de ella.
+         * @param depuracion el escritor de imágenes intermedias de la imagen.
+         * @return las minucias.
+         * @throws IOException si no se puede leer la imagen o escribir lo que se genera a partir de ella.
+         */
+        List<Minutiae> extraer(File imagen, String nombre, EscritorDepuracion depuracion) throws IOException;
+    }
+
+    /**
+     * Resultado de procesar un lote: imágenes procesadas y fallidas, ritmo y latencias por imagen.
+     */
+    public static class Resumen {
+        private final int procesadas;
+        private final List<String> rechazadas;
+        private final List<String> fallos;
+        private final long duracionNanos;
+        private final long[] latenciasNanos;
+
+        Resumen(int procesadas, List<String> rechazadas, List<String> fallos, long duracionNanos, long[] latenciasNanos) {
+            this.procesadas = procesadas;
+            this.rechazadas = rechazadas;
+            this.fallos = fallos;
+            this.duracionNanos = duracionNanos;
+            this.latenciasNanos = latenciasNanos;
+            Arrays.sort(this.latenciasNanos);
+        }
+
+        public int getProcesadas() {
+            return procesadas;
+        }
+
+        /**
+         * @return las imágenes descartadas por no alcanzar la calidad mínima, con el motivo.
+         */
+        public List<String> getRechazadas() {
+            return rechazadas;
+        }
+
+        public List<String> getFallos() {
+            return fallos;
+        }
+
+        public double getImagenesPorSegundo() {
+            return duracionNanos == 0 ? 0 : procesadas * 1e9 / duracionNanos;
+        }
+
+        /**
+         * Devuelve el percentil indicado de la latencia por imagen correcta (método del rango más cercano).
+         *
+         * @param percentil el percentil, entre 0 y 100.
+         * @return la latencia en nanosegundos, o 0 si no se procesó ninguna imagen.
+         */
+        public long getLatenciaPercentil(double percentil) {
+            if (latenciasNanos.length == 0) {
+                return 0;
+            }
+            int rango = (int) Math.ceil(percentil / 100.0 * latenciasNanos.length);
+            return latenciasNanos[Math.max(0, Math.min(latenciasNanos.length - 1, rango - 1))];
+        }
+
+        public void imprimir(PrintStream salida) {
+            salida.printf(Locale.ROOT, "Imágenes procesadas: %d, rechazadas: %d, fallidas: %d, tiempo total: %.2f s%n",
+                    procesadas, rechazadas.size(), fallos.size(), duracionNanos / 1e9);
+            salida.printf(Locale.ROOT, "Rendimiento: %.2f imágenes/s, latencia p50: %.2f ms, p99: %.2f ms%n",
+                    getImagenesPorSegundo(), getLatenciaPercentil(50) / 1e6, getLatenciaPercentil(99) / 1e6);
+            for (String rechazada : rechazadas) {
+                salida.println("Rechazada: " + rechazada);
+            }
+            for (String fallo : fallos) {
+                salida.println("Fallo: " + fallo);
+            }
+        }
+    }
+
+    private final int hilos;
+    private final File directorioSalida;
+    private final Extractor extractor;
+    private final EscritorDepuracion depuracion;
+
+    /**
+     * @param hilos            número de imágenes que se procesan a la vez.
+     * @param directorioSalida directorio donde se escriben las minucias (y los artefactos de depuración).
+     * @param extractor        el procesamiento a aplicar a cada imagen.
+     * @param depuracion       escritor de imágenes intermedias, compartido por todo el lote.
+     */
+    public ProcesadorLotes(int hilos, File directorioSalida, Extractor extractor, EscritorDepuracion depuracion) {
+        if (hilos <= 0) {
+            throw new IllegalArgumentException("El número de hilos debe ser positivo.");
+        }
+        this.hilos = hilos;
+        this.directorioSalida = directorioSalida;
+        this.extractor = extractor;
+        this.depuracion = depuracion;
+    }
+
+    /**
+     * Obtiene las imágenes de un lote: si el origen es un directorio, sus archivos de imagen en orden
+     * alfabético; si es un archivo, las rutas que contiene (una por línea, ignorando las vacías y las
+     * que empiezan por #).
+     *
+     * @param origen el directorio o la lista de imágenes.
+     * @return las imágenes a procesar.
+     * @throws IOException si no se puede leer el origen.
+     */
+    public static List<File> listarImagenes(File origen) throws IOException {
+        List<File> imagenes = new ArrayList<>();
+        if (origen.isDirectory()) {
+            File[] archivos = origen.listFiles(File::isFile);
+            if (archivos == null) {
+                throw new IOException("No se puede leer el directorio " + origen);
+            }
+            Arrays.sort(archivos);
+            for (File archivo : archivos) {
+                if (EXTENSIONES.contains(extension(archivo.getName()))) {
+                    imagenes.add(archivo);
+                }
+            }
+        } else {
+            for (String linea : Files.readAllLines(origen.toPath(), StandardCharsets.UTF_8)) {
+                linea = linea.trim();
+                if (!linea.isEmpty() && !linea.startsWith("#")) {
+                    imagenes.add(new File(linea));
+                }
+            }
+        }
+        return imagenes;
+    }
+
+    /**
+     * Procesa todas las imágenes y espera a que terminen.
+     *
+     * @param imagenes las imágenes del lote.
+     * @return el resumen del lote.
+     * @throws IOException si no se puede crear el directorio de salida.
+     */
+    public Resumen procesar(List<File> imagenes) throws IOException {
+        Files.createDirectories(directorioSalida.toPath());
+        List<String> nombres = nombresUnicos(imagenes);
+        long[] latencias = new long[imagenes.size()];
+        List<String> rechazadas = new ArrayList<>();
+        List<String> fallos = new ArrayList<>();
+        int procesadas = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(hilos);
+        long inicio = System.nanoTime();
+        try {
+            List<Future<Long>> resultados = new ArrayList<>(imagenes.size());
+            for (int i = 0; i < imagenes.size(); i++) {
+                File imagen = imagenes.get(i);
+                String nombre = nombres.get(i);
+                resultados.add(executor.submit(() -> procesarImagen(imagen, nombre)));
+            }
+            for (int i = 0; i < resultados.size(); i++) {
+                try {
+                    long latencia = resultados.get(i).get();
+                    latencias[procesadas++] = latencia;
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause();
+                    if (causa instanceof CalidadInsuficienteException) {
+                        rechazadas.add(imagenes.get(i) + ": " + causa.getMessage());
+                        LOGGER.info("Imagen " + imagenes.get(i) + " descartada: " + causa.getMessage());
+                        continue;
+                    }
+                    fallos.add(imagenes.get(i) + ": " + causa);
+                    LOGGER.warning("No se pudo procesar " + imagenes.get(i) + ": " + causa);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fallos.add("Lote interrumpido");
+        } finally {
+            executor.shutdownNow();
+        }
+        long duracion = System.nanoTime() - inicio;
+        return new Resumen(procesadas, rechazadas, fallos, duracion, Arrays.copyOf(latencias, procesadas));
+    }
+
+    private long procesarImagen(File imagen, String nombre) throws IOException {
+        long inicio = System.nanoTime();
+        List<Minutiae> minutiaeList = extractor.extraer(imagen, nombre, depuracion.paraImagen(nombre + "_"));
+        File archivo = new File(directorioSalida, nombre + ".minucias.txt");
+        try (PrintStream salida = new PrintStream(new FileOutputStream(archivo), false, StandardCharsets.UTF_8)) {
+            MinutiaeDetectionUtils.imprimirMinucias(minutiaeList, salida);
+        }
+        return System.nanoTime() - inicio;
+    }
+
+    // Nombre base de cada imagen sin extensión; si se repite, se le añade un sufijo numérico
+    private static List<String> nombresUnicos(List<File> imagenes) {
+        Set<String> usados = new HashSet<>();
+        List<String> nombres = new ArrayList<>(imagenes.size());
+        for (File imagen : imagenes) {
+            String base = nombreBase(imagen);
+            String nombre = base;
+            for (int n = 2; !usados.add(nombre); n++) {
+                nombre = base + "_" + n;
+            }
+            nombres.add(nombre);
+        }
+        return nombres;
+    }
+
+    /**
+     * @param imagen el archivo de la imagen.
+     * @return su nombre sin la extensión.
+     */
+    static String nombreBase(File imagen) {
+        String nombre = imagen.getName();
+        int punto = nombre.lastIndexOf('.');
+        return punto > 0 ? nombre.substring(0, punto) : nombre;
+    }
+
+    private static String extension(String nombre) {
+        int punto = nombre.lastIndexOf('.');
+        return punto < 0 ? "" : nombre.substring(punto + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,142 +1,411 @@
 package org.biometria;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 public class ProcesamientoImagenUtils {
     /**
      * Convierte la imagen RGB a escala de grises, permitiendo un cálculo ponderado.
+     * <p>
+     * En la misma pasada se calcula el histograma de niveles de gris y los valores máximo, mínimo y
+     * medio, que quedan guardados en la imagen resultante para que la ecualización y la binarización
+     * no tengan que volver a recorrerla. Para las imágenes {@code TYPE_BYTE_GRAY}, {@code TYPE_3BYTE_BGR},
+     * {@code TYPE_INT_RGB} y {@code TYPE_INT_ARGB} los píxeles se leen directamente del DataBuffer; el
+     * resto de tipos se leen fila a fila con getRGB. El resultado es el mismo que con getRGB píxel a píxel.
      *
      * @param imagenEntrada La imagen de entrada en formato BufferedImage.
      * @param modoPonderado Si es true, utiliza un cálculo ponderado; si es false, utiliza el promedio simple.
      * @return Una imagen en formato FingerPrintImage, en escala de grises.
      */
     public static FingerPrintImage convertirRGBaGris(BufferedImage imagenEntrada, boolean modoPonderado) {
-        int width = imagenEntrada.getWidth();
-        int height = imagenEntrada.getHeight();
-        FingerPrintImage imagenSalida = new FingerPrintImage(width, height);
-
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                int rgb = imagenEntrada.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = (rgb & 0xFF);
-
-                char nivelGris;
-                if (modoPonderado) {
-                    nivelGris = (char) (int) (0.2126 * r + 0.7152 * g + 0.0722 * b);
-                } else {
-                    nivelGris = (char) ((r + g + b) / 3);
-                }
+        return cargarGris(filasGris(imagenEntrada, modoPonderado),
+                new FingerPrintImage(imagenEntrada.getWidth(), imagenEntrada.getHeight()));
+    }
 
-                imagenSalida.setPixel(x, y, nivelGris);
+    /**
+     * Copia las filas de una fuente en escala de grises a una imagen ya existente, calculando en la
+     * misma pasada el histograma y los valores máximo, mínimo y medio, como {@link #convertirRGBaGris}.
+     *
+     * @param filas        la fuente de las filas en escala de grises.
+     * @param imagenSalida la imagen de destino, del mismo tamaño que la fuente; se sobrescribe entera.
+     * @return la imagen de destino.
+     * @throws IllegalArgumentException si la imagen y la fuente no tienen el mismo tamaño.
+     */
+    public static FingerPrintImage cargarGris(FuenteFilasGris filas, FingerPrintImage imagenSalida) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        int width = filas.getWidth();
+        int height = filas.getHeight();
+        comprobarTamano(imagenSalida, width, height);
+        byte[] pixeles = imagenSalida.getPixels();
+        int[] histograma = new int[256];
+
+        for (int y = 0; y < height; ++y) {
+            int fila = imagenSalida.getRowOffset(y);
+            filas.leerFila(y, pixeles, fila);
+            for (int x = 0; x < width; ++x) {
+                histograma[pixeles[fila + x] & 0xFF]++;
             }
         }
+        asignarEstadisticas(imagenSalida, histograma);
+        Metricas.registrar(EtapaProceso.GRIS, inicio, bytes);
         return imagenSalida;
     }
 
     /**
-     * Convierte esta imagen de huella dactilar a un objeto BufferedImage.
+     * Devuelve las filas de la imagen convertidas a escala de grises, una a una, con la misma conversión
+     * que {@link #convertirRGBaGris}. Para los tipos de imagen con lectura directa los píxeles se leen del
+     * DataBuffer; el resto, fila a fila con getRGB. La fuente devuelta reutiliza un búfer interno, así que
+     * sólo debe usarse desde un hilo.
+     *
+     * @param imagenEntrada La imagen de entrada en formato BufferedImage.
+     * @param modoPonderado Si es true, utiliza un cálculo ponderado; si es false, utiliza el promedio simple.
+     * @return las filas en escala de grises.
+     */
+    public static FuenteFilasGris filasGris(BufferedImage imagenEntrada, boolean modoPonderado) {
+        return new FilasImagen(imagenEntrada, modoPonderado);
+    }
+
+    /**
+     * Lectura por filas de una BufferedImage. Los píxeles se leen directamente del DataBuffer si el
+     * tipo de imagen lo permite y, si no, con getRGB.
+     */
+    private static final class FilasImagen implements FuenteFilasGris {
+        private final BufferedImage imagen;
+        private final boolean modoPonderado;
+        private final int width;
+        private final int tipo;
+        private final DataBuffer buffer;
+        private final SampleModel modelo;
+        private final int tx;
+        private final int ty;
+        // Conversión de cada nivel de TYPE_BYTE_GRAY, o null para los demás tipos
+        private final int[] tabla;
+        private final int[] filaRGB;
+
+        FilasImagen(BufferedImage imagen, boolean modoPonderado) {
+            this.imagen = imagen;
+            this.modoPonderado = modoPonderado;
+            this.width = imagen.getWidth();
+            Raster raster = imagen.getRaster();
+            this.buffer = raster.getDataBuffer();
+            this.modelo = raster.getSampleModel();
+            this.tx = raster.getSampleModelTranslateX();
+            this.ty = raster.getSampleModelTranslateY();
+            this.tipo = buffer.getNumBanks() == 1 ? imagen.getType() : BufferedImage.TYPE_CUSTOM;
+            if (tipo == BufferedImage.TYPE_BYTE_GRAY) {
+                // getRGB convierte el gris lineal a sRGB: se reproduce con una tabla de 256 entradas
+                ColorModel modeloColor = imagen.getColorModel();
+                tabla = new int[256];
+                byte[] muestra = new byte[1];
+                for (int v = 0; v < 256; v++) {
+                    muestra[0] = (byte) v;
+                    tabla[v] = nivelGris(modeloColor.getRGB(muestra), modoPonderado);
+                }
+            } else {
+                tabla = null;
+            }
+            this.filaRGB = tipo == BufferedImage.TYPE_BYTE_GRAY || tipo == BufferedImage.TYPE_3BYTE_BGR
+                    || tipo == BufferedImage.TYPE_INT_RGB || tipo == BufferedImage.TYPE_INT_ARGB ? null : new int[width];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return imagen.getHeight();
+        }
+
+        @Override
+        public void leerFila(int y, byte[] destino, int desplazamiento) {
+            switch (tipo) {
+                case BufferedImage.TYPE_BYTE_GRAY: {
+                    ComponentSampleModel componentes = (ComponentSampleModel) modelo;
+                    byte[] datos = ((DataBufferByte) buffer).getData();
+                    int paso = componentes.getPixelStride();
+                    int origen = buffer.getOffset() + componentes.getOffset(-tx, y - ty);
+                    for (int x = 0; x < width; ++x) {
+                        destino[desplazamiento + x] = (byte) tabla[datos[origen + x * paso] & 0xFF];
+                    }
+                    break;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    ComponentSampleModel componentes = (ComponentSampleModel) modelo;
+                    byte[] datos = ((DataBufferByte) buffer).getData();
+                    int paso = componentes.getPixelStride();
+                    int origenR = buffer.getOffset() + componentes.getOffset(-tx, y - ty, 0);
+                    int origenG = buffer.getOffset() + componentes.getOffset(-tx, y - ty, 1);
+                    int origenB = buffer.getOffset() + componentes.getOffset(-tx, y - ty, 2);
+                    for (int x = 0, k = 0; x < width; ++x, k += paso) {
+                        destino[desplazamiento + x] = (byte) nivelGris(datos[origenR + k] & 0xFF,
+                                datos[origenG + k] & 0xFF, datos[origenB + k] & 0xFF, modoPonderado);
+                    }
+                    break;
+                }
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB: {
+                    SinglePixelPackedSampleModel empaquetado = (SinglePixelPackedSampleModel) modelo;
+                    int[] datos = ((DataBufferInt) buffer).getData();
+                    int origen = buffer.getOffset() + empaquetado.getOffset(-tx, y - ty);
+                    for (int x = 0; x < width; ++x) {
+                        destino[desplazamiento + x] = (byte) nivelGris(datos[origen + x], modoPonderado);
+                    }
+                    break;
+                }
+                default:
+                    imagen.getRGB(0, y, width, 1, filaRGB, 0, width);
+                    for (int x = 0; x < width; ++x) {
+                        destino[desplazamiento + x] = (byte) nivelGris(filaRGB[x], modoPonderado);
+                    }
+            }
+        }
+    }
+
+    private static void comprobarTamano(FingerPrintImage imagen, int width, int height) {
+        if (imagen.getWidth() != width || imagen.getHeight() != height) {
+            throw new IllegalArgumentException("Las imágenes deben tener el mismo tamaño.");
+        }
+    }
+
+    private static int nivelGris(int rgb, boolean modoPonderado) {
+        return nivelGris((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, modoPonderado);
+    }
+
+    private static int nivelGris(int r, int g, int b, boolean modoPonderado) {
+        if (modoPonderado) {
+            return (int) (0.2126 * r + 0.7152 * g + 0.0722 * b);
+        }
+        return (r + g + b) / 3;
+    }
+
+    /**
+     * Convierte esta imagen de huella dactilar a un objeto BufferedImage. Los píxeles se escriben
+     * directamente en el búfer de la imagen: las imágenes binarias (modo 0) se empaquetan en una
+     * {@code TYPE_BYTE_BINARY} de un bit por píxel y las de escala de grises en una {@code TYPE_BYTE_GRAY},
+     * que se codifican en PNG mucho más deprisa y ocupan menos que una imagen RGB.
      *
      * @param imagenEntrada La imagen de entrada en formato FingerPrintImage.
-     * @param modo          Modo de conversión, si es 0 ajusta el brillo.
+     * @param modo          Modo de conversión: 0 para imágenes binarias (0 negro, 1 blanco), cualquier
+     *                      otro para niveles de gris de 0 a 255.
      * @return Una imagen en formato BufferedImage.
      */
     public static BufferedImage convertirAFomatoBufferedImage(FingerPrintImage imagenEntrada, int modo) {
-        BufferedImage imagenSalida = new BufferedImage(imagenEntrada.getWidth(), imagenEntrada.getHeight(), BufferedImage.TYPE_INT_RGB);
-        for (int x = 0; x < imagenEntrada.getWidth(); ++x) {
-            for (int y = 0; y < imagenEntrada.getHeight(); ++y) {
-                int valor = imagenEntrada.getPixel(x, y);
-                if (modo == 0) {
-                    valor = valor * 255;
+        int width = imagenEntrada.getWidth();
+        int height = imagenEntrada.getHeight();
+        if (modo == 0) {
+            return empaquetarBinaria(imagenEntrada, new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY));
+        }
+        BufferedImage imagenSalida = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] destino = ((DataBufferByte) imagenSalida.getRaster().getDataBuffer()).getData();
+        byte[] pixeles = imagenEntrada.getPixels();
+        for (int y = 0; y < height; ++y) {
+            System.arraycopy(pixeles, imagenEntrada.getRowOffset(y), destino, y * width, width);
+        }
+        return imagenSalida;
+    }
+
+    // Empaqueta una imagen binaria en una TYPE_BYTE_BINARY recién creada, ocho píxeles por byte con el
+    // primero en el bit más alto; el bit a 1 es el blanco de la paleta por defecto
+    private static BufferedImage empaquetarBinaria(FingerPrintImage imagenEntrada, BufferedImage imagenSalida) {
+        WritableRaster raster = imagenSalida.getRaster();
+        byte[] destino = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        byte[] pixeles = imagenEntrada.getPixels();
+        int width = imagenEntrada.getWidth();
+        for (int y = 0; y < imagenEntrada.getHeight(); ++y) {
+            int fila = imagenEntrada.getRowOffset(y);
+            int base = y * stride;
+            for (int x = 0; x < width; x += 8) {
+                int bits = 0;
+                int fin = Math.min(8, width - x);
+                for (int k = 0; k < fin; k++) {
+                    if (pixeles[fila + x + k] != FingerPrintImage.NEGRO) {
+                        bits |= 0x80 >>> k;
+                    }
                 }
-                int pixelRGB = (255 << 24 | valor << 16 | valor << 8 | valor);
-                imagenSalida.setRGB(x, y, pixelRGB);
+                destino[base + (x >> 3)] = (byte) bits;
             }
         }
         return imagenSalida;
     }
 
+    /**
+     * Ecualiza el histograma de una imagen en escala de grises. Si la imagen ya trae su histograma
+     * (por ejemplo, de {@link #convertirRGBaGris}) no se vuelve a recorrer para calcularlo, y el
+     * histograma y las estadísticas de la imagen ecualizada se obtienen a partir de la tabla LUT.
+     *
+     * @param imagenEntrada La imagen en escala de grises.
+     * @return Una nueva imagen ecualizada.
+     */
     public static FingerPrintImage convertirGrisAHistograma(FingerPrintImage imagenEntrada) {
+        return convertirGrisAHistograma(imagenEntrada,
+                new FingerPrintImage(imagenEntrada.getWidth(), imagenEntrada.getHeight()));
+    }
+
+    /**
+     * Ecualiza el histograma de una imagen en escala de grises y escribe el resultado en la imagen de
+     * destino, que puede ser la propia entrada.
+     *
+     * @param imagenEntrada    La imagen en escala de grises.
+     * @param imagenEcualizada La imagen donde se escribe el resultado, del mismo tamaño.
+     * @return La imagen de destino, ecualizada.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
+     */
+    public static FingerPrintImage convertirGrisAHistograma(FingerPrintImage imagenEntrada, FingerPrintImage imagenEcualizada) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
         int width = imagenEntrada.getWidth();
         int height = imagenEntrada.getHeight();
-        FingerPrintImage imagenEcualizada = new FingerPrintImage(width, height);
+        comprobarTamano(imagenEcualizada, width, height);
+        byte[] entrada = imagenEntrada.getPixels();
+        byte[] salida = imagenEcualizada.getPixels();
         int tampixel = width * height;
-        int[] histograma = new int[256];
-        int i;
-        int minValor = 255;
-        int maxValor = 0;
-        int sumTotal = 0;
 
         //Calculamos frecuencia relativa de ocurrencia
         //de los distintos niveles de gris en la imagen
+        int[] histograma = imagenEntrada.getHistogram();
+        if (histograma == null) {
+            histograma = calcularHistograma(imagenEntrada);
+        }
+        int[] histogramaEcualizado = new int[256];
+        byte[] lutNiveles = tablaEcualizacion(histograma, tampixel, histogramaEcualizado);
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) { //Recorremos la imagen
-                int valor = imagenEntrada.getPixel(x, y);
-                histograma[valor]++; //Almacenamos cuantas veces aparece dicho tono de gris
-
+        //Se transforma la imagen utilizando la tabla LUT
+        for (int y = 0; y < height; y++) {
+            int filaEntrada = imagenEntrada.getRowOffset(y);
+            int filaSalida = imagenEcualizada.getRowOffset(y);
+            for (int x = 0; x < width; x++) {
+                salida[filaSalida + x] = lutNiveles[entrada[filaEntrada + x] & 0xFF];
             }
         }
-        int sum = 0;
-
-        //Construimos la Lookup table LUT
+        asignarEstadisticas(imagenEcualizada, histogramaEcualizado);
+        Metricas.registrar(EtapaProceso.ECUALIZACION, inicio, bytes);
+        return imagenEcualizada;
+    }
 
+    /**
+     * Construye la tabla LUT de la ecualización a partir del histograma acumulado.
+     *
+     * @param histograma           el histograma de niveles de gris.
+     * @param tampixel             el número de píxeles de la imagen.
+     * @param histogramaEcualizado recibe el histograma de la imagen ecualizada.
+     * @return el nivel ecualizado de cada nivel de gris.
+     */
+    static byte[] tablaEcualizacion(int[] histograma, int tampixel, int[] histogramaEcualizado) {
+        int sum = 0;
         float[] lut = new float[256];
-        for (i = 0; i < 256; i++) {
+        byte[] lutNiveles = new byte[256];
+        for (int i = 0; i < 256; i++) {
             sum += histograma[i];
-            lut[i] = (float) (sum * 255) / tampixel;
+            lut[i] = (float) (sum * 255L) / tampixel;
+            int valorNuevo = (int) lut[i];
+            lutNiveles[i] = (byte) valorNuevo;
+            histogramaEcualizado[valorNuevo] += histograma[i];
         }
+        return lutNiveles;
+    }
 
-        //Se transforma la imagen utilizando la tabla LUT
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int valor = imagenEntrada.getPixel(x, y);
-                int valorNuevo = (int) lut[valor];
-                imagenEcualizada.setPixel(x, y, (char) valorNuevo);
+    private static int[] calcularHistograma(FingerPrintImage imagenGris) {
+        int width = imagenGris.getWidth();
+        int height = imagenGris.getHeight();
+        byte[] pixeles = imagenGris.getPixels();
+        int[] histograma = new int[256];
+        for (int y = 0; y < height; y++) { //Recorremos la imagen
+            int fila = imagenGris.getRowOffset(y);
+            for (int x = 0; x < width; x++) {
+                histograma[pixeles[fila + x] & 0xFF]++; //Almacenamos cuantas veces aparece dicho tono de gris
             }
         }
-        return imagenEcualizada;
+        return histograma;
     }
 
-    private static void calcularMaximoMinimoYMedio(FingerPrintImage imagenGris) {
-        //Obtenemos el valor maximo y minimo
-        int width = imagenGris.getWidth();
-        int height = imagenGris.getHeight();
+    // Guarda el histograma en la imagen junto con los valores máximo, mínimo y medio que se deducen de él
+    private static void asignarEstadisticas(FingerPrintImage imagenGris, int[] histograma) {
         int maxValor = 0;
         int minValor = 255;
-        int sumTotal = 0;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) { //Recorremos la imagen
-                int valor = imagenGris.getPixel(x, y);
-                if (valor < minValor) minValor = valor;
-                if (valor > maxValor) maxValor = valor;
-                sumTotal += valor;
-            }
+        for (int valor = 0; valor < 256; valor++) {
+            if (histograma[valor] == 0) continue;
+            if (valor < minValor) minValor = valor;
+            maxValor = valor;
         }
-        int valorMedio = sumTotal / (width * height);
+        int valorMedio = valorMedio(histograma);
+        imagenGris.setHistogram(histograma);
         imagenGris.setMaxGrayValue((char) maxValor);
         imagenGris.setMinGrayValue((char) minValor);
         imagenGris.setMidGrayValue((char) valorMedio);
     }
 
+    // Nivel de gris medio de la imagen, redondeado hacia abajo
+    static int valorMedio(int[] histograma) {
+        long sumTotal = 0;
+        long total = 0;
+        for (int valor = 0; valor < 256; valor++) {
+            sumTotal += (long) valor * histograma[valor];
+            total += histograma[valor];
+        }
+        return (int) (sumTotal / total);
+    }
+
+    private static void calcularMaximoMinimoYMedio(FingerPrintImage imagenGris) {
+        //Obtenemos el valor maximo, minimo y medio a partir del histograma, calculándolo si la imagen no lo tiene
+        int[] histograma = imagenGris.getHistogram();
+        if (histograma == null) {
+            histograma = calcularHistograma(imagenGris);
+        }
+        asignarEstadisticas(imagenGris, histograma);
+    }
+
     public static FingerPrintImage convertirABlancoYNegro(FingerPrintImage imagenGris) {
+        return convertirABlancoYNegro(imagenGris, new FingerPrintImage(imagenGris.getWidth(), imagenGris.getHeight()));
+    }
+
+    /**
+     * Binariza una imagen en escala de grises con su valor medio como umbral y escribe el resultado en
+     * la imagen de destino, que puede ser la propia entrada.
+     *
+     * @param imagenGris la imagen en escala de grises.
+     * @param imagenByN  la imagen donde se escribe el resultado, del mismo tamaño.
+     * @return la imagen de destino, con valores {@link FingerPrintImage#BLANCO} y {@link FingerPrintImage#NEGRO}.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
+     */
+    public static FingerPrintImage convertirABlancoYNegro(FingerPrintImage imagenGris, FingerPrintImage imagenByN) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
         calcularMaximoMinimoYMedio(imagenGris);
         int width = imagenGris.getWidth();
         int height = imagenGris.getHeight();
+        comprobarTamano(imagenByN, width, height);
         int valorMedio = imagenGris.getMidGrayValue();
-        FingerPrintImage imagenByN = new FingerPrintImage(width, height);
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                char valorPixel = imagenGris.getPixel(x, y);
-                char valorBinarizado;
-                // Aplica umbralización: si el valor del píxel es mayor que el medio, se convierte a blanco (1), si no, a negro (0)
-                if (valorPixel > valorMedio) valorBinarizado = FingerPrintImage.BLANCO;
-                else valorBinarizado = FingerPrintImage.NEGRO;
-                imagenByN.setPixel(x, y, valorBinarizado);
+        byte[] gris = imagenGris.getPixels();
+        byte[] byN = imagenByN.getPixels();
+
+        // Aplica umbralización: si el valor del píxel es mayor que el medio, se convierte a blanco (1), si no, a negro (0)
+        byte[] umbral = new byte[256];
+        for (int valorPixel = 0; valorPixel < 256; valorPixel++) {
+            if (valorPixel > valorMedio) umbral[valorPixel] = FingerPrintImage.BLANCO;
+            else umbral[valorPixel] = FingerPrintImage.NEGRO;
+        }
+
+        for (int y = 0; y < height; y++) {
+            int filaGris = imagenGris.getRowOffset(y);
+            int filaByN = imagenByN.getRowOffset(y);
+            for (int x = 0; x < width; x++) {
+                byN[filaByN + x] = umbral[gris[filaGris + x] & 0xFF];
             }
         }
+        Metricas.registrar(EtapaProceso.BINARIZACION, inicio, bytes);
         return imagenByN;
     }
 }
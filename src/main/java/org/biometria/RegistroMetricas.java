@@ -0,0 +1,39 @@
+package org.biometria;
+
+/**
+ * Destino de las métricas del procesamiento. Las implementaciones deben ser seguras para varios hilos
+ * y no reservar memoria en cada llamada, porque se invocan desde las etapas de todas las imágenes.
+ *
+ * @see Metricas
+ */
+public interface RegistroMetricas {
+    /**
+     * Registro que descarta todas las métricas; con él la instrumentación queda desactivada.
+     */
+    RegistroMetricas NULO = new RegistroMetricas() {
+        @Override
+        public void registrarEtapa(EtapaProceso etapa, long nanos, long bytesReservados) {
+        }
+
+        @Override
+        public void incrementar(ContadorProceso contador, long cantidad) {
+        }
+    };
+
+    /**
+     * Registra una ejecución de una etapa.
+     *
+     * @param etapa           la etapa.
+     * @param nanos           la duración en nanosegundos.
+     * @param bytesReservados la memoria reservada por el hilo durante la etapa, o -1 si la JVM no la mide.
+     */
+    void registrarEtapa(EtapaProceso etapa, long nanos, long bytesReservados);
+
+    /**
+     * Suma una cantidad a un contador.
+     *
+     * @param contador el contador.
+     * @param cantidad la cantidad a sumar.
+     */
+    void incrementar(ContadorProceso contador, long cantidad);
+}
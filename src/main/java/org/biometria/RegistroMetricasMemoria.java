@@ -0,0 +1,119 @@
+package org.biometria;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de métricas en memoria: contadores acumulados y, por etapa, número de ejecuciones, tiempo y
+ * memoria totales y un histograma de latencias con cubetas de potencias de dos. Registrar una medida
+ * sólo actualiza contadores atómicos, sin reservar memoria.
+ */
+public class RegistroMetricasMemoria implements RegistroMetricas {
+    // La cubeta i cuenta las duraciones en [2^(i-1), 2^i) nanosegundos; la 0, las de 0 ns
+    private static final int CUBETAS = 64;
+
+    private static final class MetricasEtapa {
+        final LongAdder ejecuciones = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLongArray histograma = new AtomicLongArray(CUBETAS);
+    }
+
+    private final Map<EtapaProceso, MetricasEtapa> etapas = new EnumMap<>(EtapaProceso.class);
+    private final Map<ContadorProceso, LongAdder> contadores = new EnumMap<>(ContadorProceso.class);
+
+    public RegistroMetricasMemoria() {
+        for (EtapaProceso etapa : EtapaProceso.values()) {
+            etapas.put(etapa, new MetricasEtapa());
+        }
+        for (ContadorProceso contador : ContadorProceso.values()) {
+            contadores.put(contador, new LongAdder());
+        }
+    }
+
+    @Override
+    public void registrarEtapa(EtapaProceso etapa, long nanos, long bytesReservados) {
+        MetricasEtapa metricas = etapas.get(etapa);
+        metricas.ejecuciones.increment();
+        metricas.nanos.add(nanos);
+        if (bytesReservados > 0) {
+            metricas.bytes.add(bytesReservados);
+        }
+        metricas.histograma.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    @Override
+    public void incrementar(ContadorProceso contador, long cantidad) {
+        contadores.get(contador).add(cantidad);
+    }
+
+    public long getContador(ContadorProceso contador) {
+        return contadores.get(contador).sum();
+    }
+
+    public long getEjecuciones(EtapaProceso etapa) {
+        return etapas.get(etapa).ejecuciones.sum();
+    }
+
+    public long getNanosTotales(EtapaProceso etapa) {
+        return etapas.get(etapa).nanos.sum();
+    }
+
+    public long getBytesReservados(EtapaProceso etapa) {
+        return etapas.get(etapa).bytes.sum();
+    }
+
+    /**
+     * Estima un percentil de la duración de una etapa a partir de su histograma.
+     *
+     * @param etapa     la etapa.
+     * @param percentil el percentil, entre 0 y 100.
+     * @return el límite superior de la cubeta que contiene el percentil, en nanosegundos, o 0 si la
+     * etapa no se ha ejecutado.
+     */
+    public long getLatenciaPercentil(EtapaProceso etapa, double percentil) {
+        AtomicLongArray histograma = etapas.get(etapa).histograma;
+        long total = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            total += histograma.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rango = Math.max(1, (long) Math.ceil(percentil / 100.0 * total));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += histograma.get(i);
+            if (acumulado >= rango) {
+                return i == 0 ? 0 : i == CUBETAS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Escribe un resumen de las etapas ejecutadas y de los contadores.
+     *
+     * @param salida la salida.
+     */
+    public void imprimir(PrintStream salida) {
+        salida.println("Etapa: ejecuciones, tiempo medio, p50, p99 (cota superior), memoria media reservada");
+        for (EtapaProceso etapa : EtapaProceso.values()) {
+            long ejecuciones = getEjecuciones(etapa);
+            if (ejecuciones == 0) {
+                continue;
+            }
+            salida.printf(Locale.ROOT, "  %s: %d, %.3f ms, %.3f ms, %.3f ms, %.1f KB%n", etapa, ejecuciones,
+                    getNanosTotales(etapa) / 1e6 / ejecuciones, getLatenciaPercentil(etapa, 50) / 1e6,
+                    getLatenciaPercentil(etapa, 99) / 1e6, getBytesReservados(etapa) / 1024.0 / ejecuciones);
+        }
+        salida.println("Contadores:");
+        for (ContadorProceso contador : ContadorProceso.values()) {
+            salida.printf(Locale.ROOT, "  %s: %d%n", contador, getContador(contador));
+        }
+    }
+}
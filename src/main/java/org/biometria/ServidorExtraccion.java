@@ -0,0 +1,332 @@
+package org.biometria;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Servidor HTTP local que mantiene la JVM en marcha entre extracciones, de modo que cada petición sólo
+ * paga el procesamiento de la imagen y no el arranque, la carga de AWT e ImageIO ni el calentamiento
+ * del JIT. Sólo escucha en la interfaz de loopback.
+ * <ul>
+ *     <li>{@code POST /extraer}: el cuerpo es la imagen, en cualquier formato que lea ImageIO, y la
+ *     respuesta son sus minucias en texto, con el mismo formato que la salida de {@code Main}. Si la
+ *     imagen no alcanza la calidad mínima de la extracción, se responde 422 con el motivo.</li>
+ *     <li>{@code POST /comparar?primera=<n>}: el cuerpo son dos imágenes seguidas, de las que la primera ocupa
+ *     {@code n} bytes. Se extraen las minucias de ambas y se comparan con {@link ComparadorMinucias}; la
+ *     respuesta es la puntuación, entre 0 y {@value ComparadorMinucias#PUNTUACION_MAXIMA}, en una línea.
+ *     Los errores de cada imagen se responden como en {@code /extraer}.</li>
+ *     <li>{@code GET /metricas}: las métricas por etapa, si se instaló un registro en memoria.</li>
+ * </ul>
+ * Cada petición se atiende en su propio hilo, virtual si la JVM los tiene, que sólo lee el cuerpo y
+ * escribe la respuesta. La decodificación, la extracción y la comparación, que son las partes que
+ * consumen CPU, se hacen en un pool fijo de hilos de plataforma: así el trabajo simultáneo queda acotado por el número
+ * de hilos y los búferes de trabajo de cada hilo ({@link PoolBuferes}, el adelgazador, el trazador y
+ * {@link ComparadorMinucias#porHilo()})
+ * se reutilizan de una petición a la siguiente, cosa que no ocurriría con un hilo virtual nuevo por
+ * petición. Un semáforo limita además las peticiones admitidas a la vez; las que no caben se
+ * rechazan con 503 en lugar de acumularse en la cola.
+ * <p>
+ * Los cuerpos de las peticiones admitidas se guardan enteros en memoria mientras esperan su turno,
+ * así que también se limitan los bytes en vuelo: {@value #MEGAS_EN_VUELO_POR_HILO} MB por hilo de
+ * extracción, y al menos el tamaño máximo de una imagen. Una petición reserva su {@code Content-Length}
+ * antes de leer el cuerpo, y se rechaza con 413 sin leerlo si supera el máximo o con 503 si no cabe;
+ * las que no lo indican reservan el máximo y devuelven lo que no usan al terminar de leer.
+ */
+public class ServidorExtraccion implements AutoCloseable {
+    private final static Logger LOGGER = Logger.getLogger(ServidorExtraccion.class.getName());
+
+    public static final int PUERTO_POR_DEFECTO = 8420;
+
+    // Tamaño máximo del cuerpo de una petición
+    private static final int MAX_BYTES_IMAGEN = 64 << 20;
+
+    // Peticiones admitidas a la vez por cada hilo de extracción
+    private static final int PETICIONES_POR_HILO = 4;
+
+    // Megas de cuerpos de petición en memoria a la vez por cada hilo de extracción
+    private static final int MEGAS_EN_VUELO_POR_HILO = 32;
+
+    /**
+     * Extrae las minucias de una imagen recibida, todavía sin decodificar, de modo que una caché puede
+     * indexarla por su contenido y ahorrarse la decodificación.
+     */
+    @FunctionalInterface
+    public interface Extractor {
+        List<Minutiae> extraer(byte[] imagen) throws IOException;
+    }
+
+    private final HttpServer servidor;
+    private final ExecutorService hilosPeticiones;
+    private final ExecutorService hilosExtraccion;
+    private final Semaphore admision;
+    // Bytes en vuelo, en kilobytes para que el total quepa en los permisos de un semáforo
+    private final Semaphore kilobytesAdmitidos;
+    private final Extractor extractor;
+    private final RegistroMetricasMemoria metricas;
+
+    /**
+     * Crea el servidor y empieza a aceptar peticiones.
+     *
+     * @param puerto    el puerto de loopback en el que escuchar, o 0 para que lo elija el sistema.
+     * @param hilos     hilos de extracción; es el número máximo de imágenes que se procesan a la vez.
+     * @param extractor la extracción que se aplica a cada imagen.
+     * @param metricas  el registro que se publica en {@code /metricas}, o null para no publicarlo.
+     * @throws IOException si no se puede abrir el puerto.
+     * @throws IllegalArgumentException si el número de hilos no es positivo.
+     */
+    public ServidorExtraccion(int puerto, int hilos, Extractor extractor, RegistroMetricasMemoria metricas) throws IOException {
+        if (hilos <= 0) {
+            throw new IllegalArgumentException("El número de hilos debe ser positivo.");
+        }
+        this.extractor = extractor;
+        this.metricas = metricas;
+        this.admision = new Semaphore(hilos * PETICIONES_POR_HILO);
+        long bytesEnVuelo = Math.max(MAX_BYTES_IMAGEN, ((long) hilos * MEGAS_EN_VUELO_POR_HILO) << 20);
+        this.kilobytesAdmitidos = new Semaphore((int) Math.min(Integer.MAX_VALUE, bytesEnVuelo >> 10));
+        AtomicInteger contador = new AtomicInteger();
+        this.hilosExtraccion = Executors.newFixedThreadPool(hilos, r -> {
+            Thread hilo = new Thread(r, "extraccion-" + contador.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.hilosPeticiones = hilosPorPeticion();
+        // ImageIO guarda por defecto en archivos temporales los flujos que lee; aquí todo está en memoria
+        ImageIO.setUseCache(false);
+
+        this.servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+        servidor.setExecutor(hilosPeticiones);
+        servidor.createContext("/extraer", this::atenderExtraccion);
+        servidor.createContext("/comparar", this::atenderComparacion);
+        servidor.createContext("/metricas", this::atenderMetricas);
+        servidor.start();
+        LOGGER.info("Servidor de extracción escuchando en " + getDireccion() + " con " + hilos + " hilos");
+    }
+
+    /**
+     * Un hilo virtual por petición si la JVM los tiene (Java 21 o posterior); si no, un pool de hilos de
+     * plataforma que crece según la demanda.
+     */
+    private static ExecutorService hilosPorPeticion() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger contador = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread hilo = new Thread(r, "peticion-" + contador.incrementAndGet());
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+    }
+
+    public InetSocketAddress getDireccion() {
+        return servidor.getAddress();
+    }
+
+    private interface Procesamiento {
+        void procesar(HttpExchange intercambio, byte[] cuerpo) throws IOException, InterruptedException;
+    }
+
+    // Admite la petición, lee su cuerpo dentro del límite de bytes en vuelo y se lo pasa al procesamiento
+    private void atenderConCuerpo(HttpExchange intercambio, String uso, Procesamiento procesamiento) throws IOException {
+        try (intercambio) {
+            if (!"POST".equals(intercambio.getRequestMethod())) {
+                responder(intercambio, 405, "Use POST con " + uso + " en el cuerpo.\n");
+                return;
+            }
+            long longitud = longitudDeclarada(intercambio);
+            if (longitud > MAX_BYTES_IMAGEN) {
+                responder(intercambio, 413, "La petición supera los " + (MAX_BYTES_IMAGEN >> 20) + " MB.\n");
+                return;
+            }
+            int reserva = kilobytes(longitud < 0 ? MAX_BYTES_IMAGEN : longitud);
+            if (!admision.tryAcquire()) {
+                responder(intercambio, 503, "Servidor saturado, inténtelo más tarde.\n");
+                return;
+            }
+            if (!kilobytesAdmitidos.tryAcquire(reserva)) {
+                admision.release();
+                responder(intercambio, 503, "Servidor saturado, inténtelo más tarde.\n");
+                return;
+            }
+            try {
+                byte[] cuerpo = leerCuerpo(intercambio.getRequestBody(), longitud);
+                if (cuerpo == null) {
+                    responder(intercambio, 413, "La petición supera los " + (MAX_BYTES_IMAGEN >> 20) + " MB.\n");
+                    return;
+                }
+                // Sin Content-Length se reservó el máximo: se devuelve lo que no ocupa el cuerpo
+                int sobrante = reserva - kilobytes(cuerpo.length);
+                kilobytesAdmitidos.release(sobrante);
+                reserva -= sobrante;
+                procesamiento.procesar(intercambio, cuerpo);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responder(intercambio, 503, "Servidor detenido.\n");
+            } finally {
+                kilobytesAdmitidos.release(reserva);
+                admision.release();
+            }
+        }
+    }
+
+    private void atenderExtraccion(HttpExchange intercambio) throws IOException {
+        atenderConCuerpo(intercambio, "la imagen", this::extraer);
+    }
+
+    private void extraer(HttpExchange intercambio, byte[] cuerpo) throws IOException, InterruptedException {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        Future<List<Minutiae>> resultado = hilosExtraccion.submit(() -> extractor.extraer(cuerpo));
+        List<Minutiae> minutiaeList;
+        try {
+            minutiaeList = resultado.get();
+        } catch (ExecutionException e) {
+            responderError(intercambio, e.getCause());
+            return;
+        }
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        try (PrintStream texto = new PrintStream(salida, false, StandardCharsets.UTF_8)) {
+            MinutiaeDetectionUtils.imprimirMinucias(minutiaeList, texto);
+        }
+        responder(intercambio, 200, salida.toByteArray());
+        Metricas.registrar(EtapaProceso.PETICION, inicio, bytes);
+    }
+
+    private void atenderComparacion(HttpExchange intercambio) throws IOException {
+        atenderConCuerpo(intercambio, "las dos imágenes", this::comparar);
+    }
+
+    private void comparar(HttpExchange intercambio, byte[] cuerpo) throws IOException, InterruptedException {
+        int primera = longitudPrimera(intercambio.getRequestURI().getRawQuery());
+        if (primera <= 0 || primera >= cuerpo.length) {
+            responder(intercambio, 400, "Indique en primera=<n> los bytes de la primera imagen, que van antes "
+                    + "de la segunda en el cuerpo.\n");
+            return;
+        }
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        Future<Integer> resultado = hilosExtraccion.submit(() -> {
+            List<Minutiae> minuciasPrimera = extractor.extraer(Arrays.copyOfRange(cuerpo, 0, primera));
+            List<Minutiae> minuciasSegunda = extractor.extraer(Arrays.copyOfRange(cuerpo, primera, cuerpo.length));
+            return ComparadorMinucias.porHilo().comparar(minuciasPrimera, minuciasSegunda);
+        });
+        int puntuacion;
+        try {
+            puntuacion = resultado.get();
+        } catch (ExecutionException e) {
+            responderError(intercambio, e.getCause());
+            return;
+        }
+        responder(intercambio, 200, puntuacion + "\n");
+        Metricas.registrar(EtapaProceso.PETICION, inicio, bytes);
+    }
+
+    // Valor del parámetro primera de la consulta, o -1 si falta o no es un número
+    private static int longitudPrimera(String consulta) {
+        if (consulta == null) {
+            return -1;
+        }
+        for (String parametro : consulta.split("&")) {
+            if (parametro.startsWith("primera=")) {
+                try {
+                    return Integer.parseInt(parametro.substring("primera=".length()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void responderError(HttpExchange intercambio, Throwable causa) throws IOException {
+        if (causa instanceof CalidadInsuficienteException) {
+            responder(intercambio, 422, "Imagen rechazada: " + causa.getMessage() + "\n");
+        } else if (causa instanceof IllegalArgumentException || causa instanceof IOException) {
+            responder(intercambio, 400, "No se pudo procesar la imagen: " + causa.getMessage() + "\n");
+        } else {
+            LOGGER.severe("Error al extraer las minucias: " + causa);
+            responder(intercambio, 500, "Error al extraer las minucias.\n");
+        }
+    }
+
+    private void atenderMetricas(HttpExchange intercambio) throws IOException {
+        try (intercambio) {
+            if (metricas == null) {
+                responder(intercambio, 404, "Métricas no activadas; arranque el servidor con -metricas.\n");
+                return;
+            }
+            ByteArrayOutputStream salida = new ByteArrayOutputStream();
+            try (PrintStream texto = new PrintStream(salida, false, StandardCharsets.UTF_8)) {
+                metricas.imprimir(texto);
+            }
+            responder(intercambio, 200, salida.toByteArray());
+        }
+    }
+
+    // Content-Length de la petición, o -1 si no lo indica; HttpServer ya ha rechazado los que no son válidos
+    private static long longitudDeclarada(HttpExchange intercambio) {
+        String cabecera = intercambio.getRequestHeaders().getFirst("Content-Length");
+        return cabecera == null ? -1 : Long.parseLong(cabecera.trim());
+    }
+
+    // Lee el cuerpo entero, o devuelve null si supera el tamaño máximo
+    private static byte[] leerCuerpo(InputStream cuerpo, long longitud) throws IOException {
+        if (longitud >= 0) {
+            return cuerpo.readNBytes((int) longitud);
+        }
+        byte[] datos = cuerpo.readNBytes(MAX_BYTES_IMAGEN + 1);
+        return datos.length > MAX_BYTES_IMAGEN ? null : datos;
+    }
+
+    private static int kilobytes(long bytes) {
+        return (int) ((bytes + 1023) >> 10);
+    }
+
+    private static void responder(HttpExchange intercambio, int estado, String texto) throws IOException {
+        responder(intercambio, estado, texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void responder(HttpExchange intercambio, int estado, byte[] cuerpo) throws IOException {
+        intercambio.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        intercambio.sendResponseHeaders(estado, cuerpo.length == 0 ? -1 : cuerpo.length);
+        try (OutputStream salida = intercambio.getResponseBody()) {
+            salida.write(cuerpo);
+        }
+    }
+
+    /**
+     * Deja de aceptar peticiones, espera como mucho un segundo a las que están en curso y libera los hilos.
+     */
+    @Override
+    public void close() {
+        servidor.stop(1);
+        hilosPeticiones.shutdown();
+        hilosExtraccion.shutdown();
+        try {
+            hilosExtraccion.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
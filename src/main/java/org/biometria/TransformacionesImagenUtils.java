@@ -1,8 +1,6 @@
 package org.biometria;
 
-import java.awt.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class TransformacionesImagenUtils {
     final static int[][] nbrs = {{0, -1}, {1, -1}, {1, 0}, {1, 1}, {0, 1},
@@ -24,175 +22,216 @@ public class TransformacionesImagenUtils {
     final static int[][][] nbrGroups = {{{0, 2, 4}, {2, 4, 6}}, {{0, 2, 6},
             {0, 4, 6}}};
 
-    private static FingerPrintImage ruidoBinario1(FingerPrintImage imagenByN) {
-        int width = imagenByN.getWidth();
-        int height = imagenByN.getHeight();
-        FingerPrintImage imagenSinRuido = new FingerPrintImage(width, height);
-
-        for (int i = 1; i < width - 1; i++) { //Empezamos en 1 hasta width -1 para evitar los bordes
-            for (int j = 1; j < height - 1; j++) {
-                char b = imagenByN.getPixel(i, j - 1);
-                char d = imagenByN.getPixel(i - 1, j);
-                char e = imagenByN.getPixel(i + 1, j);
-                char g = imagenByN.getPixel(i, j + 1);
-                char p = imagenByN.getPixel(i, j);
-                char p_nuevo = (char) (p | b & g & (d | e) | d & e & (b | g));
-                //Insertamos pixel en la nueva imagen
+    /**
+     * Aplica el primer filtro de ruido a una fila empaquetada, 64 píxeles por palabra.
+     * Con b/g los vecinos norte/sur y d/e los vecinos oeste/este: p | b & g & (d | e) | d & e & (b | g).
+     *
+     * @param entrada búfer de palabras de entrada
+     * @param arriba  desplazamiento de la fila anterior
+     * @param centro  desplazamiento de la fila a filtrar
+     * @param abajo   desplazamiento de la fila siguiente
+     * @param salida  búfer de palabras de salida
+     * @param destino desplazamiento de la fila de salida
+     * @param mascara máscara de columnas interiores; sus bits a 0 se escriben como negro
+     */
+    static void ruidoBinario1Fila(long[] entrada, int arriba, int centro, int abajo, long[] salida, int destino, long[] mascara) {
+        int palabras = mascara.length;
+        for (int k = 0; k < palabras; k++) {
+            long b = entrada[arriba + k];
+            long d = oeste(entrada, centro, k);
+            long e = este(entrada, centro, k, palabras);
+            long g = entrada[abajo + k];
+            long p = entrada[centro + k];
+            salida[destino + k] = (p | b & g & (d | e) | d & e & (b | g)) & mascara[k];
+        }
+    }
 
-                imagenSinRuido.setPixel(i, j, p_nuevo);
-            }
+    /**
+     * Aplica el segundo filtro de ruido a una fila empaquetada, 64 píxeles por palabra.
+     * Con a b c / d p e / f g h la vecindad 3x3: p & ((a | b | d) & (e | g | h) | (b | c | e) & (d | f | g)).
+     *
+     * @param entrada búfer de palabras de entrada
+     * @param arriba  desplazamiento de la fila anterior
+     * @param centro  desplazamiento de la fila a filtrar
+     * @param abajo   desplazamiento de la fila siguiente
+     * @param salida  búfer de palabras de salida
+     * @param destino desplazamiento de la fila de salida
+     * @param mascara máscara de columnas interiores; sus bits a 0 se escriben como negro
+     */
+    static void ruidoBinario2Fila(long[] entrada, int arriba, int centro, int abajo, long[] salida, int destino, long[] mascara) {
+        int palabras = mascara.length;
+        for (int k = 0; k < palabras; k++) {
+            long a = oeste(entrada, arriba, k);
+            long b = entrada[arriba + k];
+            long c = este(entrada, arriba, k, palabras);
+            long d = oeste(entrada, centro, k);
+            long e = este(entrada, centro, k, palabras);
+            long f = oeste(entrada, abajo, k);
+            long g = entrada[abajo + k];
+            long h = este(entrada, abajo, k, palabras);
+            long p = entrada[centro + k];
+            salida[destino + k] = (p & ((a | b | d) & (e | g | h) | (b | c | e) & (d | f | g))) & mascara[k];
         }
-        return imagenSinRuido;
     }
 
-    private static FingerPrintImage ruidoBinario2(FingerPrintImage imagenByN) {
+    // Palabra k de la fila desplazada de forma que cada bit x contiene el píxel x - 1
+    private static long oeste(long[] fila, int inicio, int k) {
+        long palabra = fila[inicio + k] << 1;
+        return k > 0 ? palabra | (fila[inicio + k - 1] >>> 63) : palabra;
+    }
+
+    // Palabra k de la fila desplazada de forma que cada bit x contiene el píxel x + 1
+    private static long este(long[] fila, int inicio, int k, int palabras) {
+        long palabra = fila[inicio + k] >>> 1;
+        return k + 1 < palabras ? palabra | (fila[inicio + k + 1] << 63) : palabra;
+    }
+
+    /**
+     * Elimina el ruido de una imagen binaria empaquetada aplicando los dos filtros de ruido en una sola
+     * pasada (ver {@link FiltroRuidoFusionado}). Los píxeles del borde de la imagen resultante quedan en negro.
+     *
+     * @param imagenByN la imagen binaria empaquetada.
+     * @return una nueva imagen empaquetada sin ruido.
+     */
+    public static BinaryFingerPrintImage aplicarFiltroRuidoBinario(BinaryFingerPrintImage imagenByN) {
         int width = imagenByN.getWidth();
         int height = imagenByN.getHeight();
-        FingerPrintImage imagenSinRuido = new FingerPrintImage(width, height);
-
-        for (int i = 1; i < width - 1; i++) { //Empezamos en 1 hasta width -1 para evitar los bordes
-            for (int j = 1; j < height - 1; j++) {
-                char a = imagenByN.getPixel(i - 1, j - 1);
-                char b = imagenByN.getPixel(i, j - 1);
-                char c = imagenByN.getPixel(i + 1, j - 1);
-                char d = imagenByN.getPixel(i - 1, j);
-                char e = imagenByN.getPixel(i + 1, j);
-                char f = imagenByN.getPixel(i - 1, j + 1);
-                char g = imagenByN.getPixel(i, j + 1);
-                char h = imagenByN.getPixel(i + 1, j + 1);
-                char p = imagenByN.getPixel(i, j);
-                char p_nuevo = (char) (p & ((a | b | d) & (e | g | h) | (b | c | e) & (d | f | g)));
-                //Insertamos pixel en la nueva imagen
-                imagenSinRuido.setPixel(i, j, p_nuevo);
-            }
+        int palabras = imagenByN.getWordsPerRow();
+        BinaryFingerPrintImage imagenSinRuido = new BinaryFingerPrintImage(width, height);
+        long[] salida = imagenSinRuido.getWords();
+        FiltroRuidoFusionado filtro = new FiltroRuidoFusionado(width, height,
+                (y, fila) -> System.arraycopy(fila, 0, salida, imagenSinRuido.getRowOffset(y), palabras));
+        long[] ventana = filtro.getEntrada();
+        long[] entrada = imagenByN.getWords();
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(entrada, imagenByN.getRowOffset(y), ventana, filtro.ranura(y), palabras);
+            filtro.filaLista(y);
         }
         return imagenSinRuido;
     }
 
+    /**
+     * Elimina el ruido de una imagen binarizada. La imagen se empaqueta a nivel de bit para
+     * evaluar los filtros sobre 64 píxeles a la vez.
+     *
+     * @param imagenByN la imagen en blanco y negro.
+     * @return una nueva imagen sin ruido.
+     */
     public static FingerPrintImage aplicarFiltroRuidoBinario(FingerPrintImage imagenByN) {
-        FingerPrintImage imagenSinRuido = ruidoBinario1(imagenByN);
-        imagenSinRuido = ruidoBinario2(imagenSinRuido);
-        return imagenSinRuido;
+        return aplicarFiltroRuidoBinario(imagenByN, new FingerPrintImage(imagenByN.getWidth(), imagenByN.getHeight()));
     }
 
     /**
-     * Aplica el algoritmo de adelgazamiento de Zhang-Suen a una imagen binaria.
+     * Elimina el ruido de una imagen binarizada y escribe el resultado en la imagen de destino, que
+     * puede ser la propia entrada. Cada fila se empaqueta a nivel de bit al leerla y los dos filtros se
+     * aplican en una sola pasada con ventanas de tres filas (ver {@link FiltroRuidoFusionado}), así que
+     * no se reserva memoria proporcional a la imagen.
      *
-     * @param imagenByN La imagen binaria de entrada.
-     * @return La imagen adelgazada.
+     * @param imagenByN la imagen en blanco y negro.
+     * @param destino   la imagen donde se escribe el resultado, del mismo tamaño.
+     * @return la imagen de destino, sin ruido.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
      */
-    public static FingerPrintImage adelgazamientoZhangSuen(FingerPrintImage imagenByN) {
+    public static FingerPrintImage aplicarFiltroRuidoBinario(FingerPrintImage imagenByN, FingerPrintImage destino) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
         int width = imagenByN.getWidth();
         int height = imagenByN.getHeight();
-        char[][] grid = new char[height][width];
-
-        // Convertir la imagen a una matriz de caracteres, donde '#' representa negro y ' ' blanco
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                grid[y][x] = imagenByN.getPixel(x, y) == FingerPrintImage.NEGRO ? '#' : ' ';  // Asumimos que 0 es negro
-            }
+        if (destino.getWidth() != width || destino.getHeight() != height) {
+            throw new IllegalArgumentException("Las imágenes deben tener el mismo tamaño.");
         }
-
-        boolean firstStep = false;
-        boolean hasChanged;
-
-        do {
-            hasChanged = false;
-            firstStep = !firstStep;
-
-            List<Point> toWhite = new ArrayList<Point>();
-
-            for (int r = 1; r < height - 1; r++) {
-                for (int c = 1; c < width - 1; c++) {
-                    //Pixel negro y tiene 8 vecinos
-                    if (grid[r][c] != '#')
-                        continue;
-                    //El numero de vecinos negro esta entre 2 y 6
-                    int nn = numNeighbors(grid, r, c);
-                    if (nn < 2 || nn > 6)
-                        continue;
-
-                    if (numTransitions(grid, r, c) != 1)
-                        continue;
-
-                    if (!atLeastOneIsWhite(grid, r, c, firstStep ? FingerPrintImage.NEGRO : FingerPrintImage.BLANCO))
-                        continue;
-
-                    toWhite.add(new Point(c, r));
-                    hasChanged = true;
+        byte[] pixeles = imagenByN.getPixels();
+        byte[] salida = destino.getPixels();
+        // Al escribir la fila y ya se han leído como mucho las filas y + 1 e y + 2, así que la entrada y
+        // el destino pueden compartir búfer
+        FiltroRuidoFusionado filtro = new FiltroRuidoFusionado(width, height, (y, fila) -> {
+            int inicioFila = destino.getRowOffset(y);
+            long palabra = 0;
+            for (int x = 0; x < width; x++) {
+                if ((x & 63) == 0) {
+                    palabra = fila[x >>> 6];
                 }
+                salida[inicioFila + x] = (byte) (palabra & 1L);
+                palabra >>>= 1;
             }
-
-            for (Point p : toWhite)
-                grid[p.y][p.x] = ' ';
-            toWhite.clear();
-
-        } while (firstStep || hasChanged);
-
-        // Convertir la matriz de caracteres de vuelta a FingerPrintImage
-        FingerPrintImage imagenResultante = new FingerPrintImage(width, height);
+        });
+        long[] ventana = filtro.getEntrada();
         for (int y = 0; y < height; y++) {
+            int inicioFila = imagenByN.getRowOffset(y);
+            int ranura = filtro.ranura(y);
+            long palabra = 0;
             for (int x = 0; x < width; x++) {
-                imagenResultante.setPixel(x, y, grid[y][x] == '#' ? (char) FingerPrintImage.BLANCO : (char) FingerPrintImage.NEGRO);  // Set a negro o blanco
+                if (pixeles[inicioFila + x] != FingerPrintImage.NEGRO) {
+                    palabra |= 1L << x;
+                }
+                if ((x & 63) == 63 || x == width - 1) {
+                    ventana[ranura + (x >>> 6)] = palabra;
+                    palabra = 0;
+                }
             }
+            filtro.filaLista(y);
         }
-        return imagenResultante;
+        Metricas.incrementar(ContadorProceso.PIXELES_RUIDO_CORREGIDOS, filtro.getCorregidos());
+        Metricas.registrar(EtapaProceso.FILTRO_RUIDO, inicio, bytes);
+        return destino;
     }
 
     /**
-     * Calcula el numero de vecinos negros que tiene el pixel
+     * Aplica el algoritmo de adelgazamiento de Zhang-Suen a una imagen binaria.
      *
-     * @param grid la matriz
-     * @param r    row del pixel a evaluar
-     * @param c    column del pixel a evaluar
-     * @return el numero de pixeles negros vecinos
+     * @param imagenByN La imagen binaria de entrada.
+     * @return La imagen adelgazada.
      */
-    private static int numNeighbors(char[][] grid, int r, int c) {
-        int count = 0;
-        for (int i = 0; i < nbrs.length - 1; i++)
-            if (grid[r + nbrs[i][1]][c + nbrs[i][0]] == '#')
-                count++;
-        return count;
+    public static FingerPrintImage adelgazamientoZhangSuen(FingerPrintImage imagenByN) {
+        return adelgazamientoZhangSuen(imagenByN, null);
     }
 
     /**
-     * Cuenta el numero de transicciones que hay entre los vecinos, de blanco ' ' a negro #
+     * Aplica el algoritmo de adelgazamiento de Zhang-Suen repartiendo cada subiteración en bandas de
+     * filas sobre el pool indicado. El resultado es idéntico al del adelgazamiento secuencial.
      *
-     * @param grid matriz en ' ' y #
-     * @param r    row del pixel central
-     * @param c    column del pixel central
-     * @return el numero
+     * @param imagenByN La imagen binaria de entrada.
+     * @param pool      El pool en el que evaluar las bandas, o null para adelgazar en el hilo actual.
+     * @return La imagen adelgazada.
      */
-    private static int numTransitions(char[][] grid, int r, int c) {
-        int count = 0;
-        for (int i = 0; i < nbrs.length - 1; i++)
-            if (grid[r + nbrs[i][1]][c + nbrs[i][0]] == ' ') {
-                if (grid[r + nbrs[i + 1][1]][c + nbrs[i + 1][0]] == '#')
-                    count++;
-            }
-        return count;
+    public static FingerPrintImage adelgazamientoZhangSuen(FingerPrintImage imagenByN, ForkJoinPool pool) {
+        return adelgazamientoZhangSuen(imagenByN, new FingerPrintImage(imagenByN.getWidth(), imagenByN.getHeight()), pool);
     }
 
     /**
-     * Comprueba que al menos un pixel de los grupos seleccionados sea blanco
+     * Aplica el algoritmo de adelgazamiento de Zhang-Suen y escribe el esqueleto en la imagen de
+     * destino, que puede ser la propia entrada.
      *
-     * @param grid el vector
-     * @param r    fila del pixel central
-     * @param c    columna del pixel central
-     * @param step el paso en el que nos encontramos, permite seleccionar entre los dos conjuntos que a su vez están divididos en subconjuntos
-     * @return true si hay al menos un pixel blanco
+     * @param imagenByN        La imagen binaria de entrada.
+     * @param imagenResultante La imagen donde se escribe el esqueleto, del mismo tamaño.
+     * @param pool             El pool en el que evaluar las bandas, o null para adelgazar en el hilo actual.
+     * @return La imagen de destino, adelgazada.
+     * @throws IllegalArgumentException si las imágenes no tienen el mismo tamaño.
      */
-    private static boolean atLeastOneIsWhite(char[][] grid, int r, int c, int step) {
-        int count = 0;
-        int[][] group = nbrGroups[step];
-        for (int i = 0; i < 2; i++)
-            for (int j = 0; j < group[i].length; j++) {
-                int[] nbr = nbrs[group[i][j]];
-                if (grid[r + nbr[1]][c + nbr[0]] == ' ') {
-                    count++;
-                    break;
-                }
+    public static FingerPrintImage adelgazamientoZhangSuen(FingerPrintImage imagenByN, FingerPrintImage imagenResultante,
+                                                           ForkJoinPool pool) {
+        long inicio = Metricas.inicio();
+        long bytes = Metricas.bytesReservados();
+        int width = imagenByN.getWidth();
+        int height = imagenByN.getHeight();
+        if (imagenResultante.getWidth() != width || imagenResultante.getHeight() != height) {
+            throw new IllegalArgumentException("Las imágenes deben tener el mismo tamaño.");
+        }
+        byte[] entrada = imagenByN.getPixels();
+
+        // La rejilla se construye directamente sobre la imagen resultante: los píxeles negros de la
+        // entrada son el primer plano (1) y, tras adelgazar, el esqueleto queda en blanco (1)
+        byte[] grid = imagenResultante.getPixels();
+        for (int y = 0; y < height; y++) {
+            int fila = imagenByN.getRowOffset(y);
+            int filaGrid = imagenResultante.getRowOffset(y);
+            for (int x = 0; x < width; x++) {
+                grid[filaGrid + x] = entrada[fila + x] == FingerPrintImage.NEGRO ? (byte) 1 : (byte) 0;  // Asumimos que 0 es negro
             }
-        return count > 1;
+        }
+
+        AdelgazadorZhangSuen.porHilo().adelgazar(grid, width, height, pool);
+        Metricas.registrar(EtapaProceso.ADELGAZAMIENTO, inicio, bytes);
+        return imagenResultante;
     }
 }
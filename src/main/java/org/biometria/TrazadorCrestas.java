@@ -0,0 +1,179 @@
+package org.biometria;
+
+import java.util.Arrays;
+
+/**
+ * Recorre el esqueleto desde una minucia para estimar la dirección de sus crestas.
+ * <p>
+ * Es la versión iterativa de la exploración en profundidad original: desde el punto de partida se
+ * avanza al primer vecino blanco no visitado (en el orden este, sureste, sur, suroeste, oeste,
+ * noroeste, norte y noreste) hasta una profundidad máxima, retrocediendo cuando no quedan vecinos.
+ * El camino acumula todos los píxeles visitados en el orden en que se alcanzan y, en cuanto alguna
+ * rama vuelve con un camino de la longitud requerida, la exploración termina. El ángulo sólo depende
+ * del primer y el último punto, así que no se guarda el camino completo.
+ * <p>
+ * Los píxeles visitados se marcan con la generación de la minucia actual en lugar de guardarse en un
+ * conjunto, y la pila de la exploración es de tamaño fijo, así que trazar no reserva memoria. Como la
+ * exploración nunca se aleja de la minucia más que la profundidad máxima, las marcas se guardan en una
+ * ventana centrada en ella y no en un array del tamaño de la imagen. Cada
+ * instancia reutiliza su estado, por lo que no es segura para varios hilos; {@link #porHilo()}
+ * devuelve una instancia propia del hilo actual.
+ */
+final class TrazadorCrestas {
+    // Direcciones en el plano (x, y), en el orden en que se exploran
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    private static final ThreadLocal<TrazadorCrestas> POR_HILO = ThreadLocal.withInitial(TrazadorCrestas::new);
+
+    // Marca con la generación actual los píxeles visitados desde la minucia en curso, en una ventana
+    // cuadrada de lado 2 * profundidad + 1 centrada en ella
+    private int[] marcas = new int[0];
+    private int generacion;
+    private int lado;
+    private int origenX;
+    private int origenY;
+
+    // Pila de la exploración: posición de cada nivel y siguiente dirección a probar
+    private int[] pilaX = new int[0];
+    private int[] pilaY = new int[0];
+    private int[] pilaDireccion = new int[0];
+
+    private byte[] pixeles;
+    private int stride;
+    private int width;
+    private int height;
+    private int profundidad;
+
+    // Resultado del último trazado
+    private int longitud;
+    private int inicioX;
+    private int inicioY;
+    private int finX;
+    private int finY;
+
+    static TrazadorCrestas porHilo() {
+        return POR_HILO.get();
+    }
+
+    /**
+     * Prepara el trazador para recorrer el esqueleto de la imagen.
+     *
+     * @param image       la imagen adelgazada.
+     * @param profundidad la profundidad máxima de la exploración, que es también la longitud de camino requerida.
+     */
+    void preparar(FingerPrintImage image, int profundidad) {
+        if (profundidad <= 0) {
+            throw new IllegalArgumentException("La profundidad debe ser positiva.");
+        }
+        this.pixeles = image.getPixels();
+        this.stride = image.getStride();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.profundidad = profundidad;
+        this.lado = 2 * profundidad + 1;
+        if (marcas.length < lado * lado) {
+            marcas = new int[lado * lado];
+            generacion = 0;
+        }
+        if (pilaX.length < profundidad) {
+            pilaX = new int[profundidad];
+            pilaY = new int[profundidad];
+            pilaDireccion = new int[profundidad];
+        }
+    }
+
+    /**
+     * Empieza una nueva minucia: los píxeles visitados por los trazados anteriores dejan de estarlo.
+     * Los trazados de una misma minucia comparten los visitados, como las ramas de una bifurcación.
+     *
+     * @param x la coordenada x de la minucia, desde la que empiezan sus trazados.
+     * @param y la coordenada y de la minucia.
+     */
+    void nuevaMinucia(int x, int y) {
+        if (++generacion == 0) {
+            Arrays.fill(marcas, 0);
+            generacion = 1;
+        }
+        origenX = x - profundidad;
+        origenY = y - profundidad;
+    }
+
+    /**
+     * Explora el esqueleto desde el punto indicado, sin volver a píxeles ya visitados en la minucia actual.
+     * El punto de partida debe ser el de la minucia actual.
+     *
+     * @param x la coordenada x del punto de partida.
+     * @param y la coordenada y del punto de partida.
+     * @return el número de puntos del camino recorrido.
+     */
+    int trazar(int x, int y) {
+        longitud = 0;
+        inicioX = x;
+        inicioY = y;
+        int nivel = 0;
+        visitar(x, y, nivel);
+
+        while (nivel >= 0) {
+            int cx = pilaX[nivel];
+            int cy = pilaY[nivel];
+            boolean avanzado = false;
+            while (pilaDireccion[nivel] < 8) {
+                int dir = pilaDireccion[nivel]++;
+                int nx = cx + DX[dir];
+                int ny = cy + DY[dir];
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height) {
+                    continue;
+                }
+                if (pixeles[ny * stride + nx] != FingerPrintImage.BLANCO || marcas[marca(nx, ny)] == generacion) {
+                    continue;
+                }
+                if (nivel + 1 < profundidad) {
+                    visitar(nx, ny, ++nivel);
+                    avanzado = true;
+                    break;
+                }
+                // El vecino queda por debajo de la profundidad máxima: se vuelve sin añadirlo
+                if (longitud >= profundidad) {
+                    return longitud;
+                }
+            }
+            if (!avanzado) {
+                // Sin más vecinos, se vuelve al nivel anterior, que se detiene si el camino ya es suficiente
+                if (--nivel >= 0 && longitud >= profundidad) {
+                    return longitud;
+                }
+            }
+        }
+        return longitud;
+    }
+
+    /**
+     * Calcula el ángulo, en grados, del segmento que une el primer y el último punto del último camino.
+     *
+     * @return el ángulo, o 0 si el camino tiene menos de dos puntos.
+     */
+    double anguloCamino() {
+        if (longitud < 2) {
+            return 0.0;
+        }
+        double dx = finX - inicioX;
+        double dy = finY - inicioY;
+        return Math.toDegrees(Math.atan2(dy, dx));
+    }
+
+    // Posición del píxel en la ventana de marcas
+    private int marca(int x, int y) {
+        return (y - origenY) * lado + x - origenX;
+    }
+
+    private void visitar(int x, int y, int nivel) {
+        marcas[marca(x, y)] = generacion;
+        longitud++;
+        finX = x;
+        finY = y;
+        pilaX[nivel] = x;
+        pilaY[nivel] = y;
+        pilaDireccion[nivel] = 0;
+    }
+}
@@ -0,0 +1,155 @@
+package org.biometria;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Compara el adelgazador, secuencial y por bandas, con una implementación directa del algoritmo de
+ * Zhang-Suen original, que vuelve a recorrer toda la rejilla en cada subiteración.
+ */
+class AdelgazadorZhangSuenTest {
+    // Anchos pequeños y medianos, y altos alrededor de los múltiplos del alto mínimo de una banda (32
+    // filas interiores), para que cambie el número de bandas y sus límites
+    private static final int[] ANCHOS = {3, 4, 17, 64, 101};
+    private static final int[] ALTOS = {3, 4, 33, 34, 35, 65, 66, 67, 97, 98, 130, 131, 163, 200};
+    private static final double[] DENSIDADES = {0.3, 0.6, 0.9};
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void crearPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void cerrarPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void coincideConElAlgoritmoOriginalEnRejillasAleatorias() {
+        Random aleatorio = new Random(3);
+        AdelgazadorZhangSuen adelgazador = new AdelgazadorZhangSuen();
+        for (int width : ANCHOS) {
+            for (int height : ALTOS) {
+                for (double densidad : DENSIDADES) {
+                    byte[] grid = new byte[width * height];
+                    for (int i = 0; i < grid.length; i++) {
+                        grid[i] = (byte) (aleatorio.nextDouble() < densidad ? 1 : 0);
+                    }
+                    comprobar(adelgazador, grid, width, height, width + "x" + height + " con densidad " + densidad);
+                }
+            }
+        }
+    }
+
+    @Test
+    void coincideConElAlgoritmoOriginalEnManchasGruesas() {
+        // Rectángulos y discos superpuestos, que necesitan muchas subiteraciones y cruzan los límites de las bandas
+        Random aleatorio = new Random(4);
+        AdelgazadorZhangSuen adelgazador = new AdelgazadorZhangSuen();
+        for (int caso = 0; caso < 12; caso++) {
+            int width = 40 + aleatorio.nextInt(120);
+            int height = 40 + aleatorio.nextInt(200);
+            byte[] grid = new byte[width * height];
+            for (int figura = 0; figura < 6; figura++) {
+                int cx = aleatorio.nextInt(width);
+                int cy = aleatorio.nextInt(height);
+                int radio = 3 + aleatorio.nextInt(30);
+                boolean disco = aleatorio.nextBoolean();
+                for (int y = Math.max(0, cy - radio); y < Math.min(height, cy + radio); y++) {
+                    for (int x = Math.max(0, cx - radio); x < Math.min(width, cx + radio); x++) {
+                        if (!disco || (x - cx) * (x - cx) + (y - cy) * (y - cy) < radio * radio) {
+                            grid[y * width + x] = 1;
+                        }
+                    }
+                }
+            }
+            comprobar(adelgazador, grid, width, height, "caso " + caso + ", " + width + "x" + height);
+        }
+    }
+
+    @Test
+    void coincideConElAlgoritmoOriginalConMasDe255Subiteraciones() {
+        // Un cuadrado lleno de 300 píxeles necesita más subiteraciones de las que caben en las marcas de un byte
+        int width = 304;
+        int height = 304;
+        byte[] grid = new byte[width * height];
+        for (int y = 2; y < height - 2; y++) {
+            for (int x = 2; x < width - 2; x++) {
+                grid[y * width + x] = 1;
+            }
+        }
+        comprobar(new AdelgazadorZhangSuen(), grid, width, height, "cuadrado lleno");
+    }
+
+    private static void comprobar(AdelgazadorZhangSuen adelgazador, byte[] grid, int width, int height, String caso) {
+        byte[] esperado = adelgazarOriginal(grid, width, height);
+
+        byte[] secuencial = grid.clone();
+        adelgazador.adelgazar(secuencial, width, height, null);
+        assertArrayEquals(esperado, secuencial, caso);
+
+        byte[] porBandas = grid.clone();
+        adelgazador.adelgazar(porBandas, width, height, pool);
+        assertArrayEquals(esperado, porBandas, caso + " por bandas");
+    }
+
+    // El algoritmo tal como se implementó originalmente: cada subiteración evalúa todos los píxeles interiores
+    // con el estado anterior y después borra los marcados; termina cuando un segundo paso no borra nada
+    private static byte[] adelgazarOriginal(byte[] original, int width, int height) {
+        byte[] grid = original.clone();
+        int[][] nbrs = TransformacionesImagenUtils.nbrs;
+        boolean firstStep = false;
+        boolean hasChanged;
+        do {
+            firstStep = !firstStep;
+            int[][] group = TransformacionesImagenUtils.nbrGroups[firstStep ? 0 : 1];
+            boolean[] toWhite = new boolean[grid.length];
+            hasChanged = false;
+            for (int r = 1; r < height - 1; r++) {
+                for (int c = 1; c < width - 1; c++) {
+                    if (grid[r * width + c] == 0) {
+                        continue;
+                    }
+                    int nn = 0;
+                    int transitions = 0;
+                    for (int i = 0; i < nbrs.length - 1; i++) {
+                        boolean actual = grid[(r + nbrs[i][1]) * width + c + nbrs[i][0]] != 0;
+                        boolean siguiente = grid[(r + nbrs[i + 1][1]) * width + c + nbrs[i + 1][0]] != 0;
+                        nn += actual ? 1 : 0;
+                        transitions += !actual && siguiente ? 1 : 0;
+                    }
+                    if (nn < 2 || nn > 6 || transitions != 1) {
+                        continue;
+                    }
+                    int gruposConBlanco = 0;
+                    for (int[] subgrupo : group) {
+                        for (int vecino : subgrupo) {
+                            if (grid[(r + nbrs[vecino][1]) * width + c + nbrs[vecino][0]] == 0) {
+                                gruposConBlanco++;
+                                break;
+                            }
+                        }
+                    }
+                    if (gruposConBlanco == 2) {
+                        toWhite[r * width + c] = true;
+                        hasChanged = true;
+                    }
+                }
+            }
+            for (int k = 0; k < grid.length; k++) {
+                if (toWhite[k]) {
+                    grid[k] = 0;
+                }
+            }
+        } while (firstStep || hasChanged);
+        return grid;
+    }
+}
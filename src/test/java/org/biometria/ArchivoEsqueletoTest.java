@@ -0,0 +1,159 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Comprueba que un esqueleto guardado se carga píxel a píxel igual y que los archivos dañados, truncados
+ * o con tramos imposibles se rechazan con una {@link IOException}.
+ */
+class ArchivoEsqueletoTest {
+    private static final int MAGIA = 0x45535131;
+
+    @TempDir
+    Path directorio;
+
+    @Test
+    void cargaLoMismoQueGuarda() throws IOException {
+        Random aleatorio = new Random(24);
+        // Anchos con tramos de uno y de varios bytes
+        int[] anchos = {1, 2, 127, 128, 129, 300, 20000};
+        double[] densidades = {0, 0.05, 0.5, 1};
+        Path archivo = directorio.resolve("esqueleto.esq");
+        for (int width : anchos) {
+            for (double densidad : densidades) {
+                FingerPrintImage esqueleto = aleatorio(width, 1 + aleatorio.nextInt(5), densidad, aleatorio);
+                ArchivoEsqueleto.guardar(esqueleto, archivo);
+                FingerPrintImage cargado = ArchivoEsqueleto.leer(archivo);
+                assertEquals(esqueleto.getWidth(), cargado.getWidth());
+                assertEquals(esqueleto.getHeight(), cargado.getHeight());
+                assertArrayEquals(esqueleto.getPixels(), cargado.getPixels(), width + " con densidad " + densidad);
+            }
+        }
+    }
+
+    @Test
+    void guardaComoBlancosLosPixelesQueNoSonNegros() throws IOException {
+        FingerPrintImage esqueleto = new FingerPrintImage(4, 1);
+        byte[] pixeles = esqueleto.getPixels();
+        pixeles[0] = (byte) FingerPrintImage.BLANCO;
+        pixeles[1] = (byte) 200;
+        pixeles[2] = (byte) FingerPrintImage.NEGRO;
+        pixeles[3] = 7;
+        Path archivo = directorio.resolve("sub/dir/esqueleto.esq");
+        ArchivoEsqueleto.guardar(esqueleto, archivo);
+
+        byte b = (byte) FingerPrintImage.BLANCO;
+        byte n = (byte) FingerPrintImage.NEGRO;
+        assertArrayEquals(new byte[]{b, b, n, b}, ArchivoEsqueleto.leer(archivo).getPixels());
+    }
+
+    @Test
+    void leeUnArchivoEscritoAMano() throws IOException {
+        // Fila 0: 1 negro, 2 blancos; fila 1: 0 negros, 3 blancos
+        Path archivo = escribir(MAGIA, 1, 3, 2, comprimir(1, 2, 0, 3));
+        byte b = (byte) FingerPrintImage.BLANCO;
+        byte n = (byte) FingerPrintImage.NEGRO;
+        assertArrayEquals(new byte[]{n, b, b, b, b, b}, ArchivoEsqueleto.leer(archivo).getPixels());
+    }
+
+    @Test
+    void rechazaArchivosQueNoSonEsqueletos() throws IOException {
+        assertRechazado(escribir(0x504E4701, 1, 3, 2, comprimir(3, 3)), "no es un archivo de esqueleto");
+        Path corto = directorio.resolve("corto.esq");
+        Files.write(corto, new byte[]{0x45, 0x53, 0x51, 0x31, 0, 0, 0, 1});
+        assertRechazado(corto, "no es un archivo de esqueleto");
+    }
+
+    @Test
+    void rechazaOtraVersion() throws IOException {
+        assertRechazado(escribir(MAGIA, 2, 3, 2, comprimir(3, 3)), "versión");
+    }
+
+    @Test
+    void rechazaDimensionesNoValidas() throws IOException {
+        assertRechazado(escribir(MAGIA, 1, 0, 2, comprimir()), "dimensiones");
+        assertRechazado(escribir(MAGIA, 1, 3, -1, comprimir()), "dimensiones");
+        assertRechazado(escribir(MAGIA, 1, 65536, 65536, comprimir()), "dimensiones");
+    }
+
+    @Test
+    void rechazaDatosComprimidosDanados() throws IOException {
+        assertRechazado(escribir(MAGIA, 1, 3, 2, new byte[]{1, 2, 3, 4, 5}), "dañado");
+        byte[] comprimido = comprimir(1, 2, 0, 3);
+        assertRechazado(escribir(MAGIA, 1, 3, 2, Arrays.copyOf(comprimido, comprimido.length - 4)), "dañado");
+    }
+
+    @Test
+    void rechazaFilasIncompletas() throws IOException {
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir(1, 2)), "incompleto");
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir(1, 2, 0, 1)), "incompleto");
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir()), "incompleto");
+        // Longitud cuyo último byte indica que sigue otro
+        assertRechazado(escribir(MAGIA, 1, 3, 1, comprimir(0, 0x80)), "incompleto");
+    }
+
+    @Test
+    void rechazaTramosMasLargosQueLaFila() throws IOException {
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir(1, 3, 0, 3)), "tramo no válido en la fila 0");
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir(3, 0, 4)), "tramo no válido en la fila 1");
+        // Longitud de más de 32 bits
+        assertRechazado(escribir(MAGIA, 1, 3, 1, comprimir(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01)), "tramo no válido");
+    }
+
+    @Test
+    void rechazaDatosSobrantes() throws IOException {
+        assertRechazado(escribir(MAGIA, 1, 3, 2, comprimir(1, 2, 0, 3, 0)), "sobrantes");
+    }
+
+    private static FingerPrintImage aleatorio(int width, int height, double densidad, Random aleatorio) {
+        FingerPrintImage imagen = new FingerPrintImage(width, height);
+        byte[] pixeles = imagen.getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean blanco = aleatorio.nextDouble() < densidad;
+                pixeles[imagen.getRowOffset(y) + x] = (byte) (blanco ? FingerPrintImage.BLANCO : FingerPrintImage.NEGRO);
+            }
+        }
+        return imagen;
+    }
+
+    private static void assertRechazado(Path archivo, String motivo) {
+        IOException e = assertThrows(IOException.class, () -> ArchivoEsqueleto.leer(archivo));
+        assertTrue(e.getMessage().startsWith(archivo.toString()), e.getMessage());
+        assertTrue(e.getMessage().contains(motivo), e.getMessage());
+    }
+
+    private Path escribir(int magia, int version, int width, int height, byte[] tramos) throws IOException {
+        ByteBuffer contenido = ByteBuffer.allocate(16 + tramos.length);
+        contenido.putInt(magia).putInt(version).putInt(width).putInt(height).put(tramos);
+        Path archivo = Files.createTempFile(directorio, "esqueleto", ".esq");
+        Files.write(archivo, contenido.array());
+        return archivo;
+    }
+
+    // Comprime los bytes indicados, que son las longitudes de tramo ya codificadas
+    private static byte[] comprimir(int... bytes) throws IOException {
+        ByteArrayOutputStream comprimido = new ByteArrayOutputStream();
+        try (DeflaterOutputStream salida = new DeflaterOutputStream(comprimido)) {
+            for (int b : bytes) {
+                salida.write(b);
+            }
+        }
+        return comprimido.toByteArray();
+    }
+}
@@ -0,0 +1,228 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Comprueba que las extracciones guardadas en disco se recuperan igual desde otra caché, que un archivo
+ * dañado se trata como un fallo y que los parámetros de la extracción forman parte de la clave.
+ */
+class CacheExtraccionTest {
+    private static final long MAX_BYTES = 1 << 20;
+    private static final byte[] IMAGEN = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5};
+
+    @TempDir
+    Path directorio;
+
+    @Test
+    void recuperaDelDiscoLasMismasMinucias() {
+        List<Minutiae> originales = List.of(
+                new CorteMinutiae(10, 20, 45.5),
+                new CorteMinutiae(65535, 0, null),
+                new BifurcacionMinutiae(30, 40, new Double[]{-90.0, 12.25, 179.0}),
+                new BifurcacionMinutiae(50, 60, new Double[]{0.0, null, -0.5}));
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, false, 0, () -> originales);
+
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES, directorio);
+        List<Minutiae> recuperadas = cache.obtener(IMAGEN, false, 0, CacheExtraccionTest::noDebeExtraer);
+        assertEquals(1, cache.getAciertosDisco());
+        assertIguales(originales, recuperadas);
+        assertSame(recuperadas, cache.obtener(IMAGEN, false, 0, CacheExtraccionTest::noDebeExtraer));
+        assertEquals(1, cache.getAciertosMemoria());
+    }
+
+    @Test
+    void recuperaDelDiscoUnaExtraccionSinMinucias() {
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, true, 0, List::of);
+
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES, directorio);
+        assertEquals(List.of(), cache.obtener(IMAGEN, true, 0, CacheExtraccionTest::noDebeExtraer));
+        assertEquals(1, cache.getAciertosDisco());
+    }
+
+    @Test
+    void extraeDeNuevoSiElArchivoEstaTruncado() throws IOException {
+        List<Minutiae> originales = List.of(new BifurcacionMinutiae(1, 2, new Double[]{1.0, 2.0, 3.0}));
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, false, 0, () -> originales);
+        Path archivo = unicoArchivo();
+        byte[] contenido = Files.readAllBytes(archivo);
+        Files.write(archivo, Arrays.copyOf(contenido, contenido.length - 3));
+
+        assertExtraeDeNuevo(originales);
+    }
+
+    @Test
+    void extraeDeNuevoSiElArchivoNoEsDeLaCache() throws IOException {
+        List<Minutiae> originales = List.of(new CorteMinutiae(1, 2, 3.0));
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, false, 0, () -> originales);
+        Files.write(unicoArchivo(), new byte[]{'n', 'o', ' ', 'e', 's', ' ', 'u', 'n', 'a', ' ', 'c', 'a', 'c', 'h', 'e'});
+
+        assertExtraeDeNuevo(originales);
+    }
+
+    @Test
+    void extraeDeNuevoSiElArchivoTieneUnNumeroDeMinuciasImposible() throws IOException {
+        List<Minutiae> originales = List.of(new CorteMinutiae(1, 2, 3.0));
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, false, 0, () -> originales);
+        Path archivo = unicoArchivo();
+        byte[] contenido = Files.readAllBytes(archivo);
+        // El número de minucias va tras la marca y la versión
+        contenido[8] = (byte) 0x80;
+        Files.write(archivo, contenido);
+
+        assertExtraeDeNuevo(originales);
+    }
+
+    @Test
+    void extraeDeNuevoSiElArchivoIndicaMasMinuciasDeLasQueContiene() throws IOException {
+        List<Minutiae> originales = List.of(new CorteMinutiae(1, 2, 3.0));
+        new CacheExtraccion(MAX_BYTES, directorio).obtener(IMAGEN, false, 0, () -> originales);
+        Path archivo = unicoArchivo();
+        byte[] contenido = Files.readAllBytes(archivo);
+        contenido[8] = 0x10;
+        Files.write(archivo, contenido);
+
+        assertExtraeDeNuevo(originales);
+    }
+
+    @Test
+    void cuentaLosBytesDeCadaEntrada() {
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES);
+        List<Minutiae> minutiaeList = List.of(new CorteMinutiae(1, 2, 3.0),
+                new BifurcacionMinutiae(4, 5, new Double[]{6.0, 7.0, 8.0}));
+        cache.obtener(IMAGEN, false, 0, () -> minutiaeList);
+        assertEquals(160 + 2 * (2 * 4 + 1 + 3 * 8), cache.getBytes());
+
+        // Al superar el máximo se descartan las entradas menos usadas
+        CacheExtraccion pequena = new CacheExtraccion(400);
+        pequena.obtener(IMAGEN, false, 0, () -> minutiaeList);
+        pequena.obtener(IMAGEN, true, 0, () -> minutiaeList);
+        assertEquals(1, pequena.size());
+    }
+
+    @Test
+    void losParametrosFormanParteDeLaClave() {
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES, directorio);
+        AtomicInteger extracciones = new AtomicInteger();
+        Supplier<List<Minutiae>> extraccion = () -> {
+            extracciones.incrementAndGet();
+            return List.of();
+        };
+        cache.obtener(IMAGEN, false, 0, extraccion);
+        cache.obtener(IMAGEN, false, 0.3, extraccion);
+        cache.obtener(IMAGEN, true, 0.3, extraccion);
+        cache.obtener(Arrays.copyOf(IMAGEN, IMAGEN.length + 1), true, 0.3, extraccion);
+        assertEquals(4, extracciones.get());
+
+        cache.obtener(IMAGEN.clone(), false, 0.3, extraccion);
+        assertEquals(4, extracciones.get());
+        assertEquals(1, cache.getAciertosMemoria());
+    }
+
+    @Test
+    void unaImagenQueSeEstaExtrayendoSoloSeExtraeUnaVez() throws Exception {
+        int hilos = 8;
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES);
+        CountDownLatch llegada = new CountDownLatch(hilos);
+        AtomicInteger extracciones = new AtomicInteger();
+        List<Minutiae> originales = List.of(new CorteMinutiae(7, 8, 9.0));
+        ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+        try {
+            Future<?>[] resultados = new Future<?>[hilos];
+            for (int i = 0; i < hilos; i++) {
+                resultados[i] = ejecutor.submit(() -> {
+                    llegada.countDown();
+                    return cache.obtener(IMAGEN, false, 0, () -> {
+                        extracciones.incrementAndGet();
+                        esperar(llegada);
+                        return originales;
+                    });
+                });
+            }
+            for (Future<?> resultado : resultados) {
+                assertIguales(originales, (List<?>) resultado.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            ejecutor.shutdownNow();
+        }
+        assertEquals(1, extracciones.get());
+        assertEquals(hilos, cache.getFallos() + cache.getEsperas() + cache.getAciertosMemoria());
+    }
+
+    @Test
+    void noGuardaLasExtraccionesFallidas() {
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES, directorio);
+        assertThrows(IllegalStateException.class, () -> cache.obtener(IMAGEN, false, 0, () -> {
+            throw new IllegalStateException("extracción fallida");
+        }));
+        assertEquals(0, cache.size());
+        assertEquals(List.of(), cache.obtener(IMAGEN, false, 0, List::of));
+    }
+
+    private void assertExtraeDeNuevo(List<Minutiae> originales) {
+        CacheExtraccion cache = new CacheExtraccion(MAX_BYTES, directorio);
+        AtomicInteger extracciones = new AtomicInteger();
+        List<Minutiae> minutiaeList = cache.obtener(IMAGEN, false, 0, () -> {
+            extracciones.incrementAndGet();
+            return originales;
+        });
+        assertEquals(1, extracciones.get());
+        assertEquals(0, cache.getAciertosDisco());
+        assertIguales(originales, minutiaeList);
+
+        // La extracción repetida vuelve a escribir el archivo, ya válido
+        CacheExtraccion otra = new CacheExtraccion(MAX_BYTES, directorio);
+        assertIguales(originales, otra.obtener(IMAGEN, false, 0, CacheExtraccionTest::noDebeExtraer));
+    }
+
+    private Path unicoArchivo() throws IOException {
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            List<Path> lista = archivos.toList();
+            assertEquals(1, lista.size());
+            return lista.get(0);
+        }
+    }
+
+    private static List<Minutiae> noDebeExtraer() {
+        throw new AssertionError("La extracción debería estar en la caché");
+    }
+
+    private static void esperar(CountDownLatch llegada) {
+        try {
+            llegada.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertIguales(List<Minutiae> esperadas, List<?> obtenidas) {
+        assertEquals(esperadas.size(), obtenidas.size());
+        for (int i = 0; i < esperadas.size(); i++) {
+            Minutiae esperada = esperadas.get(i);
+            Minutiae obtenida = (Minutiae) obtenidas.get(i);
+            assertEquals(esperada.getX(), obtenida.getX());
+            assertEquals(esperada.getY(), obtenida.getY());
+            assertEquals(esperada.getType(), obtenida.getType());
+            assertArrayEquals(esperada.getAngles(), obtenida.getAngles());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Compara el filtro de ruido fusionado con una aplicación directa de los dos filtros, píxel a píxel y
+ * sobre imágenes completas, tal como se hacía antes de fusionarlos.
+ */
+class FiltroRuidoFusionadoTest {
+    // Anchos alrededor de los límites de palabra de 64 bits, y altos desde el mínimo
+    private static final int[] ANCHOS = {1, 2, 3, 5, 63, 64, 65, 127, 128, 129, 200};
+    private static final int[] ALTOS = {1, 2, 3, 4, 7, 33};
+    private static final double[] DENSIDADES = {0.1, 0.5, 0.9};
+
+    @Test
+    void coincideConLosDosFiltrosPorSeparado() {
+        Random aleatorio = new Random(20);
+        for (int width : ANCHOS) {
+            for (int height : ALTOS) {
+                for (double densidad : DENSIDADES) {
+                    FingerPrintImage imagen = aleatoria(width, height, densidad, aleatorio);
+                    byte[] esperada = filtrarEnDosPasadas(imagen);
+                    String caso = width + "x" + height + " con densidad " + densidad;
+
+                    FingerPrintImage resultado = TransformacionesImagenUtils.aplicarFiltroRuidoBinario(imagen);
+                    assertArrayEquals(esperada, resultado.getPixels(), caso);
+
+                    BinaryFingerPrintImage empaquetada = TransformacionesImagenUtils.aplicarFiltroRuidoBinario(
+                            BinaryFingerPrintImage.desde(imagen));
+                    assertArrayEquals(esperada, empaquetada.toFingerPrintImage().getPixels(), caso + " empaquetada");
+
+                    TransformacionesImagenUtils.aplicarFiltroRuidoBinario(imagen, imagen);
+                    assertArrayEquals(esperada, imagen.getPixels(), caso + " en el sitio");
+                }
+            }
+        }
+    }
+
+    @Test
+    void cuentaLosPixelesCorregidos() {
+        FingerPrintImage imagen = aleatoria(100, 50, 0.5, new Random(7));
+        byte[] esperada = filtrarEnDosPasadas(imagen);
+        long cambios = 0;
+        for (int i = 0; i < esperada.length; i++) {
+            if (esperada[i] != imagen.getPixels()[i]) {
+                cambios++;
+            }
+        }
+        FiltroRuidoFusionado filtro = new FiltroRuidoFusionado(100, 50, (y, fila) -> { });
+        BinaryFingerPrintImage empaquetada = BinaryFingerPrintImage.desde(imagen);
+        for (int y = 0; y < 50; y++) {
+            System.arraycopy(empaquetada.getWords(), empaquetada.getRowOffset(y), filtro.getEntrada(), filtro.ranura(y),
+                    empaquetada.getWordsPerRow());
+            filtro.filaLista(y);
+        }
+        assertEquals(cambios, filtro.getCorregidos());
+    }
+
+    @Test
+    void exigeLasFilasEnOrden() {
+        FiltroRuidoFusionado filtro = new FiltroRuidoFusionado(10, 10, (y, fila) -> { });
+        filtro.filaLista(0);
+        assertThrows(IllegalStateException.class, () -> filtro.filaLista(2));
+    }
+
+    private static FingerPrintImage aleatoria(int width, int height, double densidad, Random aleatorio) {
+        FingerPrintImage imagen = new FingerPrintImage(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int valor = aleatorio.nextDouble() < densidad ? FingerPrintImage.BLANCO : FingerPrintImage.NEGRO;
+                imagen.getPixels()[imagen.getRowOffset(y) + x] = (byte) valor;
+            }
+        }
+        return imagen;
+    }
+
+    // Aplica cada filtro a la imagen entera con la fórmula de su documentación; el borde queda en negro
+    private static byte[] filtrarEnDosPasadas(FingerPrintImage imagen) {
+        int width = imagen.getWidth();
+        int height = imagen.getHeight();
+        boolean[][] p = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                p[y][x] = imagen.getPixels()[imagen.getRowOffset(y) + x] != FingerPrintImage.NEGRO;
+            }
+        }
+        boolean[][] primero = new boolean[height][width];
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                boolean b = p[y - 1][x];
+                boolean d = p[y][x - 1];
+                boolean e = p[y][x + 1];
+                boolean g = p[y + 1][x];
+                primero[y][x] = p[y][x] || b && g && (d || e) || d && e && (b || g);
+            }
+        }
+        byte[] resultado = new byte[width * height];
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                boolean a = primero[y - 1][x - 1];
+                boolean b = primero[y - 1][x];
+                boolean c = primero[y - 1][x + 1];
+                boolean d = primero[y][x - 1];
+                boolean e = primero[y][x + 1];
+                boolean f = primero[y + 1][x - 1];
+                boolean g = primero[y + 1][x];
+                boolean h = primero[y + 1][x + 1];
+                boolean blanco = primero[y][x] && ((a || b || d) && (e || g || h) || (b || c || e) && (d || f || g));
+                resultado[y * width + x] = (byte) (blanco ? FingerPrintImage.BLANCO : FingerPrintImage.NEGRO);
+            }
+        }
+        return resultado;
+    }
+}
@@ -0,0 +1,194 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Comprueba que las plantillas de una galería se leen igual al volver a abrirla, también tras ampliar la
+ * tabla de posiciones, y que los archivos que no son galerías válidas se rechazan al abrirlos.
+ */
+class GaleriaPlantillasTest {
+    @TempDir
+    Path directorio;
+
+    @Test
+    void recuperaLasPlantillasAlVolverAAbrirla() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        Random aleatorio = new Random(14);
+        // Más plantillas que la capacidad inicial de la tabla, para que se amplíe al menos una vez
+        List<MinutiaeTemplate> plantillas = new ArrayList<>();
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            for (int i = 0; i < 1500; i++) {
+                MinutiaeTemplate plantilla = aleatoria(aleatorio.nextInt(40), aleatorio);
+                plantillas.add(plantilla);
+                assertEquals(i, galeria.anadir(1000 + i, plantilla));
+            }
+        }
+
+        ComparadorMinucias comparador = new ComparadorMinucias();
+        comparador.fijarSonda(plantillas.get(7));
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrirSoloLectura(archivo)) {
+            assertEquals(plantillas.size(), galeria.size());
+            for (int i = 0; i < plantillas.size(); i++) {
+                assertEquals(1000 + i, galeria.getId(i));
+                assertEquals(plantillas.get(i).size(), galeria.getNumMinucias(i));
+                assertIguales(plantillas.get(i), galeria.leer(i));
+                assertEquals(comparador.compararConSonda(plantillas.get(i)), galeria.compararConSonda(i, comparador));
+            }
+        }
+    }
+
+    @Test
+    void anadeAUnaGaleriaExistente() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        Random aleatorio = new Random(15);
+        MinutiaeTemplate primera = aleatoria(5, aleatorio);
+        MinutiaeTemplate segunda = aleatoria(0, aleatorio);
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            galeria.anadir(1, primera);
+        }
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            assertEquals(1, galeria.anadir(2, segunda));
+            // La galería abierta lee también lo que acaba de añadir
+            assertIguales(segunda, galeria.leer(1));
+        }
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrirSoloLectura(archivo)) {
+            assertEquals(2, galeria.size());
+            assertIguales(primera, galeria.leer(0));
+            assertIguales(segunda, galeria.leer(1));
+        }
+    }
+
+    @Test
+    void ignoraLosDatosEscritosTrasLaUltimaCabecera() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        MinutiaeTemplate plantilla = aleatoria(3, new Random(16));
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            galeria.anadir(1, plantilla);
+        }
+        // Como si el proceso se hubiera interrumpido a mitad de añadir otra plantilla
+        Files.write(archivo, new byte[]{9, 9, 9, 9, 9}, StandardOpenOption.APPEND);
+
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            assertEquals(1, galeria.size());
+            MinutiaeTemplate otra = aleatoria(2, new Random(17));
+            assertEquals(1, galeria.anadir(2, otra));
+            assertIguales(plantilla, galeria.leer(0));
+            assertIguales(otra, galeria.leer(1));
+        }
+    }
+
+    @Test
+    void noAnadeEnUnaGaleriaDeSoloLectura() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        GaleriaPlantillas.abrir(archivo).close();
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrirSoloLectura(archivo)) {
+            assertThrows(IOException.class, () -> galeria.anadir(1, new MinutiaeTemplate(0)));
+            assertThrows(IllegalArgumentException.class, () -> galeria.getId(0));
+        }
+    }
+
+    @Test
+    void rechazaUnArchivoQueNoEsUnaGaleria() throws IOException {
+        Path archivo = directorio.resolve("otro.bin");
+        byte[] contenido = new byte[GaleriaPlantillas.TAMANO_CABECERA * 2];
+        Arrays.fill(contenido, (byte) 'x');
+        Files.write(archivo, contenido);
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrir(archivo));
+    }
+
+    @Test
+    void rechazaOtraVersion() throws IOException {
+        Path archivo = galeriaConUnaPlantilla();
+        modificarCabecera(archivo, cabecera -> cabecera.putInt(4, 2));
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+    }
+
+    @Test
+    void rechazaUnaCabeceraTruncada() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        GaleriaPlantillas.abrir(archivo).close();
+        truncar(archivo, GaleriaPlantillas.TAMANO_CABECERA - 1);
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+    }
+
+    @Test
+    void rechazaUnArchivoMasCortoQueSusDatos() throws IOException {
+        Path archivo = galeriaConUnaPlantilla();
+        truncar(archivo, Files.size(archivo) - 1);
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+    }
+
+    @Test
+    void rechazaMasPlantillasQueLaCapacidadDeLaTabla() throws IOException {
+        Path archivo = galeriaConUnaPlantilla();
+        modificarCabecera(archivo, cabecera -> cabecera.putInt(8, cabecera.getInt(12) + 1));
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+    }
+
+    @Test
+    void rechazaUnNumeroDePlantillasNegativo() throws IOException {
+        Path archivo = galeriaConUnaPlantilla();
+        modificarCabecera(archivo, cabecera -> cabecera.putInt(8, -1));
+        assertThrows(IOException.class, () -> GaleriaPlantillas.abrirSoloLectura(archivo));
+    }
+
+    private Path galeriaConUnaPlantilla() throws IOException {
+        Path archivo = directorio.resolve("galeria.bin");
+        try (GaleriaPlantillas galeria = GaleriaPlantillas.abrir(archivo)) {
+            galeria.anadir(1, aleatoria(4, new Random(18)));
+        }
+        return archivo;
+    }
+
+    private interface Modificacion {
+        void aplicar(ByteBuffer cabecera);
+    }
+
+    private static void modificarCabecera(Path archivo, Modificacion modificacion) throws IOException {
+        byte[] contenido = Files.readAllBytes(archivo);
+        modificacion.aplicar(ByteBuffer.wrap(contenido).order(ByteOrder.LITTLE_ENDIAN));
+        Files.write(archivo, contenido);
+    }
+
+    private static void truncar(Path archivo, long longitud) throws IOException {
+        byte[] contenido = Files.readAllBytes(archivo);
+        Files.write(archivo, Arrays.copyOf(contenido, (int) longitud));
+    }
+
+    private static MinutiaeTemplate aleatoria(int n, Random aleatorio) {
+        MinutiaeTemplate plantilla = new MinutiaeTemplate(n);
+        for (int i = 0; i < n; i++) {
+            plantilla.anadir(aleatorio.nextInt(0x10000), aleatorio.nextInt(0x10000), aleatorio.nextBoolean() ? 1 : 3,
+                    (byte) aleatorio.nextInt(), (byte) aleatorio.nextInt(), (byte) aleatorio.nextInt());
+        }
+        return plantilla;
+    }
+
+    private static void assertIguales(MinutiaeTemplate esperada, MinutiaeTemplate obtenida) {
+        assertEquals(esperada.size(), obtenida.size());
+        for (int i = 0; i < esperada.size(); i++) {
+            assertEquals(esperada.getX(i), obtenida.getX(i));
+            assertEquals(esperada.getY(i), obtenida.getY(i));
+            assertEquals(esperada.getType(i), obtenida.getType(i));
+            for (int a = 0; a < MinutiaeTemplate.ANGULOS_POR_MINUCIA; a++) {
+                assertEquals(esperada.getAnguloCuantizado(i, a), obtenida.getAnguloCuantizado(i, a));
+            }
+        }
+    }
+}
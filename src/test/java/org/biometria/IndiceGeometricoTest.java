@@ -0,0 +1,80 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Comprueba la tabla de identificadores del índice al insertar, sustituir y eliminar plantillas en
+ * cualquier orden, y que cada plantilla indexada es la primera candidata de sí misma.
+ */
+class IndiceGeometricoTest {
+    @Test
+    void insertaYEliminaComoUnMapa() {
+        Random aleatorio = new Random(13);
+        IndiceGeometrico indice = new IndiceGeometrico();
+        Map<Integer, MinutiaeTemplate> esperado = new HashMap<>();
+        // Pocos identificadores distintos, para que se repitan las sustituciones y las eliminaciones
+        int[] ids = new int[300];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i < 3 ? new int[]{Integer.MIN_VALUE, -1, Integer.MAX_VALUE}[i] : aleatorio.nextInt();
+        }
+        for (int paso = 0; paso < 5000; paso++) {
+            int id = ids[aleatorio.nextInt(ids.length)];
+            if (aleatorio.nextInt(3) == 0) {
+                assertEquals(esperado.remove(id) != null, indice.eliminar(id));
+            } else {
+                MinutiaeTemplate plantilla = aleatoria(aleatorio);
+                indice.insertar(id, plantilla);
+                esperado.put(id, plantilla);
+            }
+            assertEquals(esperado.size(), indice.size());
+        }
+
+        for (int id : ids) {
+            MinutiaeTemplate plantilla = esperado.get(id);
+            if (plantilla != null) {
+                int[] candidatas = indice.buscarCandidatos(plantilla, 1);
+                assertEquals(1, candidatas.length);
+                assertEquals(id, candidatas[0]);
+            }
+        }
+        for (int id : ids) {
+            assertEquals(esperado.remove(id) != null, indice.eliminar(id));
+        }
+        assertEquals(0, indice.size());
+        assertEquals(0, indice.buscarCandidatos(aleatoria(aleatorio), 10).length);
+    }
+
+    @Test
+    void noDevuelveLasPlantillasEliminadas() {
+        Random aleatorio = new Random(14);
+        IndiceGeometrico indice = new IndiceGeometrico();
+        MinutiaeTemplate plantilla = aleatoria(aleatorio);
+        for (int id = 0; id < 200; id++) {
+            indice.insertar(id, plantilla);
+        }
+        for (int id = 0; id < 200; id += 2) {
+            assertTrue(indice.eliminar(id));
+        }
+        int[] candidatas = indice.buscarCandidatos(plantilla, 1000);
+        assertEquals(100, candidatas.length);
+        for (int id : candidatas) {
+            assertEquals(1, id % 2);
+        }
+    }
+
+    private static MinutiaeTemplate aleatoria(Random aleatorio) {
+        MinutiaeTemplate plantilla = new MinutiaeTemplate(30);
+        for (int i = 0; i < 30; i++) {
+            plantilla.anadir(aleatorio.nextInt(400), aleatorio.nextInt(400), aleatorio.nextBoolean() ? 1 : 3,
+                    (byte) aleatorio.nextInt(), (byte) aleatorio.nextInt(), (byte) aleatorio.nextInt());
+        }
+        return plantilla;
+    }
+}
@@ -0,0 +1,148 @@
+package org.biometria;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Comprueba la lectura de la cabecera PGM, con sus espacios y comentarios, y de las filas de PGM y de
+ * archivos crudos, y que se rechazan las cabeceras no válidas y los archivos incompletos.
+ */
+class LectorPGMTest {
+    // Empiezan por un salto de línea, un espacio, '#' y un dígito, que no deben tomarse por parte de la cabecera
+    private static final byte[] PIXELES = {'\n', ' ', '#', '7', 0, (byte) 255, 1, (byte) 128, (byte) 200, 13, 9, 66};
+
+    @TempDir
+    Path directorio;
+
+    @Test
+    void leeUnaCabeceraSencilla() throws IOException {
+        LectorPGM lector = LectorPGM.leer(ByteBuffer.wrap(pgm("P5\n4 3\n255\n", PIXELES)));
+        assertFilas(lector, 4, 3, PIXELES);
+    }
+
+    @Test
+    void saltaLosComentariosYLosEspacios() throws IOException {
+        String cabecera = "P5 # creado a mano\n\t4\r\n#3\n  # otro comentario 9 9\n3\f255 ";
+        LectorPGM lector = LectorPGM.leer(ByteBuffer.wrap(pgm(cabecera, PIXELES)));
+        assertFilas(lector, 4, 3, PIXELES);
+    }
+
+    @Test
+    void ignoraLosBytesSobrantesYEmpiezaEnLaPosicionDelBufer() throws IOException {
+        byte[] archivo = pgm("P5 4 3 255\n", PIXELES);
+        byte[] conPrefijoYSobrante = new byte[archivo.length + 10];
+        System.arraycopy(archivo, 0, conPrefijoYSobrante, 5, archivo.length);
+        ByteBuffer datos = ByteBuffer.wrap(conPrefijoYSobrante);
+        datos.position(5);
+        assertFilas(LectorPGM.leer(datos), 4, 3, PIXELES);
+    }
+
+    @Test
+    void reescalaLosValoresMaximosMenoresQue255() throws IOException {
+        LectorPGM lector = LectorPGM.leer(ByteBuffer.wrap(pgm("P5 4 1 15\n", new byte[]{0, 7, 15, 16})));
+        assertFilas(lector, 4, 1, new byte[]{0, 119, (byte) 255, (byte) 255});
+    }
+
+    @Test
+    void abreArchivosPGMYCrudos() throws IOException {
+        Path pgm = directorio.resolve("imagen.pgm");
+        Files.write(pgm, pgm("P5\n3 4\n255\n", PIXELES));
+        assertFilas(LectorPGM.abrir(pgm), 3, 4, PIXELES);
+
+        Path raw = directorio.resolve("imagen.raw");
+        Files.write(raw, PIXELES);
+        assertFilas(LectorPGM.abrirRaw(raw, 6, 2), 6, 2, PIXELES);
+        assertFilas(LectorPGM.abrirRaw(raw, 12, 1), 12, 1, PIXELES);
+    }
+
+    @Test
+    void rechazaUnArchivoCrudoDeOtroTamano() throws IOException {
+        Path raw = directorio.resolve("imagen.raw");
+        Files.write(raw, PIXELES);
+        IOException e = assertThrows(IOException.class, () -> LectorPGM.abrirRaw(raw, 5, 2));
+        assertTrue(e.getMessage().startsWith(raw.toString()), e.getMessage());
+        assertThrows(IOException.class, () -> LectorPGM.abrirRaw(raw, 0, 0));
+        assertThrows(IOException.class, () -> LectorPGM.abrirRaw(raw, -6, -2));
+    }
+
+    @Test
+    void rechazaOtrosFormatos() {
+        assertRechazada("P2 4 3 255\n", PIXELES);
+        assertRechazada("P6 4 1 255\n", PIXELES);
+        assertRechazada("", new byte[0]);
+        assertRechazada("P", new byte[0]);
+        assertThrows(IOException.class, () -> LectorPGM.leer(ByteBuffer.wrap(PIXELES)));
+    }
+
+    @Test
+    void rechazaValoresMaximosNoValidos() {
+        assertRechazada("P5 4 3 256\n", PIXELES);
+        assertRechazada("P5 4 3 65535\n", PIXELES);
+        assertRechazada("P5 4 3 0\n", PIXELES);
+    }
+
+    @Test
+    void rechazaCabecerasIncompletasONoValidas() {
+        assertRechazada("P5 4 3", new byte[0]);
+        assertRechazada("P5 4 3 255", new byte[0]);
+        assertRechazada("P5 4 # sin final", new byte[0]);
+        assertRechazada("P5 4 x 255\n", PIXELES);
+        assertRechazada("P5 -4 3 255\n", PIXELES);
+        assertRechazada("P5 0 3 255\n", PIXELES);
+        assertRechazada("P5 99999999999 1 255\n", PIXELES);
+    }
+
+    @Test
+    void rechazaUnArchivoConMenosPixelesQueSuCabecera() throws IOException {
+        assertRechazada("P5 4 3 255\n", Arrays.copyOf(PIXELES, PIXELES.length - 1));
+        assertRechazada("P5 65536 65536 255\n", PIXELES);
+
+        Path pgm = directorio.resolve("truncado.pgm");
+        Files.write(pgm, pgm("P5 5 3 255\n", PIXELES));
+        IOException e = assertThrows(IOException.class, () -> LectorPGM.abrir(pgm));
+        assertTrue(e.getMessage().startsWith(pgm.toString()), e.getMessage());
+    }
+
+    @Test
+    void compruebaLaFilaPedida() throws IOException {
+        LectorPGM lector = LectorPGM.leer(ByteBuffer.wrap(pgm("P5 4 3 255\n", PIXELES)));
+        assertThrows(IllegalArgumentException.class, () -> lector.leerFila(3, new byte[4], 0));
+        assertThrows(IllegalArgumentException.class, () -> lector.leerFila(-1, new byte[4], 0));
+    }
+
+    private static void assertRechazada(String cabecera, byte[] pixeles) {
+        assertThrows(IOException.class, () -> LectorPGM.leer(ByteBuffer.wrap(pgm(cabecera, pixeles))), cabecera);
+    }
+
+    private static void assertFilas(LectorPGM lector, int width, int height, byte[] pixeles) {
+        assertEquals(width, lector.getWidth());
+        assertEquals(height, lector.getHeight());
+        byte[] filas = new byte[width * height + 2];
+        for (int y = 0; y < height; y++) {
+            lector.leerFila(y, filas, 1 + y * width);
+        }
+        byte[] esperadas = new byte[filas.length];
+        System.arraycopy(pixeles, 0, esperadas, 1, width * height);
+        assertArrayEquals(esperadas, filas);
+    }
+
+    private static byte[] pgm(String cabecera, byte[] pixeles) {
+        ByteArrayOutputStream archivo = new ByteArrayOutputStream();
+        archivo.writeBytes(cabecera.getBytes(StandardCharsets.US_ASCII));
+        archivo.writeBytes(pixeles);
+        return archivo.toByteArray();
+    }
+}